@@ -0,0 +1,89 @@
+package bt.jmh;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files, in CSV format, printing the score change of
+ * every benchmark present on both.
+ *
+ * Usage: CompareResults baseline.csv current.csv
+ *
+ * @author jjos
+ */
+public class CompareResults {
+
+	static class Score {
+		double score;
+		double error;
+		String unit;
+		String mode;
+	}
+
+	/**
+	 * @return the scores on the given file, by benchmark name and parameters
+	 */
+	static LinkedHashMap<String, Score> read(String file) throws IOException {
+		LinkedHashMap<String, Score> ret = new LinkedHashMap<>();
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			ArrayList<String> header = split(in.readLine());
+			String line;
+			while ((line = in.readLine()) != null) {
+				ArrayList<String> fields = split(line);
+				StringBuilder key = new StringBuilder(fields.get(0));
+				for (int i = 7; i < fields.size() && i < header.size(); i++)
+					key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(fields.get(i));
+				Score s = new Score();
+				s.mode = fields.get(1);
+				s.score = Double.parseDouble(fields.get(4));
+				s.error = fields.get(5).isEmpty() || fields.get(5).equals("NaN") ? 0 : Double.parseDouble(fields.get(5));
+				s.unit = fields.get(6);
+				ret.put(key.toString(), s);
+			}
+		}
+		return ret;
+	}
+
+	static ArrayList<String> split(String line) {
+		ArrayList<String> ret = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (char c : line.toCharArray()) {
+			if (c == '"')
+				quoted = !quoted;
+			else if (c == ',' && !quoted) {
+				ret.add(field.toString());
+				field.setLength(0);
+			} else
+				field.append(c);
+		}
+		ret.add(field.toString());
+		return ret;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2 || args[0].isEmpty() || args[1].isEmpty()) {
+			System.err.println("Usage: CompareResults baseline.csv current.csv");
+			System.exit(2);
+		}
+		LinkedHashMap<String, Score> baseline = read(args[0]);
+		LinkedHashMap<String, Score> current = read(args[1]);
+
+		System.out.printf("%-70s %14s %14s %9s %s%n", "benchmark", "baseline", "current", "change", "unit");
+		for (Map.Entry<String, Score> e : current.entrySet()) {
+			Score b = baseline.get(e.getKey());
+			Score c = e.getValue();
+			if (b == null || !b.unit.equals(c.unit))
+				continue;
+			double change = 100.0 * (c.score - b.score) / b.score;
+			// within the error margins the change is not significant
+			boolean significant = Math.abs(c.score - b.score) > b.error + c.error;
+			System.out.printf("%-70s %14.3f %14.3f %+8.1f%% %s%s%n", e.getKey(), b.score, c.score, change, c.unit,
+					significant ? "" : " (~)");
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package bt.jmh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bt.Contract;
+import bt.compiler.Compiler;
+import bt.compiler.Printer;
+
+/**
+ * Compiling, linking and printing the sample contracts.
+ *
+ * @author jjos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+
+	@Param({ "bt.sample.TXCounter", "bt.sample.KohINoor", "bt.sample.NFT2", "bt.dapps.Cryptoball",
+			"bt.dapps.SignumArt2" })
+	public String contract;
+
+	Class<? extends Contract> clazz;
+	Compiler compiled;
+	PrintStream out;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup() throws Exception {
+		clazz = (Class<? extends Contract>) Class.forName(contract);
+		compiled = compileAndLink();
+		out = new PrintStream(new ByteArrayOutputStream() {
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// discard
+			}
+		});
+	}
+
+	@Benchmark
+	public Compiler compile() throws Exception {
+		Compiler comp = new Compiler(clazz);
+		comp.compile();
+		return comp;
+	}
+
+	@Benchmark
+	public Compiler compileAndLink() throws Exception {
+		Compiler comp = new Compiler(clazz);
+		comp.compile();
+		comp.link();
+		return comp;
+	}
+
+	@Benchmark
+	public void print() {
+		Printer.print(compiled.getCode(), out, compiled);
+	}
+}
@@ -0,0 +1,75 @@
+package bt.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bt.Address;
+import bt.BT;
+import bt.Contract;
+import bt.Emulator;
+import bt.sample.TXCounter;
+
+/**
+ * Forging blocks with payments to users and to java and compiled contracts.
+ *
+ * The chain is kept at the given size by the emulator retention, so every
+ * invocation forges on a chain of the same length.
+ *
+ * @author jjos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForgeBenchmark {
+
+	@Param({ "100", "1000" })
+	public int blocks;
+
+	@Param({ "10", "1000" })
+	public int txs;
+
+	Emulator emu;
+	Address[] users = new Address[10];
+	Address javaCounter, compiledCounter;
+
+	@Setup
+	public void setup() throws Exception {
+		emu = new Emulator(1);
+		for (int i = 0; i < users.length; i++) {
+			users[i] = emu.getAddress("USER" + i);
+			emu.airDrop(users[i], Long.MAX_VALUE / 4 / users.length);
+		}
+		javaCounter = emu.getAddress("JAVA");
+		compiledCounter = emu.getAddress("COMPILED");
+		emu.createConctract(users[0], javaCounter, TXCounter.class, Contract.ONE_BURST);
+		emu.createConctract(users[0], compiledCounter, BT.compileContract(TXCounter.class), Contract.ONE_BURST);
+		emu.setRetention(blocks);
+		for (int i = 0; i < blocks; i++)
+			forgeBlock();
+	}
+
+	@Benchmark
+	public void forgeBlock() throws Exception {
+		Emulator.Batch batch = emu.batch(txs);
+		for (int i = 0; i < txs; i++) {
+			Address to = i % 3 == 0 ? javaCounter : i % 3 == 1 ? compiledCounter : users[i % users.length];
+			batch.send(users[i % users.length], to, 2 * Contract.ONE_BURST);
+		}
+		batch.submit();
+		emu.forgeBlock();
+	}
+}
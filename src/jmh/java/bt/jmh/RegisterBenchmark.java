@@ -0,0 +1,52 @@
+package bt.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bt.Contract;
+import bt.Register;
+
+/**
+ * Register helpers used by the emulated contracts.
+ *
+ * @author jjos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegisterBenchmark {
+
+	@Param({ "hi", "a message with the full 32 bytes." })
+	public String message;
+
+	Register input;
+
+	@Setup
+	public void setup() {
+		input = Register.newInstance(1L, 2L, 3L, 4L);
+	}
+
+	@Benchmark
+	public Register newMessage() {
+		return Register.newMessage(message);
+	}
+
+	@Benchmark
+	public Register performSHA256() {
+		return Contract.performSHA256_(input);
+	}
+}
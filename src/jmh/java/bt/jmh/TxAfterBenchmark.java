@@ -0,0 +1,72 @@
+package bt.jmh;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bt.Address;
+import bt.Contract;
+import bt.Emulator;
+import bt.Timestamp;
+import bt.Transaction;
+
+/**
+ * Looking for the next transaction received by an address, as contracts do
+ * when looping over their incoming transactions.
+ *
+ * @author jjos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TxAfterBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int blocks;
+
+	Emulator emu;
+	Address receiver;
+	Timestamp[] timestamps;
+	int next;
+
+	@Setup
+	public void setup() throws Exception {
+		emu = new Emulator(1);
+		Address sender = emu.getAddress("SENDER");
+		Address other = emu.getAddress("OTHER");
+		receiver = emu.getAddress("RECEIVER");
+		emu.airDrop(sender, Long.MAX_VALUE / 4);
+		for (int i = 0; i < blocks; i++) {
+			for (int j = 0; j < 10; j++)
+				emu.send(sender, j % 2 == 0 ? receiver : other, Contract.ONE_BURST);
+			emu.forgeBlock();
+		}
+
+		ArrayList<Timestamp> list = new ArrayList<>();
+		for (Transaction tx : emu.getTxs()) {
+			if (tx.getReceiverAddress() == receiver)
+				list.add(tx.getTimestamp());
+		}
+		timestamps = list.toArray(new Timestamp[0]);
+	}
+
+	@Benchmark
+	public Transaction getTxAfter() {
+		next = (next + 7919) % timestamps.length;
+		return emu.getTxAfter(receiver, timestamps[next]);
+	}
+}
@@ -1,5 +1,7 @@
 package bt;
 
+import java.util.ArrayList;
+
 /**
  * A burstcoin address.
  * 
@@ -17,7 +19,19 @@ public class Address {
 	String rsAddress;
 	long balance;
 	Contract contract;
+	CompiledContract compiled;
 	boolean sleeping;
+	Coroutine coroutine;
+	/** a copy of a java contract sleeping in the middle of a method */
+	boolean frozen;
+	/** a java contract sleeping until it receives a transaction */
+	boolean wakeOnTx;
+	/** the position on the emulator address list */
+	int index;
+	/** the transactions received, except contract creation, on timestamp order */
+	ArrayList<Transaction> txsReceived = new ArrayList<>();
+	/** the last timestamp read by this contract, transactions after it are kept */
+	long txCursor = Long.MAX_VALUE;
 	
 	/**
 	 * Should be called by the emulator only.
@@ -64,6 +78,14 @@ public class Address {
 		return contract;
 	}
 	
+	/**
+	 * @return the underlying compiled contract or null
+	 */
+	@EmulatorWarning
+	public CompiledContract getCompiledContract() {
+		return compiled;
+	}
+
 	/**
 	 * @return true if it is a sleeping contract
 	 */
@@ -72,6 +94,16 @@ public class Address {
 		return sleeping;
 	}
 	
+	/**
+	 * @return true if this is the copy of a java contract that was sleeping in
+	 *         the middle of a method when the snapshot (or fork) was taken, it
+	 *         cannot continue that method so it sleeps forever
+	 */
+	@EmulatorWarning
+	public boolean isFrozen() {
+		return frozen;
+	}
+
 	@EmulatorWarning
 	public void setSleeping(boolean sleeping) {
 		this.sleeping = sleeping;
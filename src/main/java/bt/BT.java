@@ -5,6 +5,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.InvalidParameterException;
 
+import bt.compiler.CompileCache;
 import bt.compiler.Compiler;
 import bt.compiler.Field;
 import bt.compiler.Method;
@@ -94,15 +95,14 @@ public class BT {
      * {@link Compiler#getErrors()}, can get the methods with
      * {@link Compiler#getMethods()}.
      *
+     * Contracts that did not change are taken from the {@link CompileCache}.
+     *
      * @param contractClass
      * @return
      * @throws IOException
      */
     public static Compiler compileContract(Class<? extends Contract> contractClass) throws IOException {
-        Compiler comp = new Compiler(contractClass);
-        comp.compile();
-        comp.link();
-        return comp;
+        return CompileCache.getInstance().compile(contractClass);
     }
 
     /**
@@ -288,6 +288,15 @@ public class BT {
     	return CIP20_ACTIVATED ? 20 : 10;
     }
 
+    /**
+     * @return the AT version used when registering contracts
+     *
+     * @see BT#activateCIP20(boolean)
+     */
+    public static int getATVersion() {
+    	return CIP20_ACTIVATED ? 2 : 1;
+    }
+
     /**
      * Register the given contract with the given activation fee.
      */
@@ -333,11 +342,15 @@ public class BT {
      * @param deadline         in blocks
      *
      * @return the response
-     * @throws Exception
+     * @throws InvalidParameterException if the contract was compiled for a newer
+     *                                   AT version than the one registered
      */
     public static Single<TransactionBroadcast> registerContract(String passphrase, Compiler compiledContract,
             String name, String description, SignumValue activationFee, SignumValue fee, int deadline) {
-        return registerContract(passphrase, compiledContract.getCode(), compiledContract.getDataPages(), name, description, null, activationFee, fee, deadline);
+        if (compiledContract.getTargetVersion() > getATVersion())
+            throw new InvalidParameterException("Contract compiled for AT version " + compiledContract.getTargetVersion()
+                    + ", but version " + getATVersion() + " is registered");
+        return registerContract(passphrase, compiledContract.getCode(), compiledContract.getDataPages(), name, description, compiledContract.getData(), activationFee, fee, deadline);
     }
 
     /**
@@ -393,7 +406,7 @@ public class BT {
                     });
         }
 
-        byte[] creationBytes = SignumCrypto.getInstance().getATCreationBytes((short) (CIP20_ACTIVATED ? 2 : 1), code, dataBuffer.array(), (short) dPages, (short) 1, (short) 1, activationFee);
+        byte[] creationBytes = SignumCrypto.getInstance().getATCreationBytes((short) getATVersion(), code, dataBuffer.array(), (short) dPages, (short) 1, (short) 1, activationFee);
         return bns.generateCreateATTransaction(pubkey, fee, deadline, name, description, creationBytes, referenceTxFullHash)
                 .flatMap(unsignedTransactionBytes -> {
                     byte[] signedTransactionBytes = bc.signTransaction(passphrase, unsignedTransactionBytes);
@@ -1,5 +1,9 @@
 package bt;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 
 /**
@@ -26,11 +30,50 @@ public class Block {
 
 			this.height = prev.height +1;
 		}
+	}
+
+	/**
+	 * Computes the hash of this block, a SHA-256 of the previous block hash (or
+	 * the given seed for the first block), the height and the transactions.
+	 * 
+	 * @param seed the emulator seed
+	 */
+	void computeHash(long seed) {
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(8 * 11);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (prev != null) {
+			for (long v : prev.hash.value)
+				buffer.putLong(v);
+		} else
+			buffer.putLong(seed);
+		buffer.putLong(height);
+		sha256.update(buffer.array(), 0, buffer.position());
 
-		// Just some random numbers for the block hash
-		for (int i = 0; i < hash.value.length; i++) {
-			hash.value[i] = (long) ((Math.random()-0.5) * 1e8);
+		for (Transaction tx : txs) {
+			buffer.clear();
+			buffer.putLong(tx.id);
+			buffer.putLong(tx.sender == null ? 0L : tx.sender.id);
+			buffer.putLong(tx.receiver == null ? 0L : tx.receiver.id);
+			buffer.putLong(tx.amount);
+			buffer.putLong(tx.type);
+			buffer.putLong(tx.ts.value);
+			if (tx.msg != null) {
+				for (long v : tx.msg.value)
+					buffer.putLong(v);
+			}
+			sha256.update(buffer.array(), 0, buffer.position());
 		}
+
+		buffer = ByteBuffer.wrap(sha256.digest());
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < hash.value.length; i++)
+			hash.value[i] = buffer.getLong();
 	}
 	
 	public long getHeight() {
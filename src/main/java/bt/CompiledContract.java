@@ -0,0 +1,273 @@
+package bt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import bt.compiler.Compiler;
+import bt.compiler.Machine;
+import bt.compiler.Method;
+import bt.compiler.Profile;
+
+/**
+ * A contract running as compiled AT bytecode on the emulator.
+ *
+ * Instead of calling the java methods by reflection, the emulator executes the
+ * code produced by the {@link Compiler} on a {@link Machine}. This way, what is
+ * tested is exactly what would be registered on the blockchain.
+ *
+ * This class should be used by the emulator only.
+ *
+ * @author jjos
+ */
+public class CompiledContract implements Machine.Api {
+
+	/**
+	 * Maximum number of steps on a single block, a machine reaching this limit
+	 * continues on the next block.
+	 */
+	public static final long MAX_STEPS = 1000000L;
+
+	final Emulator emu;
+	final Address address;
+	final Address creator;
+	final Timestamp creation;
+	final long activationFee;
+	final Compiler compiler;
+	final Machine machine;
+	final Profile profile;
+
+	long sleepUntil;
+	long previousBalance;
+	boolean received;
+
+	CompiledContract(Emulator emu, Compiler compiler, Transaction tx) {
+		this.emu = emu;
+		this.compiler = compiler;
+		this.address = tx.receiver;
+		this.creator = tx.sender;
+		this.activationFee = tx.amount;
+		this.creation = new Timestamp(emu.getCurrentBlock().getHeight(), 0);
+		this.machine = new Machine(compiler.getCode(), compiler.getDataPages(), this);
+		if (compiler.getData() != null)
+			machine.setData(compiler.getData());
+		this.profile = new Profile(compiler);
+		machine.setProfile(profile);
+	}
+
+	/**
+	 * Copies the given contract, with its machine state, to another emulator.
+	 */
+	CompiledContract(Emulator emu, CompiledContract from, Address address, Address creator, Timestamp creation) {
+		this.emu = emu;
+		this.compiler = from.compiler;
+		this.address = address;
+		this.creator = creator;
+		this.activationFee = from.activationFee;
+		this.creation = creation;
+		this.machine = from.machine.copy(this);
+		this.profile = from.profile.copy();
+		machine.setProfile(profile);
+		this.sleepUntil = from.sleepUntil;
+		this.previousBalance = from.previousBalance;
+		this.received = from.received;
+	}
+
+	/**
+	 * Runs the machine for the current block, if it should run.
+	 *
+	 * @return true if the machine was activated
+	 */
+	boolean run() {
+		boolean hasNewTx = received;
+		received = false;
+
+		switch (machine.getState()) {
+		case Machine.STATE_DEAD:
+			return false;
+		case Machine.STATE_FINISHED:
+		case Machine.STATE_STOPPED:
+			if (!hasNewTx)
+				return false;
+			break;
+		case Machine.STATE_SLEEPING:
+			if (emu.getCurrentBlock().height < sleepUntil)
+				return false;
+			break;
+		default:
+			break;
+		}
+
+		long affordableSteps = address.balance / Contract.STEP_FEE;
+		if (affordableSteps == 0) {
+			machine.freeze();
+			return false;
+		}
+		long stepsBefore = machine.getSteps();
+		int state = machine.run(Math.min(MAX_STEPS, affordableSteps));
+		long steps = machine.getSteps() - stepsBefore;
+
+		address.balance -= steps * Contract.STEP_FEE;
+		profile.activation(steps);
+		if (state == Machine.STATE_RUNNING && steps == affordableSteps)
+			machine.freeze();
+		else if (state == Machine.STATE_SLEEPING)
+			sleepUntil = emu.getCurrentBlock().height + machine.getSleepBlocks();
+		previousBalance = address.balance;
+		return true;
+	}
+
+	/**
+	 * @return the compiled contract
+	 */
+	public Compiler getCompiler() {
+		return compiler;
+	}
+
+	/**
+	 * @return the machine running this contract
+	 */
+	public Machine getMachine() {
+		return machine;
+	}
+
+	/**
+	 * @return the execution profile, with the steps spent by method and by source
+	 *         line
+	 */
+	public Profile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * @return the activation fee
+	 */
+	public long getActivationFee() {
+		return activationFee;
+	}
+
+	/**
+	 * @return the current value for the given field name
+	 */
+	public long getFieldValue(String name) {
+		return compiler.getField(name).getValue(machine.getData());
+	}
+
+	@EmulatorWarning
+	public String getFieldValues() {
+		String ret = "<html>";
+		for (bt.compiler.Field f : compiler.getFields()) {
+			ret += "<b>" + f.getName() + "</b> = " + f.getValue(machine.getData()) + "<br>";
+		}
+		return ret;
+	}
+
+	@Override
+	public long getBlockTimestamp() {
+		return new Timestamp(emu.getCurrentBlock().getHeight(), 0).value;
+	}
+
+	@Override
+	public long getCreationTimestamp() {
+		return creation.value;
+	}
+
+	@Override
+	public long getLastBlockTimestamp() {
+		return new Timestamp(emu.getPrevBlock().getHeight(), 0).value;
+	}
+
+	@Override
+	public long[] getLastBlockHash() {
+		return emu.getPrevBlock().hash.value.clone();
+	}
+
+	@Override
+	public long getTxAfterTimestamp(long timestamp) {
+		Transaction tx = emu.readTxAfter(address, new Timestamp(timestamp >> 32, timestamp & 0xFFFFFFFFL));
+		return tx == null ? 0L : tx.id;
+	}
+
+	@Override
+	public long getTxType(long txId) {
+		Transaction tx = emu.getTx(txId);
+		return tx == null ? 0L : tx.type;
+	}
+
+	@Override
+	public long getTxAmount(long txId) {
+		Transaction tx = emu.getTx(txId);
+		return tx == null ? 0L : tx.getAmount();
+	}
+
+	@Override
+	public long getTxTimestamp(long txId) {
+		Transaction tx = emu.getTx(txId);
+		return tx == null ? 0L : tx.ts.value;
+	}
+
+	@Override
+	public long getTxRandomId(long txId) {
+		Transaction tx = emu.getTx(txId);
+		if (tx == null)
+			return 0L;
+		return Contract.performSHA256_(Register.newInstance(tx.id, tx.block.hash.value[0], 0, 0)).getValue1();
+	}
+
+	@Override
+	public long[] getTxMessage(long txId) {
+		Transaction tx = emu.getTx(txId);
+		if (tx == null || tx.msg == null)
+			return new long[4];
+		if (tx.msg.method == null)
+			return tx.msg.value.clone();
+
+		// a method call from the emulator, encode it as a real message
+		Method m = compiler.getMethod(tx.msg.method.getName());
+		if (m == null)
+			return new long[4];
+		ArrayList<Object> args = new ArrayList<>();
+		for (int i = 0; tx.msg.args != null && i < tx.msg.args.length && tx.msg.args[i] != null; i++) {
+			args.add(tx.msg.args[i]);
+		}
+		ByteBuffer b = ByteBuffer.wrap(BT.callMethodMessage(m, args.toArray()));
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		long[] ret = new long[4];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = b.getLong(i * 8);
+		}
+		return ret;
+	}
+
+	@Override
+	public long getTxSender(long txId) {
+		Transaction tx = emu.getTx(txId);
+		return tx == null ? 0L : tx.sender.id;
+	}
+
+	@Override
+	public long getCreator() {
+		return creator.id;
+	}
+
+	@Override
+	public long getCurrentBalance() {
+		return address.balance;
+	}
+
+	@Override
+	public long getPreviousBalance() {
+		return previousBalance;
+	}
+
+	@Override
+	public void sendAmount(long amount, long receiver) {
+		emu.send(address, emu.getAddress(receiver), amount);
+	}
+
+	@Override
+	public void sendMessage(long[] message, long receiver) {
+		emu.send(address, emu.getAddress(receiver), 0,
+				Register.newInstance(message[0], message[1], message[2], message[3]));
+	}
+}
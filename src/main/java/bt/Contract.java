@@ -5,10 +5,6 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.Semaphore;
-
-import signumj.crypto.SignumCrypto;
-import signumj.entity.SignumID;
 
 /**
  * The BlockTalk smart contract abstract class.
@@ -25,7 +21,7 @@ import signumj.entity.SignumID;
  * @author jjos
  *
  */
-public abstract class Contract {
+public abstract class Contract implements Cloneable {
 
 	public final static long ONE_BURST = 100000000L;
 	public final static long FEE_QUANT = 735000L;
@@ -38,13 +34,13 @@ public abstract class Contract {
 	Transaction currentTx;
 	long activationFee;
 
-	// Thread stuff to emulate sleep functions
-	Semaphore semaphore = new Semaphore(1);
-	boolean running;
+	// Block until which this contract is sleeping (emulator only)
 	Timestamp sleepUntil;
+	// The emulator running this contract (emulator only)
+	Emulator emu;
 
 	protected Contract() {
-		Emulator emu = Emulator.getInstance();
+		emu = Emulator.getInstance();
 		setInitialVars(emu.curTx, new Timestamp(emu.getCurrentBlock().getHeight(), 0));
 	}
 
@@ -55,7 +51,7 @@ public abstract class Contract {
 	 * @return
 	 */
 	protected Address parseAddress(String rs) {
-		return Emulator.getInstance().getAddress(rs);
+		return emu.getAddress(rs);
 	}
 	
 	/**
@@ -64,7 +60,7 @@ public abstract class Contract {
 	 * @return the address
 	 */
 	protected Address getAddress(long id) {
-		return Emulator.getInstance().getAddress(SignumCrypto.getInstance().rsEncode(SignumID.fromLong(id)));
+		return emu.getAddress(id);
 	}
 
 	/**
@@ -86,7 +82,7 @@ public abstract class Contract {
 	 * @param receiver
 	 */
 	protected void sendAmount(long amount, Address receiver) {
-		Emulator.getInstance().send(address, receiver, amount);
+		emu.send(address, receiver, amount);
 	}
 
 	/**
@@ -101,7 +97,7 @@ public abstract class Contract {
 	 * @param receiver the address
 	 */
 	protected void sendMessage(String message, Address receiver) {
-		Emulator.getInstance().send(address, receiver, 0, message);
+		emu.send(address, receiver, 0, message);
 	}
 
 	/**
@@ -115,7 +111,7 @@ public abstract class Contract {
 	 * @param receiver the address
 	 */
 	protected void sendMessage(Register message, Address receiver) {
-		Emulator.getInstance().send(address, receiver, 0, message);
+		emu.send(address, receiver, 0, message);
 	}
 	
 	/**
@@ -129,7 +125,7 @@ public abstract class Contract {
 	 * @param receiver the address
 	 */
 	protected void sendMessage(long message, Address receiver) {
-		Emulator.getInstance().send(address, receiver, 0, Register.newInstance(message, 0, 0, 0));
+		emu.send(address, receiver, 0, Register.newInstance(message, 0, 0, 0));
 	}
 	
 	/**
@@ -144,7 +140,7 @@ public abstract class Contract {
 	 * @param receiver the address
 	 */
 	protected void sendMessage(long message, long message2, Address receiver) {
-		Emulator.getInstance().send(address, receiver, 0, Register.newInstance(message, message2, 0, 0));
+		emu.send(address, receiver, 0, Register.newInstance(message, message2, 0, 0));
 	}
 	
 	/**
@@ -161,7 +157,7 @@ public abstract class Contract {
 	 * @param receiver the address
 	 */
 	protected void sendMessage(long message, long message2, long message3, long message4, Address receiver) {
-		Emulator.getInstance().send(address, receiver, 0, Register.newInstance(message, message2, message3, message4));
+		emu.send(address, receiver, 0, Register.newInstance(message, message2, message3, message4));
 	}
 
 	/**
@@ -194,7 +190,7 @@ public abstract class Contract {
 	 * @return
 	 */
 	protected Transaction getTxAfterTimestamp(Timestamp ts) {
-		return Emulator.getInstance().getTxAfter(address, ts);
+		return emu.readTxAfter(address, ts);
 	}
 
 	/**
@@ -229,35 +225,35 @@ public abstract class Contract {
 	 * @return the block hash of the previous block (part 1 of 4)
 	 */
 	protected Register getPrevBlockHash() {
-		return Emulator.getInstance().getPrevBlock().hash;
+		return emu.getPrevBlock().hash;
 	}
 
 	/**
 	 * @return the first part of the previous block hash
 	 */
 	protected long getPrevBlockHash1() {
-		return Emulator.getInstance().getPrevBlock().hash.getValue1();
+		return emu.getPrevBlock().hash.getValue1();
 	}
 
 	/**
 	 * @return the timestamp of the previous block
 	 */
 	protected Timestamp getPrevBlockTimestamp() {
-		return new Timestamp(Emulator.getInstance().getPrevBlock().getHeight(), 0);
+		return new Timestamp(emu.getPrevBlock().getHeight(), 0);
 	}
 
 	/**
 	 * @return the timestamp of the block being processed
 	 */
 	protected Timestamp getBlockTimestamp() {
-		return new Timestamp(Emulator.getInstance().getCurrentBlock().getHeight(), 0);
+		return new Timestamp(emu.getCurrentBlock().getHeight(), 0);
 	}
 	
 	/**
 	 * @return the timestamp of the block being processed
 	 */
 	protected long getBlockHeight() {
-		return Emulator.getInstance().getCurrentBlock().getHeight();
+		return emu.getCurrentBlock().getHeight();
 	}
 
 	/**
@@ -331,10 +327,19 @@ public abstract class Contract {
 
 	/**
 	 * Sleeps until the contract receives a new transaction.
+	 * 
+	 * On the emulator the contract is woken up on the block forging the next
+	 * transaction it receives, which is then processed as usual.
 	 */
 	protected void sleepUntilNextTx() {
-		// FIXME: on emulator we will sleep for one block
-		sleep(0);
+		if(address.coroutine == null)
+			throw new IllegalStateException("Contract is not running as a suspendable code");
+
+		address.wakeOnTx = true;
+		address.setSleeping(true);
+		// hand the control back to the emulator until a transaction arrives
+		address.coroutine.suspend();
+		address.setSleeping(false);
 	}
 
 	/**
@@ -343,16 +348,16 @@ public abstract class Contract {
 	 * @param nblocks number of blocks to sleep
 	 */
 	protected void sleep(long nblocks) {
-		if(nblocks <= 0)
-			sleepUntil = null;
-		else {
-			sleepUntil = new Timestamp(Emulator.getInstance().getCurrentBlock().height + nblocks, 0);
+		if(nblocks > 0) {
+			if(address.coroutine == null)
+				throw new IllegalStateException("Contract is not running as a suspendable code");
+
+			long height = emu.getCurrentBlock().height + nblocks;
+			sleepUntil = new Timestamp(height, 0);
 			address.setSleeping(true);
-			try {
-				semaphore.acquire();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			emu.wakeUps.add(new Emulator.WakeUp(height, address));
+			// hand the control back to the emulator until we are woken up
+			address.coroutine.suspend();
 		}
 		address.setSleeping(false);
 		sleepUntil = null;
@@ -376,14 +381,17 @@ public abstract class Contract {
 		this.creation = creation;
 		this.activationFee = tx.getAmount();
 		this.address.contract = this;
-		
-		// we acquire the semaphore in the creation process, it is released
-		// when finished by the emulator
+	}
+
+	/**
+	 * @return a shallow copy of this contract, no constructor is called
+	 */
+	Contract copy() {
 		try {
-			running = true;
-			semaphore.acquire();
-		} catch (InterruptedException e) {
-			running =false;
+			return (Contract) super.clone();
+		} catch (CloneNotSupportedException e) {
+			// Should never happen
+			throw new IllegalStateException(e);
 		}
 	}
 
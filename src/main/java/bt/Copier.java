@@ -0,0 +1,260 @@
+package bt;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Deep copy of the emulator state, used for snapshots and forks.
+ *
+ * Every address, block, transaction and contract is copied once, keeping the
+ * references between them. Objects are first created and then filled from a
+ * work queue, so long chains do not need deep recursion.
+ *
+ * Java contracts are copied field by field, with addresses, transactions,
+ * timestamps, registers and arrays copied as well and other values shared. The
+ * thread of a java contract sleeping in the middle of a method cannot be copied,
+ * so its copy is frozen: it keeps sleeping and is never woken up.
+ * Compiled contracts share the (immutable) compiler and copy the machine
+ * state.
+ *
+ * This class should be used by the emulator only.
+ *
+ * @author jjos
+ */
+final class Copier {
+
+	final Emulator to;
+	final IdentityHashMap<Object, Object> map = new IdentityHashMap<>();
+	final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+
+	private Copier(Emulator to) {
+		this.to = to;
+	}
+
+	/**
+	 * Copies the whole state of the given emulator on another one, replacing its
+	 * previous state.
+	 */
+	static void copy(Emulator from, Emulator to) {
+		Copier c = new Copier(to);
+
+		ArrayList<Block> blocks = new ArrayList<>(from.blocks.size());
+		for (Block b : from.blocks)
+			blocks.add(c.block(b));
+		ArrayList<Address> addresses = new ArrayList<>(from.addresses.size());
+		for (Address a : from.addresses)
+			addresses.add(c.address(a));
+		ArrayList<Transaction> txs = new ArrayList<>(from.txs.size());
+		for (Transaction t : from.txs)
+			txs.add(c.tx(t));
+
+		to.genesis = c.block(from.genesis);
+		to.currentBlock = c.block(from.currentBlock);
+		to.prevBlock = c.block(from.prevBlock);
+		to.curTx = c.tx(from.curTx);
+		to.blocks = blocks;
+		to.addresses = addresses;
+		to.txs = txs;
+		to.addressesByRs = new HashMap<>(from.addressesByRs.size() * 2);
+		for (Map.Entry<String, Address> e : from.addressesByRs.entrySet())
+			to.addressesByRs.put(e.getKey(), c.address(e.getValue()));
+		to.addressesById = new HashMap<>(from.addressesById.size() * 2);
+		for (Map.Entry<Long, Address> e : from.addressesById.entrySet())
+			to.addressesById.put(e.getKey(), c.address(e.getValue()));
+		to.txsById = new HashMap<>(from.txsById.size() * 2);
+		for (Map.Entry<Long, Transaction> e : from.txsById.entrySet())
+			to.txsById.put(e.getKey(), c.tx(e.getValue()));
+		to.contracts = new TreeSet<>(Emulator.BY_INDEX);
+		for (Address a : from.contracts)
+			to.contracts.add(c.address(a));
+		to.lastTxId = from.lastTxId;
+		to.seed = from.seed;
+		to.retention = from.retention;
+		to.prunedBlocks = from.prunedBlocks;
+		to.prunedTxs = from.prunedTxs;
+
+		while (!c.pending.isEmpty())
+			c.pending.poll().run();
+
+		// only suspended java contracts wait to be woken up, their copies are frozen
+		to.wakeUps = new PriorityQueue<>(Emulator.BY_WAKE_UP);
+
+		// the chain links, all blocks on the chain were already copied
+		for (Map.Entry<Object, Object> e : c.map.entrySet()) {
+			if (e.getKey() instanceof Block) {
+				Block b = (Block) e.getKey();
+				Block nb = (Block) e.getValue();
+				nb.prev = (Block) c.map.get(b.prev);
+				nb.next = (Block) c.map.get(b.next);
+			}
+		}
+	}
+
+	Address address(Address a) {
+		if (a == null)
+			return null;
+		Address ret = (Address) map.get(a);
+		if (ret == null) {
+			Address r = ret = new Address(a.id, a.balance, a.rsAddress);
+			// needed right away, addresses are sorted by index
+			r.index = a.index;
+			map.put(a, r);
+			pending.add(() -> {
+				r.sleeping = a.sleeping;
+				r.frozen = a.frozen || (a.coroutine != null && a.coroutine.isSuspended());
+				r.txCursor = a.txCursor;
+				r.txsReceived = new ArrayList<>(a.txsReceived.size());
+				for (Transaction t : a.txsReceived)
+					r.txsReceived.add(tx(t));
+				r.contract = contract(a.contract);
+				r.compiled = compiled(a.compiled);
+				// the coroutine is created again when needed
+			});
+		}
+		return ret;
+	}
+
+	Block block(Block b) {
+		if (b == null)
+			return null;
+		Block ret = (Block) map.get(b);
+		if (ret == null) {
+			Block r = ret = new Block(null);
+			map.put(b, r);
+			pending.add(() -> {
+				r.height = b.height;
+				r.hash = register(b.hash);
+				r.txs = new ArrayList<>(b.txs.size());
+				for (Transaction t : b.txs)
+					r.txs.add(tx(t));
+			});
+		}
+		return ret;
+	}
+
+	Transaction tx(Transaction t) {
+		if (t == null)
+			return null;
+		Transaction ret = (Transaction) map.get(t);
+		if (ret == null) {
+			Transaction r = ret = new Transaction(address(t.sender), address(t.receiver), t.amount, t.type,
+					timestamp(t.ts), register(t.msg));
+			map.put(t, r);
+			r.id = t.id;
+			r.msgString = t.msgString;
+			r.compiled = t.compiled;
+			r.block = block(t.block);
+		}
+		return ret;
+	}
+
+	Timestamp timestamp(Timestamp ts) {
+		if (ts == null)
+			return null;
+		Timestamp ret = (Timestamp) map.get(ts);
+		if (ret == null) {
+			ret = new Timestamp(0, 0);
+			ret.value = ts.value;
+			map.put(ts, ret);
+		}
+		return ret;
+	}
+
+	Register register(Register reg) {
+		if (reg == null)
+			return null;
+		Register ret = (Register) map.get(reg);
+		if (ret == null) {
+			Register r = ret = new Register();
+			map.put(reg, r);
+			System.arraycopy(reg.value, 0, r.value, 0, r.value.length);
+			r.msg = reg.msg;
+			r.method = reg.method;
+			r.args = (Object[]) value(reg.args);
+		}
+		return ret;
+	}
+
+	CompiledContract compiled(CompiledContract cc) {
+		if (cc == null)
+			return null;
+		CompiledContract ret = (CompiledContract) map.get(cc);
+		if (ret == null) {
+			ret = new CompiledContract(to, cc, address(cc.address), address(cc.creator), timestamp(cc.creation));
+			map.put(cc, ret);
+		}
+		return ret;
+	}
+
+	Contract contract(Contract c) {
+		if (c == null)
+			return null;
+		Contract ret = (Contract) map.get(c);
+		if (ret == null) {
+			Contract r = ret = c.copy();
+			map.put(c, r);
+			pending.add(() -> {
+				for (Class<?> clazz = c.getClass(); clazz != Object.class; clazz = clazz.getSuperclass()) {
+					for (Field f : clazz.getDeclaredFields()) {
+						if (Modifier.isStatic(f.getModifiers()))
+							continue;
+						try {
+							f.setAccessible(true);
+							f.set(r, value(f.get(c)));
+						} catch (ReflectiveOperationException | RuntimeException e) {
+							throw new IllegalStateException("Cannot copy " + clazz.getName() + "." + f.getName(), e);
+						}
+					}
+				}
+			});
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the copy of a contract field (or argument) value
+	 */
+	Object value(Object o) {
+		if (o == null)
+			return null;
+		if (o instanceof Address)
+			return address((Address) o);
+		if (o instanceof Transaction)
+			return tx((Transaction) o);
+		if (o instanceof Timestamp)
+			return timestamp((Timestamp) o);
+		if (o instanceof Register)
+			return register((Register) o);
+		if (o instanceof Block)
+			return block((Block) o);
+		if (o instanceof Contract)
+			return contract((Contract) o);
+		if (o instanceof Emulator)
+			return to;
+		if (o.getClass().isArray()) {
+			Object ret = map.get(o);
+			if (ret == null) {
+				int length = Array.getLength(o);
+				ret = Array.newInstance(o.getClass().getComponentType(), length);
+				map.put(o, ret);
+				if (o.getClass().getComponentType().isPrimitive())
+					System.arraycopy(o, 0, ret, 0, length);
+				else {
+					for (int i = 0; i < length; i++)
+						Array.set(ret, i, value(Array.get(o, i)));
+				}
+			}
+			return ret;
+		}
+		// immutable values and anything else is shared
+		return o;
+	}
+}
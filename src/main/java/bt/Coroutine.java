@@ -0,0 +1,175 @@
+package bt;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the code of a contract that may suspend itself (by sleeping).
+ *
+ * Java has no native continuations, so a sleeping contract keeps its stack on
+ * a thread. Every activation borrows a thread from a shared pool and gives it
+ * back as soon as the code finishes without sleeping, only a sleeping contract
+ * holds on to its thread until woken up or closed. Control is handed back and
+ * forth with the emulator in a strict way: only one of them runs at any given
+ * time, so the execution is as deterministic as running on the forging thread
+ * and no polling is involved.
+ *
+ * Contracts that never sleep do not use this class, they run directly on the
+ * forging thread, see {@link SleepScanner}.
+ *
+ * This class should be used by the emulator only.
+ *
+ * @author jjos
+ */
+class Coroutine {
+
+	private static final ExecutorService carriers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "coroutine");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final String name;
+	/** The thread running the task, set while it runs or is suspended */
+	private Thread thread;
+	private boolean running;
+	private boolean contractTurn;
+	private boolean suspended;
+	private boolean cancelled;
+
+	/**
+	 * Thrown on a suspended task when the coroutine is closed, so its stack
+	 * unwinds. An error, so the contract code does not catch it as an exception.
+	 */
+	private static final class Cancelled extends Error {
+		private static final long serialVersionUID = 1L;
+
+		Cancelled() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * @param name the name given to the thread while running a task
+	 */
+	Coroutine(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Runs the given task on a pooled thread, returning when it finishes or
+	 * suspends.
+	 *
+	 * @param task
+	 */
+	synchronized void run(Runnable task) {
+		if (cancelled)
+			throw new IllegalStateException("Coroutine already closed: " + name);
+		if (running)
+			throw new IllegalStateException("Coroutine already running a task: " + name);
+		running = true;
+		carriers.execute(() -> carry(task));
+		handOff(true);
+	}
+
+	/**
+	 * Resumes a suspended task, returning when it finishes or suspends again.
+	 */
+	synchronized void resume() {
+		if (suspended)
+			handOff(true);
+	}
+
+	/**
+	 * @return true if the task was suspended and is waiting to be resumed
+	 */
+	synchronized boolean isSuspended() {
+		return suspended;
+	}
+
+	/**
+	 * Called from the contract code, hands the control back to the emulator and
+	 * blocks until resumed.
+	 */
+	synchronized void suspend() {
+		if (Thread.currentThread() != thread)
+			throw new IllegalStateException("Only the contract code can suspend itself");
+		if (cancelled)
+			throw new Cancelled();
+		suspended = true;
+		handOff(false);
+		suspended = false;
+		if (cancelled)
+			throw new Cancelled();
+	}
+
+	/**
+	 * Rethrows the given exception if caused by closing the coroutine, for the
+	 * code catching the exceptions of a reflective call to the contract.
+	 */
+	static void checkCancelled(Throwable ex) {
+		for (Throwable t = ex; t != null; t = t.getCause()) {
+			if (t instanceof Cancelled)
+				throw (Cancelled) t;
+		}
+	}
+
+	/**
+	 * Stops the coroutine, returning when its thread was given back. A suspended
+	 * task is woken up to unwind its stack without running the rest of the
+	 * contract code.
+	 */
+	synchronized void close() {
+		if (cancelled)
+			return;
+		cancelled = true;
+		if (suspended)
+			handOff(true);
+	}
+
+	/**
+	 * Gives the turn to the other side and waits for it to be given back. An
+	 * interrupt does not end the wait, otherwise both sides would run at the same
+	 * time, the interrupt status is restored after.
+	 */
+	private void handOff(boolean toContract) {
+		contractTurn = toContract;
+		notifyAll();
+		boolean interrupted = false;
+		while (contractTurn == toContract) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void carry(Runnable task) {
+		Thread carrier = Thread.currentThread();
+		String carrierName = carrier.getName();
+		carrier.setName(name);
+		synchronized (this) {
+			thread = carrier;
+		}
+		try {
+			task.run();
+		} catch (Cancelled ex) {
+			// closed while suspended, the stack is unwound
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		} finally {
+			carrier.setName(carrierName);
+			// do not leak an interrupt to the next task on this thread
+			Thread.interrupted();
+			synchronized (this) {
+				thread = null;
+				running = false;
+				contractTurn = false;
+				notifyAll();
+			}
+		}
+	}
+}
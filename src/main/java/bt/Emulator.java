@@ -1,9 +1,20 @@
 package bt;
 
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashSet;
-
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.function.LongConsumer;
+
+import bt.compiler.Compiler;
+import signumj.crypto.SignumCrypto;
 import signumj.entity.SignumAddress;
+import signumj.entity.SignumID;
 
 
 /**
@@ -14,7 +25,12 @@ import signumj.entity.SignumAddress;
  */
 public class Emulator {
 
-	static final Emulator instance = new Emulator();
+	static final Comparator<Address> BY_INDEX = (a, b) -> Integer.compare(a.index, b.index);
+	static final Comparator<WakeUp> BY_WAKE_UP = Comparator
+			.<WakeUp>comparingLong(w -> w.height).thenComparing(w -> w.address, BY_INDEX);
+
+	static final Emulator instance = new Emulator(Long.getLong("bt.emulator.seed", randomSeed()));
+	private static final ThreadLocal<Emulator> current = new ThreadLocal<>();
 
 	Block genesis;
 	Transaction curTx;
@@ -28,6 +44,32 @@ public class Emulator {
 	ArrayList<Block> blocks = new ArrayList<Block>();
 	ArrayList<Transaction> txs = new ArrayList<Transaction>();
 	ArrayList<Address> addresses = new ArrayList<Address>();
+	HashMap<String, Address> addressesByRs = new HashMap<>();
+	HashMap<Long, Address> addressesById = new HashMap<>();
+	/** Addresses with a contract, on the address creation order */
+	TreeSet<Address> contracts = new TreeSet<>(BY_INDEX);
+	HashMap<Long, Transaction> txsById = new HashMap<>();
+	/**
+	 * Java contracts sleeping, by the block they should wake up, also those
+	 * waiting for a transaction once it arrives
+	 */
+	PriorityQueue<WakeUp> wakeUps = new PriorityQueue<>(BY_WAKE_UP);
+	long lastTxId;
+
+	/** Seed for the block hashes */
+	long seed;
+
+	/** Number of recent blocks kept, 0 to keep all */
+	int retention;
+	long prunedBlocks;
+	long prunedTxs;
+
+	int lastForgeTxs;
+	long lastForgeNanos;
+	long forgedTxs;
+	long forgeNanos;
+	long activations;
+	LongConsumer activationListener;
 
 	public ArrayList<Block> getBlocks() {
 		return blocks;
@@ -41,7 +83,57 @@ public class Emulator {
 		return addresses;
 	}
 
-	Emulator() {
+	/**
+	 * Sets the number of recent blocks to keep, older blocks and transactions are
+	 * pruned after every block forged so memory does not grow with the chain.
+	 * 
+	 * Transactions still pending and the ones a contract did not read yet (after
+	 * the last timestamp it asked for) are kept. The
+	 * balances and contract states are on the addresses, so they are not affected.
+	 * 
+	 * @param blocks the number of blocks to keep, 0 (default) to keep all
+	 */
+	public void setRetention(int blocks) {
+		this.retention = blocks;
+	}
+
+	public int getRetention() {
+		return retention;
+	}
+
+	/**
+	 * @return the number of blocks pruned so far
+	 */
+	public long getPrunedBlocks() {
+		return prunedBlocks;
+	}
+
+	/**
+	 * @return the number of transactions pruned so far
+	 */
+	public long getPrunedTxs() {
+		return prunedTxs;
+	}
+
+	/**
+	 * Creates a new emulator, independent from the default one.
+	 * 
+	 * Different emulators can run concurrently, each on its own thread.
+	 */
+	public Emulator() {
+		this(randomSeed());
+	}
+
+	/**
+	 * Creates a new emulator with the given seed for the block hashes.
+	 * 
+	 * Emulators with the same seed and the same operations are bit-for-bit
+	 * reproducible, including the block hashes used as random numbers.
+	 * 
+	 * @param seed the seed
+	 */
+	public Emulator(long seed) {
+		this.seed = seed;
 		currentBlock = genesis = new Block(null);
 		try {
 			forgeBlock();
@@ -51,12 +143,92 @@ public class Emulator {
 		}
 	}
 
-	public Address findAddress(String rs) {
+	private static long randomSeed() {
+		return new SecureRandom().nextLong();
+	}
+
+	/**
+	 * @return the seed of the block hashes, a run can be reproduced by using the
+	 *         same seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Sets the seed of the block hashes, computing the hashes of the blocks kept
+	 * again. Should be called before running any contract.
+	 * 
+	 * @param seed the seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		for (Block b : blocks)
+			b.computeHash(seed);
+	}
+
+	/**
+	 * Creates a copy of the given emulator, not sharing any state with it.
+	 */
+	Emulator(Emulator from) {
+		Copier.copy(from, this);
+	}
+
+	/**
+	 * Takes a snapshot of the current state, to be restored or forked later.
+	 * 
+	 * A java contract sleeping in the middle of a method cannot be copied with
+	 * its thread, so its copy is frozen (see {@link Address#isFrozen()}): it keeps
+	 * its fields and balance, but sleeps forever and its transactions stay
+	 * pending. All other contracts, including the compiled ones, are not affected.
+	 * 
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Restores this emulator to the given snapshot, the snapshot can be restored
+	 * again later. The java contracts sleeping on the replaced state are stopped,
+	 * see {@link #close()}.
+	 */
+	public void restore(Snapshot snapshot) {
+		close();
+		Copier.copy(snapshot.state, this);
+	}
+
+	/**
+	 * Creates a new emulator with a copy of the current state, independent from
+	 * this one. Sleeping java contracts are frozen on the copy, as on
+	 * {@link #snapshot()}.
+	 * 
+	 * If java contracts can sleep on the fork, it should be closed when no longer
+	 * used, see {@link #close()}.
+	 * 
+	 * @return the new emulator
+	 */
+	public Emulator fork() {
+		return new Emulator(this);
+	}
+
+	/**
+	 * Stops the java contracts sleeping in the middle of a method, they do not
+	 * continue, and gives their threads back. Other activations give their
+	 * threads back as soon as they finish, so this is only needed for forks and
+	 * other emulators no longer used while contracts are sleeping.
+	 */
+	public void close() {
 		for (Address a : addresses) {
-			if (a.rsAddress.equals(rs))
-				return a;
+			if (a.coroutine != null) {
+				a.coroutine.close();
+				a.coroutine = null;
+			}
 		}
-		return null;
+	}
+
+	public Address findAddress(String rs) {
+		return addressesByRs.get(rs);
 	}
 
 	public Address getAddress(String rs) {
@@ -69,16 +241,59 @@ public class Emulator {
 			SignumAddress ad = SignumAddress.fromRs(rs);
 			id = ad.getSignedLongId();
 		} catch (Exception e) {
-			// not a valid address, do nothing on the emulator
+			// not a valid address, derive an id from the name so compiled code can tell them apart
+			SignumCrypto crypto = SignumCrypto.getInstance();
+			id = crypto.hashToId(crypto.getSha256().digest(rs.getBytes(StandardCharsets.UTF_8))).getSignedLongId();
 		}
 		ret = new Address(id, 0, rs);
+		ret.index = addresses.size();
 		addresses.add(ret);
+		addressesByRs.put(rs, ret);
+		addressesById.putIfAbsent(id, ret);
 
 		return ret;
 	}
 
+	/**
+	 * @param id the signed long id
+	 * @return the address for the given id, a new one is created if not found
+	 */
+	public Address getAddress(long id) {
+		Address ret = addressesById.get(id);
+		if (ret != null)
+			return ret;
+		return getAddress(SignumCrypto.getInstance().rsEncode(SignumID.fromLong(id)));
+	}
+
+	/**
+	 * @return the transaction with the given id or null if not found
+	 */
+	public Transaction getTx(long id) {
+		return txsById.get(id);
+	}
+
+	/**
+	 * @return the emulator bound to the current thread or the default one
+	 */
 	public static Emulator getInstance() {
-		return instance;
+		Emulator ret = current.get();
+		return ret != null ? ret : instance;
+	}
+
+	/**
+	 * Binds the given emulator to the current thread, so
+	 * {@link #getInstance()} returns it.
+	 * 
+	 * Contracts are bound to the emulator running them, so this is only needed
+	 * for code using {@link #getInstance()} outside of a contract.
+	 * 
+	 * @param emu the emulator or null to use the default one
+	 */
+	public static void setInstance(Emulator emu) {
+		if (emu == null)
+			current.remove();
+		else
+			current.set(emu);
 	}
 
 	public void send(Address from, Address to, long amount) {
@@ -86,28 +301,139 @@ public class Emulator {
 	}
 
 	public void send(Address from, Address to, long amount, String message) {
-		Transaction t = new Transaction(from, to, amount, Transaction.TYPE_PAYMENT,
-				new Timestamp(currentBlock.height, currentBlock.txs.size()), message);
-		currentBlock.txs.add(t);
-		t.block = currentBlock;
-		txs.add(t);
+		addTx(newTx(from, to, amount, message));
 	}
 
 	public void send(Address from, Address to, long amount, Register message) {
-		Transaction t = new Transaction(from, to, amount,
-				message.method != null ? Transaction.TYPE_METHOD_CALL : Transaction.TYPE_PAYMENT,
-				new Timestamp(currentBlock.height, currentBlock.txs.size()), message);
-		currentBlock.txs.add(t);
-		t.block = currentBlock;
-		txs.add(t);
+		addTx(newTx(from, to, amount, message));
+	}
+
+	private static Transaction newTx(Address from, Address to, long amount, String message) {
+		return new Transaction(from, to, amount, Transaction.TYPE_PAYMENT, null, message);
+	}
+
+	private static Transaction newTx(Address from, Address to, long amount, Register message) {
+		return new Transaction(from, to, amount,
+				message.method != null ? Transaction.TYPE_METHOD_CALL : Transaction.TYPE_PAYMENT, null, message);
+	}
+
+	/**
+	 * A sleeping java contract and the block height it wakes up, the entries are
+	 * immutable so the {@link #wakeUps} queue order cannot change while queued.
+	 */
+	static final class WakeUp {
+		final long height;
+		final Address address;
+
+		WakeUp(long height, Address address) {
+			this.height = height;
+			this.address = address;
+		}
+	}
+
+	/**
+	 * A set of transactions to be added to the mempool at once.
+	 * 
+	 * @see Emulator#batch(int)
+	 */
+	public class Batch {
+		final ArrayList<Transaction> txs;
+
+		Batch(int expected) {
+			txs = new ArrayList<>(expected);
+		}
+
+		public Batch send(Address from, Address to, long amount) {
+			return send(from, to, amount, (String) null);
+		}
+
+		public Batch send(Address from, Address to, long amount, String message) {
+			txs.add(newTx(from, to, amount, message));
+			return this;
+		}
+
+		public Batch send(Address from, Address to, long amount, Register message) {
+			txs.add(newTx(from, to, amount, message));
+			return this;
+		}
+
+		/**
+		 * @return the number of transactions on this batch
+		 */
+		public int size() {
+			return txs.size();
+		}
+
+		/**
+		 * Adds all transactions to the block being forged, on the order they were
+		 * given, and clears this batch so it can be used again.
+		 */
+		public void submit() {
+			currentBlock.txs.ensureCapacity(currentBlock.txs.size() + txs.size());
+			Emulator.this.txs.ensureCapacity(Emulator.this.txs.size() + txs.size());
+			for (Transaction t : txs)
+				addTx(t);
+			txs.clear();
+		}
+	}
+
+	/**
+	 * Starts a batch of transactions, faster than calling send for every one
+	 * when adding thousands of transactions.
+	 * 
+	 * @param expected the expected number of transactions, to size the storage
+	 * @return the new batch, transactions are only added when submitted
+	 */
+	public Batch batch(int expected) {
+		return new Batch(expected);
 	}
 
 	public void createConctract(Address from, Address to, Class<? extends Contract> contractClass, long actFee) {
 		Transaction t = new Transaction(from, to, actFee, Transaction.TYPE_AT_CREATE,
 				new Timestamp(currentBlock.height, currentBlock.txs.size()), contractClass.getName());
+		addTx(t);
+	}
+
+	/**
+	 * Creates a contract that runs the given compiled code instead of the java
+	 * methods.
+	 * 
+	 * @param from     the creator
+	 * @param to       the contract address
+	 * @param compiled the compiled and linked contract
+	 * @param actFee   the activation fee
+	 */
+	public void createConctract(Address from, Address to, Compiler compiled, long actFee) {
+		Transaction t = new Transaction(from, to, actFee, Transaction.TYPE_AT_CREATE,
+				new Timestamp(currentBlock.height, currentBlock.txs.size()), compiled.getClassName());
+		t.compiled = compiled;
+		addTx(t);
+	}
+
+	private void addTx(Transaction t) {
+		if (t.ts == null)
+			t.ts = new Timestamp(currentBlock.height, currentBlock.txs.size());
+		// ids should not collide with the account ones, so we mix the counter bits
+		t.id = mix(++lastTxId);
 		currentBlock.txs.add(t);
 		t.block = currentBlock;
 		txs.add(t);
+		txsById.put(t.id, t);
+		// timestamps only grow, so the receiver index stays sorted
+		if (t.receiver != null && t.type != Transaction.TYPE_AT_CREATE) {
+			t.receiver.txsReceived.add(t);
+			if (t.receiver.wakeOnTx) {
+				// woken up when forging this transaction
+				t.receiver.wakeOnTx = false;
+				wakeUps.add(new WakeUp(currentBlock.height, t.receiver));
+			}
+		}
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
 	}
 	
 	public void airDrop(String address, long amount) {
@@ -120,23 +446,21 @@ public class Emulator {
 	}
 
 	public void forgeBlock() throws Exception {
+		long start = System.nanoTime();
+		int ntxs = currentBlock.txs.size();
 
 		// Transactions to postpone due to sleeping contracts
 		ArrayList<Transaction> pendTxs = new ArrayList<>();
-		Timestamp curBlockTs = new Timestamp(currentBlock.height, 0);
 
-		// check for sleeping contracts
-		for(Address ad : addresses){
-			if(ad.contract==null)
-				continue;
-
-			Contract c = ad.contract;
-			// sleeping contract
-			if(c.sleepUntil!=null && c.sleepUntil.le(curBlockTs)) {
-				// release to resume execution
-				c.semaphore.release();
-				Thread.sleep(100);
-			}
+		// wake up the contracts due on this block, only those are touched
+		while (!wakeUps.isEmpty() && wakeUps.peek().height <= currentBlock.height) {
+			Address ad = wakeUps.poll().address;
+			if (ad.coroutine == null)
+				continue; // closed
+			// resume the execution, returns when it finishes or sleeps again
+			long activationStart = System.nanoTime();
+			ad.coroutine.resume();
+			activation(activationStart);
 		}
 
 		// process all pending transactions
@@ -157,49 +481,46 @@ public class Emulator {
 				tx.receiver.balance += amount;
 			}
 
-			if (tx.type == Transaction.TYPE_AT_CREATE) {
+			if (tx.type == Transaction.TYPE_AT_CREATE && tx.compiled != null) {
+				tx.receiver.compiled = new CompiledContract(this, tx.compiled, tx);
+			}
+			else if (tx.type == Transaction.TYPE_AT_CREATE) {
 				// set the current creator variables
 				curTx = tx;
-				
-				Thread ct = new Thread() {
-					public void run() {
-						// check the message arguments to call a specific function
-						try {
-							Object ocontract = Class.forName(tx.msgString).getConstructor().newInstance();
-							if (ocontract instanceof Contract) {
-								Contract c = (Contract) ocontract;
-								c.running = false;
-								tx.receiver.setSleeping(false);
-							}
-						} catch (Exception ex) {
-							ex.printStackTrace();
-						}
+
+				Class<?> contractClass = Class.forName(tx.msgString);
+				execute(tx.receiver, contractClass, () -> {
+					try {
+						Object ocontract = contractClass.getConstructor().newInstance();
+						if (ocontract instanceof Contract)
+							tx.receiver.setSleeping(false);
+					} catch (Exception ex) {
+						Coroutine.checkCancelled(ex);
+						ex.printStackTrace();
 					}
-				};
-				
-				ct.start();
-				while(tx.receiver.contract == null && !tx.receiver.isSleeping()){
-					Thread.sleep(10);
-				}
-				if(!tx.receiver.isSleeping()) {
-					tx.receiver.contract.semaphore.release();
-					tx.receiver.contract.running = false;
-				}
+				});
 			}
+			if (tx.type == Transaction.TYPE_AT_CREATE && (tx.receiver.contract != null || tx.receiver.compiled != null))
+				contracts.add(tx.receiver);
 		}
 
+		currentBlock.computeHash(seed);
 		blocks.add(currentBlock);
 		prevBlock = currentBlock;
 		currentBlock = new Block(prevBlock);
 		currentBlock.txs.addAll(pendTxs);
 
-		HashSet<Contract> contractsExecuted = new HashSet<>();
+		LinkedHashSet<Contract> contractsExecuted = new LinkedHashSet<>();
 		// run all contracts, operations will be pending to be forged in the next block
 		for (Transaction tx : prevBlock.txs) {
 
 			if (tx.receiver == null || tx.receiver.isSleeping())
 				continue;
 
+			CompiledContract compiled = tx.receiver.compiled;
+			if (compiled != null && tx.type != Transaction.TYPE_AT_CREATE && tx.amount >= compiled.activationFee)
+				compiled.received = true;
+
 			// Check for contract
 			Contract c = tx.receiver.contract;
 			if (c != null && tx.type != Transaction.TYPE_AT_CREATE && tx.amount >= c.activationFee) {
@@ -207,64 +528,236 @@ public class Emulator {
 				c.setCurrentTx(tx);
 				contractsExecuted.add(c);
 
-				Thread ct = new Thread() {
-					public void run() {
-						// check the message arguments to call a specific function
-						boolean invoked = false;
-						try {
-							if (tx.type == Transaction.TYPE_METHOD_CALL) {
-								invoked = true;
-								if (tx.msg.args[0] == null)
-									tx.msg.method.invoke(c);
-								else if (tx.msg.args[1] == null)
-									tx.msg.method.invoke(c, tx.msg.args[0]);
-								else if (tx.msg.args[2] == null)
-									tx.msg.method.invoke(c, tx.msg.args[0], tx.msg.args[1]);
-								else
-									tx.msg.method.invoke(c, tx.msg.args[0], tx.msg.args[1], tx.msg.args[2]);
-							}
-						} catch (Exception ex) {
-							ex.printStackTrace();
-							invoked = false;
+				// Contracts run one by one, since there should be no parallel execution
+				execute(tx.receiver, c.getClass(), () -> {
+					// check the message arguments to call a specific function
+					boolean invoked = false;
+					try {
+						if (tx.type == Transaction.TYPE_METHOD_CALL) {
+							invoked = true;
+							if (tx.msg.args[0] == null)
+								tx.msg.method.invoke(c);
+							else if (tx.msg.args[1] == null)
+								tx.msg.method.invoke(c, tx.msg.args[0]);
+							else if (tx.msg.args[2] == null)
+								tx.msg.method.invoke(c, tx.msg.args[0], tx.msg.args[1]);
+							else
+								tx.msg.method.invoke(c, tx.msg.args[0], tx.msg.args[1], tx.msg.args[2]);
 						}
-						if (!invoked) // invoke the default method "txReceived"
-							c.txReceived();
-						c.running = false;
+					} catch (Exception ex) {
+						Coroutine.checkCancelled(ex);
+						ex.printStackTrace();
+						invoked = false;
 					}
-				};
-
-				// Run the contract on a different thread so that we can emulate the sleep function.
-				// However, we always wait for it to finish one by one since there should be no
-				// parallel execution.
-				c.semaphore.acquire();
-				c.running = true;
-				ct.start();
-				while(c.running && c.sleepUntil==null){
-					Thread.sleep(10);
-				}
-				if(c.sleepUntil==null)
-					c.semaphore.release();
+					if (!invoked) // invoke the default method "txReceived"
+						c.txReceived();
+				});
 			}
 		}
 		// run the block finish method on all contracts that received transactions
 		for(Contract c : contractsExecuted){
-			if(c.sleepUntil==null)
-				c.blockFinished();
+			if(!c.address.isSleeping())
+				execute(c.address, c.getClass(), c::blockFinished);
+		}
+
+		// run the compiled contracts, they process all new transactions in a single run
+		for (Address ad : contracts) {
+			if (ad.compiled != null) {
+				long activationStart = System.nanoTime();
+				if (ad.compiled.run())
+					activation(activationStart);
+			}
 		}
+
+		if (retention > 0)
+			prune();
+
+		lastForgeTxs = ntxs;
+		lastForgeNanos = System.nanoTime() - start;
+		forgedTxs += ntxs;
+		forgeNanos += lastForgeNanos;
 	}
 
-	public Transaction getTxAfter(Address receiver, Timestamp ts) {
-		Block b = blocks.get(0);
-		while (b != null) {
-			for (int i = 0; i < b.txs.size(); i++) {
-				Transaction txi = b.txs.get(i);
-				if (txi.type != Transaction.TYPE_AT_CREATE && txi.receiver.equals(receiver)
-						&& !txi.getTimestamp().le(ts))
-					return txi;
+	/**
+	 * @return the number of transactions on the last block forged
+	 */
+	public int getLastForgeTxs() {
+		return lastForgeTxs;
+	}
+
+	/**
+	 * @return the time taken to forge the last block, in nanoseconds
+	 */
+	public long getLastForgeNanos() {
+		return lastForgeNanos;
+	}
+
+	/**
+	 * @return the transactions per second on the last block forged
+	 */
+	public double getLastForgeThroughput() {
+		return lastForgeNanos == 0 ? 0 : lastForgeTxs * 1e9 / lastForgeNanos;
+	}
+
+	/**
+	 * @return the transactions per second on all blocks forged
+	 */
+	public double getThroughput() {
+		return forgeNanos == 0 ? 0 : forgedTxs * 1e9 / forgeNanos;
+	}
+
+	/**
+	 * Removes the blocks older than the retention and their transactions, unless
+	 * still pending or not read by the receiver contract.
+	 */
+	void prune() {
+		int remove = blocks.size() - retention;
+		if (remove <= 0)
+			return;
+		long minHeight = blocks.get(remove).height;
+
+		IdentityHashMap<Transaction, Boolean> pinned = new IdentityHashMap<>();
+		for (int i = remove; i < blocks.size(); i++) {
+			for (Transaction t : blocks.get(i).txs)
+				pinned.put(t, true);
+		}
+		for (Transaction t : currentBlock.txs)
+			pinned.put(t, true);
+
+		// the receiver index is sorted, so only a prefix can be removed
+		IdentityHashMap<Transaction, Boolean> pruned = new IdentityHashMap<>();
+		for (Transaction t : txs) {
+			if (t.block.height >= minHeight)
+				break;
+			if (pinned.containsKey(t) || pruned.containsKey(t))
+				continue;
+			if (t.type == Transaction.TYPE_AT_CREATE || t.receiver == null) {
+				pruned.put(t, true);
+				continue;
+			}
+			ArrayList<Transaction> received = t.receiver.txsReceived;
+			int k = 0;
+			while (k < received.size()) {
+				Transaction r = received.get(k);
+				if (r.block.height >= minHeight || pinned.containsKey(r) || r.ts.value > t.receiver.txCursor)
+					break;
+				pruned.put(r, true);
+				k++;
+			}
+			received.subList(0, k).clear();
+			if (k == 0)
+				pinned.put(t, true);
+		}
+
+		txs.removeIf(t -> pruned.containsKey(t));
+		for (Transaction t : pruned.keySet())
+			txsById.remove(t.id);
+		prunedTxs += pruned.size();
+
+		// unlink the old blocks, so they are not reachable from the kept ones
+		for (int i = 0; i < remove; i++) {
+			Block b = blocks.get(i);
+			b.txs.clear();
+			b.prev = b.next = null;
+		}
+		blocks.get(remove).prev = null;
+		blocks.subList(0, remove).clear();
+		genesis = null;
+		prunedBlocks += remove;
+	}
+
+	/**
+	 * Runs the given contract code for the given address.
+	 * 
+	 * Code is executed on the forging thread unless the contract can sleep, in
+	 * which case it runs on the contract {@link Coroutine} and this method returns
+	 * as soon as it finishes or goes to sleep.
+	 */
+	private void execute(Address ad, Class<?> contractClass, Runnable code) {
+		long start = System.nanoTime();
+		if (SleepScanner.canSleep(contractClass)) {
+			// coroutines are not copied by snapshots
+			if (ad.coroutine == null)
+				ad.coroutine = new Coroutine(ad.rsAddress);
+			ad.coroutine.run(bound(code));
+		} else {
+			try {
+				bound(code).run();
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		}
+		activation(start);
+	}
+
+	private void activation(long start) {
+		activations++;
+		if (activationListener != null)
+			activationListener.accept(System.nanoTime() - start);
+	}
+
+	/**
+	 * @return the number of contract activations so far (a java contract method
+	 *         call or a compiled contract run)
+	 */
+	public long getActivations() {
+		return activations;
+	}
+
+	/**
+	 * Sets a listener receiving the time, in nanoseconds, of every contract
+	 * activation.
+	 * 
+	 * @param listener the listener or null for none
+	 */
+	public void setActivationListener(LongConsumer listener) {
+		this.activationListener = listener;
+	}
+
+	/**
+	 * @return the given code running with this emulator bound to the thread
+	 */
+	private Runnable bound(Runnable code) {
+		return () -> {
+			Emulator previous = current.get();
+			current.set(this);
+			try {
+				code.run();
+			} finally {
+				setInstance(previous);
 			}
-			b = b.next;
+		};
+	}
+
+	/**
+	 * @return the first transaction (not a contract creation) received by the
+	 *         given address after the given timestamp, null if none
+	 */
+	public Transaction getTxAfter(Address receiver, Timestamp ts) {
+		ArrayList<Transaction> received = receiver.txsReceived;
+		if (ts == null)
+			return received.isEmpty() ? null : received.get(0);
+
+		// binary search, transactions are indexed on timestamp order
+		int low = 0, high = received.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (received.get(mid).ts.value <= ts.value)
+				low = mid + 1;
+			else
+				high = mid;
 		}
-		return null;
+		return low < received.size() ? received.get(low) : null;
+	}
+
+	/**
+	 * Same as {@link #getTxAfter(Address, Timestamp)}, but for a contract reading
+	 * its own transactions: the ones after the given timestamp are kept when
+	 * pruning.
+	 */
+	Transaction readTxAfter(Address receiver, Timestamp ts) {
+		receiver.txCursor = ts == null ? Long.MIN_VALUE : ts.value;
+		return getTxAfter(receiver, ts);
 	}
 
 	public Block getPrevBlock() {
@@ -0,0 +1,258 @@
+package bt;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import bt.compiler.Compiler;
+import bt.sample.AlwaysRunning;
+import bt.sample.TXCounter;
+
+/**
+ * Headless benchmark for the emulator.
+ *
+ * Drives a synthetic workload through {@link Emulator#forgeBlock()}: payments
+ * between users and to contracts (java and compiled), some with messages, plus
+ * contracts sleeping on every block. Reports blocks/s, transactions/s,
+ * activations/s, the activation latency percentiles and the allocation rate.
+ *
+ * Usage:
+ *
+ * <pre>
+ * EmulatorBenchmark [-blocks n] [-warmup n] [-txs n] [-users n] [-contracts n] [-compiled n]
+ *   [-sleeping n] [-contract class] [-share f] [-messages f] [-seed n]
+ * </pre>
+ *
+ * @author jjos
+ */
+public class EmulatorBenchmark {
+
+	int blocks = 100;
+	int warmup = 10;
+	/** transactions per block */
+	int txs = 1000;
+	int users = 100;
+	/** java contracts */
+	int contracts = 10;
+	/** compiled contracts */
+	int compiled = 10;
+	/** java contracts sleeping on every block */
+	int sleeping = 2;
+	Class<? extends Contract> contract = TXCounter.class;
+	/** fraction of transactions sent to contracts */
+	double share = 0.5;
+	/** fraction of transactions with a message */
+	double messages = 0.2;
+	long seed = 1;
+
+	/** activation times, in nanoseconds */
+	long[] latencies = new long[1024];
+	int nlatencies;
+
+	/**
+	 * The results of a benchmark run.
+	 */
+	public static class Result {
+		long blocks, txs, activations, nanos, allocated;
+		long p50, p99, max;
+
+		public double getBlocksPerSecond() {
+			return blocks * 1e9 / nanos;
+		}
+
+		public double getTxsPerSecond() {
+			return txs * 1e9 / nanos;
+		}
+
+		public double getActivationsPerSecond() {
+			return activations * 1e9 / nanos;
+		}
+
+		/**
+		 * @return the allocation rate in MB/s, -1 if not available
+		 */
+		public double getAllocationRate() {
+			return allocated < 0 ? -1 : allocated * 1e9 / nanos / (1 << 20);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("blocks        %10d %12.1f blocks/s%n", blocks, getBlocksPerSecond()));
+			sb.append(String.format("transactions  %10d %12.1f txs/s%n", txs, getTxsPerSecond()));
+			sb.append(String.format("activations   %10d %12.1f activations/s%n", activations,
+					getActivationsPerSecond()));
+			sb.append(String.format("latency       p50 %.1f us, p99 %.1f us, max %.1f us%n", p50 / 1e3, p99 / 1e3,
+					max / 1e3));
+			if (allocated >= 0)
+				sb.append(String.format("allocation    %10.1f MB %12.1f MB/s%n", allocated / (double) (1 << 20),
+						getAllocationRate()));
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Runs the configured workload on a new emulator.
+	 */
+	public Result run() throws Exception {
+		Emulator emu = new Emulator(seed);
+		Random random = new Random(seed);
+
+		Address[] accounts = new Address[users];
+		for (int i = 0; i < users; i++) {
+			accounts[i] = emu.getAddress("BENCH_USER" + i);
+			emu.airDrop(accounts[i], Long.MAX_VALUE / 4 / users);
+		}
+
+		ArrayList<Address> targets = new ArrayList<>();
+		for (int i = 0; i < contracts; i++) {
+			Address ad = emu.getAddress("BENCH_JAVA" + i);
+			emu.createConctract(accounts[0], ad, contract, Contract.ONE_BURST);
+			targets.add(ad);
+		}
+		if (compiled > 0) {
+			Compiler comp = BT.compileContract(contract);
+			for (int i = 0; i < compiled; i++) {
+				Address ad = emu.getAddress("BENCH_COMPILED" + i);
+				emu.createConctract(accounts[0], ad, comp, Contract.ONE_BURST);
+				targets.add(ad);
+			}
+		}
+		for (int i = 0; i < sleeping; i++)
+			emu.createConctract(accounts[0], emu.getAddress("BENCH_SLEEPING" + i), AlwaysRunning.class,
+					Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		for (int b = 0; b < warmup; b++)
+			forge(emu, random, accounts, targets);
+
+		nlatencies = 0;
+		emu.setActivationListener(this::record);
+		long activations = emu.getActivations();
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int b = 0; b < blocks; b++)
+			forge(emu, random, accounts, targets);
+
+		Result ret = new Result();
+		ret.nanos = System.nanoTime() - start;
+		long allocatedAfter = allocatedBytes();
+		ret.allocated = allocated < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocated;
+		emu.setActivationListener(null);
+		ret.blocks = blocks;
+		ret.txs = (long) blocks * txs;
+		ret.activations = emu.getActivations() - activations;
+
+		Arrays.sort(latencies, 0, nlatencies);
+		if (nlatencies > 0) {
+			ret.p50 = latencies[(int) (nlatencies * 0.50)];
+			ret.p99 = latencies[Math.min(nlatencies - 1, (int) (nlatencies * 0.99))];
+			ret.max = latencies[nlatencies - 1];
+		}
+		return ret;
+	}
+
+	private void forge(Emulator emu, Random random, Address[] accounts, ArrayList<Address> targets)
+			throws Exception {
+		Emulator.Batch batch = emu.batch(txs);
+		for (int i = 0; i < txs; i++) {
+			Address from = accounts[random.nextInt(accounts.length)];
+			Address to;
+			long amount;
+			if (targets.size() > 0 && random.nextDouble() < share) {
+				to = targets.get(random.nextInt(targets.size()));
+				amount = 2 * Contract.ONE_BURST;
+			} else {
+				to = accounts[random.nextInt(accounts.length)];
+				amount = 1 + random.nextInt(1000) * Contract.FEE_QUANT;
+			}
+			if (random.nextDouble() < messages)
+				batch.send(from, to, amount, "benchmark " + i);
+			else
+				batch.send(from, to, amount);
+		}
+		batch.submit();
+		emu.forgeBlock();
+	}
+
+	private void record(long nanos) {
+		if (nlatencies == latencies.length)
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		latencies[nlatencies++] = nanos;
+	}
+
+	/**
+	 * @return the bytes allocated by all live threads, -1 if not supported
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled())
+			return -1;
+		long ret = 0;
+		for (long bytes : sunBean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+			if (bytes > 0)
+				ret += bytes;
+		}
+		return ret;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: EmulatorBenchmark [-blocks n] [-warmup n] [-txs n] [-users n] [-contracts n]"
+				+ " [-compiled n] [-sleeping n] [-contract class] [-share f] [-messages f] [-seed n]");
+		System.exit(2);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) throws Exception {
+		EmulatorBenchmark bench = new EmulatorBenchmark();
+		for (int i = 0; i < args.length; i++) {
+			if (i + 1 == args.length)
+				usage();
+			String value = args[++i];
+			switch (args[i - 1]) {
+			case "-blocks":
+				bench.blocks = Integer.parseInt(value);
+				break;
+			case "-warmup":
+				bench.warmup = Integer.parseInt(value);
+				break;
+			case "-txs":
+				bench.txs = Integer.parseInt(value);
+				break;
+			case "-users":
+				bench.users = Integer.parseInt(value);
+				break;
+			case "-contracts":
+				bench.contracts = Integer.parseInt(value);
+				break;
+			case "-compiled":
+				bench.compiled = Integer.parseInt(value);
+				break;
+			case "-sleeping":
+				bench.sleeping = Integer.parseInt(value);
+				break;
+			case "-contract":
+				bench.contract = (Class<? extends Contract>) Class.forName(value);
+				break;
+			case "-share":
+				bench.share = Double.parseDouble(value);
+				break;
+			case "-messages":
+				bench.messages = Double.parseDouble(value);
+				break;
+			case "-seed":
+				bench.seed = Long.parseLong(value);
+				break;
+			default:
+				usage();
+			}
+		}
+		System.out.print(bench.run());
+		System.exit(0);
+	}
+}
@@ -0,0 +1,195 @@
+package bt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+/**
+ * Finds if a java contract can sleep, only those run on a {@link Coroutine}
+ * while all others run directly on the forging thread.
+ *
+ * The bytecode reachable from the contract is scanned for calls resolving to
+ * {@link Contract#sleep(long)} or {@link Contract#sleepUntilNextTx()}. All
+ * methods of the contract class hierarchy and of the classes it instantiates
+ * are scanned, as well as every method called from them outside the JDK, so a
+ * sleep on a helper class is also found. Reflective calls and classes that
+ * cannot be read count as a possible sleep.
+ *
+ * This class should be used by the emulator only.
+ *
+ * @author jjos
+ */
+final class SleepScanner {
+
+	private static final String CONTRACT = Type.getInternalName(Contract.class);
+	private static final ConcurrentHashMap<Class<?>, Boolean> sleeping = new ConcurrentHashMap<>();
+
+	private final ClassLoader loader;
+	/** Classes read so far, null for the ones that could not be read */
+	private final HashMap<String, ClassNode> classes = new HashMap<>();
+	private final HashSet<String> classesAdded = new HashSet<>();
+	private final HashSet<MethodNode> methodsAdded = new HashSet<>();
+	private final ArrayDeque<MethodNode> work = new ArrayDeque<>();
+	private boolean sleeps;
+
+	private SleepScanner(ClassLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * @return true if the given contract class can suspend its execution
+	 */
+	static boolean canSleep(Class<?> contractClass) {
+		return sleeping.computeIfAbsent(contractClass,
+				c -> new SleepScanner(c.getClassLoader()).scan(Type.getInternalName(c)));
+	}
+
+	private boolean scan(String contractClass) {
+		addClass(contractClass);
+		while (!sleeps && !work.isEmpty()) {
+			MethodNode mn = work.poll();
+			for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null && !sleeps; insn = insn.getNext())
+				scan(insn);
+		}
+		return sleeps;
+	}
+
+	private void scan(AbstractInsnNode insn) {
+		if (insn instanceof MethodInsnNode) {
+			MethodInsnNode call = (MethodInsnNode) insn;
+			if (isReflective(call))
+				sleeps = true;
+			else
+				resolve(call.owner, call.name, call.desc);
+		} else if (insn instanceof InvokeDynamicInsnNode) {
+			// lambdas and method references
+			for (Object arg : ((InvokeDynamicInsnNode) insn).bsmArgs) {
+				if (arg instanceof Handle) {
+					Handle h = (Handle) arg;
+					resolve(h.getOwner(), h.getName(), h.getDesc());
+				}
+			}
+		} else if (insn.getOpcode() == Opcodes.NEW) {
+			// the JDK may call any method of it, Runnable or Comparator for instance
+			addClass(((TypeInsnNode) insn).desc);
+		}
+	}
+
+	/**
+	 * Adds all instance methods of the given class and its supertypes, up to the
+	 * contract class. Static methods, as a main method starting the emulator
+	 * window, are only added when called.
+	 */
+	private void addClass(String name) {
+		if (name == null || isExternal(name) || name.equals(CONTRACT) || !classesAdded.add(name))
+			return;
+		ClassNode cn = read(name);
+		if (cn == null)
+			return;
+		for (MethodNode mn : cn.methods) {
+			if ((mn.access & Opcodes.ACC_STATIC) == 0)
+				addMethod(mn);
+		}
+		addClass(cn.superName);
+		for (String i : cn.interfaces)
+			addClass(i);
+	}
+
+	private void addMethod(MethodNode mn) {
+		if (methodsAdded.add(mn))
+			work.add(mn);
+	}
+
+	/**
+	 * Adds the method called on the given owner, looking on its supertypes. The
+	 * contract methods are not scanned, only the sleep ones matter.
+	 *
+	 * @return true if the method was found
+	 */
+	private boolean resolve(String owner, String name, String desc) {
+		if (owner == null || isExternal(owner))
+			return false;
+		if (owner.equals(CONTRACT)) {
+			if ((name.equals("sleep") && desc.equals("(J)V")) || (name.equals("sleepUntilNextTx") && desc.equals("()V")))
+				sleeps = true;
+			return true;
+		}
+		ClassNode cn = read(owner);
+		if (cn == null)
+			return true;
+		for (MethodNode mn : cn.methods) {
+			if (mn.name.equals(name) && mn.desc.equals(desc)) {
+				addMethod(mn);
+				return true;
+			}
+		}
+		if (resolve(cn.superName, name, desc))
+			return true;
+		for (String i : cn.interfaces) {
+			if (resolve(i, name, desc))
+				return true;
+		}
+		return false;
+	}
+
+	private ClassNode read(String name) {
+		if (classes.containsKey(name))
+			return classes.get(name);
+		ClassNode cn = null;
+		String resource = name + ".class";
+		try (InputStream in = loader != null ? loader.getResourceAsStream(resource)
+				: ClassLoader.getSystemResourceAsStream(resource)) {
+			if (in != null) {
+				cn = new ClassNode();
+				new ClassReader(in).accept(cn, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+			}
+		} catch (IOException e) {
+			cn = null;
+		}
+		if (cn == null) {
+			// cannot inspect, assume the worst
+			sleeps = true;
+		}
+		classes.put(name, cn);
+		return cn;
+	}
+
+	/**
+	 * @return true for the JDK classes and arrays, not scanned
+	 */
+	private static boolean isExternal(String name) {
+		return name.startsWith("[") || name.startsWith("java/") || name.startsWith("javax/")
+				|| name.startsWith("jdk/") || name.startsWith("sun/") || name.startsWith("com/sun/");
+	}
+
+	/**
+	 * @return true for the JDK calls running code we cannot follow
+	 */
+	private static boolean isReflective(MethodInsnNode call) {
+		switch (call.owner) {
+		case "java/lang/reflect/Method":
+			return call.name.equals("invoke");
+		case "java/lang/reflect/Constructor":
+		case "java/lang/Class":
+			return call.name.equals("newInstance");
+		case "java/lang/invoke/MethodHandle":
+			return call.name.startsWith("invoke");
+		default:
+			return false;
+		}
+	}
+}
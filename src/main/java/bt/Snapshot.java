@@ -0,0 +1,41 @@
+package bt;
+
+/**
+ * A copy of the whole emulator state at a given moment.
+ *
+ * Includes the addresses and balances, the contracts (java fields or compiled
+ * machine state), the blocks kept and the pending transactions. A snapshot is
+ * never changed, so it can be restored or forked any number of times. It runs
+ * no contract code, so it holds no threads.
+ *
+ * Java contracts sleeping in the middle of a method are frozen, see
+ * {@link Emulator#snapshot()}.
+ *
+ * @see Emulator#snapshot()
+ * @see Emulator#restore(Snapshot)
+ * 
+ * @author jjos
+ */
+public class Snapshot {
+
+	final Emulator state;
+
+	Snapshot(Emulator emu) {
+		this.state = new Emulator(emu);
+	}
+
+	/**
+	 * @return the height of the block being forged when the snapshot was taken
+	 */
+	public long getHeight() {
+		return state.currentBlock.height;
+	}
+
+	/**
+	 * @return a new emulator starting from this snapshot, see
+	 *         {@link Emulator#fork()}
+	 */
+	public Emulator fork() {
+		return new Emulator(state);
+	}
+}
@@ -1,5 +1,7 @@
 package bt;
 
+import bt.compiler.Compiler;
+
 /**
  * Class representing a transaction.
  * 
@@ -15,6 +17,7 @@ public class Transaction {
 	static final byte TYPE_AT_CREATE = 2;
 	static final byte TYPE_METHOD_CALL = 3;
 
+	long id;
 	Block block;
 	Address sender;
 	Address receiver;
@@ -23,6 +26,7 @@ public class Transaction {
 	Timestamp ts;
 	String msgString;
 	Register msg;
+	Compiler compiled;
 
 	/**
 	 * Users are not allowed to create new instances of this class, this function
@@ -86,11 +90,16 @@ public class Transaction {
 	}
 
 	/**
-	 * @return the amount in this transaction minus the activation fee
+	 * @return the amount in this transaction minus the activation fee, the
+	 *         contract creation is not charged the fee
 	 */
 	public long getAmount() {
-		if (receiver != null && receiver.contract != null)
+		if (receiver == null || type == TYPE_AT_CREATE)
+			return amount;
+		if (receiver.contract != null)
 			return amount - receiver.contract.activationFee;
+		if (receiver.compiled != null)
+			return amount - receiver.compiled.activationFee;
 		return amount;
 	}
 	
@@ -98,7 +107,7 @@ public class Transaction {
 	 * @return the transaction id
 	 */
 	public long getId() {
-		return super.hashCode() + sender.id + receiver.id + amount;
+		return id;
 	}
 
 	/**
@@ -0,0 +1,46 @@
+package bt.compiler;
+
+import java.util.ArrayList;
+
+/**
+ * A sequence of instructions with a single entry and a single exit.
+ *
+ * Only the first instruction can be the destination of a jump or branch and
+ * only the last one can jump, branch, call or stop.
+ *
+ * @author jjos
+ */
+final class BasicBlock {
+
+	final Code code;
+	final int index;
+	/** first instruction index */
+	final int start;
+	/** last instruction index (exclusive) */
+	int end;
+
+	final ArrayList<BasicBlock> successors = new ArrayList<>();
+	final ArrayList<BasicBlock> predecessors = new ArrayList<>();
+
+	BasicBlock(Code code, int index, int start) {
+		this.code = code;
+		this.index = index;
+		this.start = start;
+		this.end = start;
+	}
+
+	void link(BasicBlock next) {
+		if (!successors.contains(next)) {
+			successors.add(next);
+			next.predecessors.add(this);
+		}
+	}
+
+	Instruction first() {
+		return code.get(start);
+	}
+
+	Instruction last() {
+		return code.get(end - 1);
+	}
+}
@@ -0,0 +1,324 @@
+package bt.compiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import bt.BT;
+import bt.Contract;
+
+/**
+ * Compiles a set of contracts in parallel, on a fork-join pool.
+ *
+ * Every contract gets its own {@link Compiler} instance, so they can be
+ * compiled independently. The result is a manifest with the code hash, the
+ * number of pages and the registering fee of each contract.
+ *
+ * Can also be used from the command line:
+ *
+ * <pre>
+ * BatchCompiler [-cp classpath] [-j threads] [-o manifest] [-nocache] package|class...
+ * </pre>
+ *
+ * @author jjos
+ */
+public class BatchCompiler {
+
+	private static Logger logger = LogManager.getLogger();
+
+	/**
+	 * The result of compiling a single contract.
+	 */
+	public static class Result {
+		final Class<? extends Contract> contract;
+		Compiler compiler;
+		String codeHash;
+		Exception exception;
+
+		Result(Class<? extends Contract> contract) {
+			this.contract = contract;
+		}
+
+		public Class<? extends Contract> getContract() {
+			return contract;
+		}
+
+		/**
+		 * @return the compiler, null if the contract could not be read
+		 */
+		public Compiler getCompiler() {
+			return compiler;
+		}
+
+		/**
+		 * @return the SHA-256 of the code, in hex
+		 */
+		public String getCodeHash() {
+			return codeHash;
+		}
+
+		public boolean hasErrors() {
+			return exception != null || compiler.getErrors().size() > 0;
+		}
+
+		/**
+		 * @return the first error message or null if none
+		 */
+		public String getError() {
+			if (exception != null)
+				return exception.toString();
+			if (compiler.getErrors().size() > 0)
+				return compiler.getErrors().get(0).getMessage();
+			return null;
+		}
+
+		/**
+		 * @return a manifest line for this contract
+		 */
+		@Override
+		public String toString() {
+			if (hasErrors())
+				return String.format("%s\t%s\t%s\t%s\t%s\t%s", contract.getName(), "-", "-", "-", "-", getError());
+			return String.format("%s\t%s\t%d\t%d\t%s\t%s", contract.getName(), codeHash, compiler.getCodeNPages(),
+					compiler.getDataPages(), BT.getMinRegisteringFee(compiler).toNQT().toPlainString(), "ok");
+		}
+	}
+
+	public static final String MANIFEST_HEADER = "class\tcodeSha256\tcodePages\tdataPages\tfeeNQT\tstatus";
+
+	private final ForkJoinPool pool;
+	private final CompileCache cache;
+
+	/**
+	 * @param pool  the pool to compile on
+	 * @param cache the cache to use or null to always compile
+	 */
+	public BatchCompiler(ForkJoinPool pool, CompileCache cache) {
+		this.pool = pool;
+		this.cache = cache;
+	}
+
+	/**
+	 * A compiler for the common pool using the default cache.
+	 */
+	public BatchCompiler() {
+		this(ForkJoinPool.commonPool(), CompileCache.getInstance());
+	}
+
+	/**
+	 * Compiles and links the given contracts in parallel.
+	 *
+	 * @return the results, on the same order as the contracts given
+	 */
+	public List<Result> compile(Collection<Class<? extends Contract>> contracts) {
+		try {
+			return pool.submit(
+					() -> contracts.parallelStream().map(this::compile).collect(Collectors.toList())).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	Result compile(Class<? extends Contract> clazz) {
+		Result ret = new Result(clazz);
+		try {
+			if (cache != null)
+				ret.compiler = cache.compile(clazz);
+			else {
+				ret.compiler = new Compiler(clazz);
+				ret.compiler.compile();
+				if (ret.compiler.getErrors().size() == 0)
+					ret.compiler.link();
+			}
+			if (ret.compiler.getErrors().size() == 0)
+				ret.codeHash = sha256(ret.compiler.getCode());
+		} catch (Exception e) {
+			logger.error("Could not compile {}: {}", clazz.getName(), e.getMessage());
+			ret.exception = e;
+		}
+		return ret;
+	}
+
+	static String sha256(byte[] data) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(data))
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Writes the manifest for the given results, one tab separated line per
+	 * contract.
+	 */
+	public static void writeManifest(List<Result> results, PrintStream out) {
+		out.println(MANIFEST_HEADER);
+		for (Result r : results)
+			out.println(r);
+	}
+
+	/**
+	 * @return the (concrete) contracts on the given package and its sub-packages,
+	 *         sorted by name
+	 */
+	public static List<Class<? extends Contract>> findContracts(String packageName, ClassLoader loader)
+			throws IOException {
+		String path = packageName.replace('.', '/');
+		TreeSet<String> names = new TreeSet<>();
+		Enumeration<URL> urls = loader.getResources(path);
+		while (urls.hasMoreElements()) {
+			URL url = urls.nextElement();
+			if (url.getProtocol().equals("file"))
+				listClasses(new File(URLDecoder.decode(url.getFile(), "UTF-8")), packageName, names);
+			else if (url.getProtocol().equals("jar")) {
+				JarFile jar = ((JarURLConnection) url.openConnection()).getJarFile();
+				Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements()) {
+					String name = entries.nextElement().getName();
+					if (name.startsWith(path + "/") && name.endsWith(".class"))
+						names.add(name.substring(0, name.length() - 6).replace('/', '.'));
+				}
+			}
+		}
+
+		ArrayList<Class<? extends Contract>> ret = new ArrayList<>();
+		for (String name : names) {
+			Class<? extends Contract> c = asContract(name, loader);
+			if (c != null)
+				ret.add(c);
+		}
+		return ret;
+	}
+
+	private static void listClasses(File dir, String packageName, Collection<String> names) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (f.isDirectory())
+				listClasses(f, packageName + "." + f.getName(), names);
+			else if (f.getName().endsWith(".class"))
+				names.add(packageName + "." + f.getName().substring(0, f.getName().length() - 6));
+		}
+	}
+
+	/**
+	 * @return the given class if it is a concrete contract, null otherwise
+	 */
+	@SuppressWarnings("unchecked")
+	static Class<? extends Contract> asContract(String name, ClassLoader loader) {
+		if (name.contains("$"))
+			return null;
+		try {
+			Class<?> c = Class.forName(name, false, loader);
+			if (c == Contract.class || !Contract.class.isAssignableFrom(c) || c.isInterface()
+					|| Modifier.isAbstract(c.getModifiers()))
+				return null;
+			return (Class<? extends Contract>) c;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return null;
+		}
+	}
+
+	private static void usage() {
+		System.err.println(
+				"Usage: BatchCompiler [-cp classpath] [-j threads] [-o manifest] [-nocache] package|class...");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		ClassLoader loader = BatchCompiler.class.getClassLoader();
+		int threads = Runtime.getRuntime().availableProcessors();
+		String output = null;
+		boolean useCache = true;
+		ArrayList<String> targets = new ArrayList<>();
+
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-cp") || a.equals("-classpath")) {
+				if (++i == args.length)
+					usage();
+				String[] entries = args[i].split(File.pathSeparator);
+				URL[] urls = new URL[entries.length];
+				for (int j = 0; j < entries.length; j++)
+					urls[j] = new File(entries[j]).toURI().toURL();
+				loader = new URLClassLoader(urls, loader);
+			} else if (a.equals("-j")) {
+				if (++i == args.length)
+					usage();
+				threads = Integer.parseInt(args[i]);
+			} else if (a.equals("-o")) {
+				if (++i == args.length)
+					usage();
+				output = args[i];
+			} else if (a.equals("-nocache"))
+				useCache = false;
+			else if (a.startsWith("-"))
+				usage();
+			else
+				targets.add(a);
+		}
+		if (targets.size() == 0)
+			usage();
+
+		ArrayList<Class<? extends Contract>> contracts = new ArrayList<>();
+		for (String t : targets) {
+			Class<? extends Contract> c = asContract(t, loader);
+			if (c != null)
+				contracts.add(c);
+			else
+				contracts.addAll(findContracts(t, loader));
+		}
+		if (contracts.size() == 0) {
+			System.err.println("No contracts found");
+			System.exit(1);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.currentTimeMillis();
+		List<Result> results = new BatchCompiler(pool, useCache ? CompileCache.getInstance() : null)
+				.compile(contracts);
+		pool.shutdown();
+		long errors = results.stream().filter(Result::hasErrors).count();
+		logger.info("{} contracts compiled in {} ms, {} with errors", results.size(),
+				System.currentTimeMillis() - start, errors);
+
+		if (output != null) {
+			try (PrintStream out = new PrintStream(new FileOutputStream(output), false,
+					StandardCharsets.UTF_8.name())) {
+				writeManifest(results, out);
+			}
+		} else
+			writeManifest(results, System.out);
+
+		System.exit(errors > 0 ? 1 : 0);
+	}
+}
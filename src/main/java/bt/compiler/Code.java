@@ -0,0 +1,361 @@
+package bt.compiler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.objectweb.asm.tree.LabelNode;
+
+/**
+ * Intermediate representation for the code of a method.
+ *
+ * A list of {@link Instruction}s with symbolic destinations: branches and jumps
+ * point to other instructions, calls point to methods. Nothing depends on byte
+ * positions until {@link #encode(ByteBuffer, int)}, so instructions can be
+ * freely added, changed or removed and the method relocated.
+ *
+ * The temporary variables can be replaced by virtual registers, see
+ * {@link Registers}.
+ *
+ * @author jjos
+ */
+final class Code {
+
+	final ArrayList<Instruction> instructions = new ArrayList<>();
+	/** a sentinel representing the end of the code */
+	final Instruction end = new Instruction(OpCode.e_op_code_NOP);
+
+	private final HashMap<LabelNode, Instruction> labels = new HashMap<>();
+	private final HashMap<Instruction, LabelNode> unresolved = new HashMap<>();
+	private final ArrayList<LabelNode> pendingLabels = new ArrayList<>();
+	private final ArrayList<Integer> pendingLines = new ArrayList<>();
+	/** the label for the instruction after the one being skipped */
+	private LabelNode over;
+
+	Instruction add(byte op, int... args) {
+		Instruction insn = new Instruction(op, args);
+		instructions.add(insn);
+		for (LabelNode l : pendingLabels)
+			labels.put(l, insn);
+		pendingLabels.clear();
+		insn.lines.addAll(pendingLines);
+		pendingLines.clear();
+		if (over != null) {
+			pendingLabels.add(over);
+			over = null;
+		}
+		return insn;
+	}
+
+	Instruction setVal(int address, long value) {
+		Instruction insn = add(OpCode.e_op_code_SET_VAL, address);
+		insn.value = value;
+		return insn;
+	}
+
+	Instruction function(byte op, short fun, int... args) {
+		Instruction insn = add(op, args);
+		insn.fun = fun;
+		return insn;
+	}
+
+	/**
+	 * Adds a conditional branch to the given label, the branch offset is limited
+	 * to a single byte when encoded.
+	 */
+	Instruction branch(byte op, LabelNode target, int... args) {
+		Instruction insn = add(op, args);
+		unresolved.put(insn, target);
+		return insn;
+	}
+
+	/**
+	 * Adds a conditional branch skipping the next instruction added.
+	 */
+	Instruction branchOver(byte op, int... args) {
+		LabelNode target = new LabelNode();
+		Instruction insn = branch(op, target, args);
+		over = target;
+		return insn;
+	}
+
+	Instruction jump(LabelNode target) {
+		Instruction insn = add(OpCode.e_op_code_JMP_ADR);
+		unresolved.put(insn, target);
+		return insn;
+	}
+
+	Instruction call(Method method) {
+		Instruction insn = add(OpCode.e_op_code_JMP_SUB);
+		insn.method = method;
+		return insn;
+	}
+
+	/**
+	 * Places the given label on the next instruction added.
+	 */
+	void place(LabelNode label) {
+		pendingLabels.add(label);
+	}
+
+	/**
+	 * The next instruction added starts the given source line.
+	 */
+	void line(int line) {
+		pendingLines.add(line);
+	}
+
+	/**
+	 * Finishes the code, resolving all labels.
+	 *
+	 * @return the labels not found
+	 */
+	List<LabelNode> close() {
+		for (LabelNode l : pendingLabels)
+			labels.put(l, end);
+		pendingLabels.clear();
+		end.lines.addAll(pendingLines);
+		pendingLines.clear();
+
+		ArrayList<LabelNode> ret = new ArrayList<>();
+		for (Map.Entry<Instruction, LabelNode> u : unresolved.entrySet()) {
+			Instruction target = labels.get(u.getValue());
+			if (target == null)
+				ret.add(u.getValue());
+			else
+				u.getKey().target = target;
+		}
+		unresolved.clear();
+		labels.clear();
+		return ret;
+	}
+
+	int length() {
+		return instructions.size();
+	}
+
+	Instruction get(int i) {
+		return instructions.get(i);
+	}
+
+	Instruction next(int i) {
+		return i + 1 < instructions.size() ? instructions.get(i + 1) : end;
+	}
+
+	/**
+	 * Removes the instruction at the given index, line numbers and references are
+	 * moved to the next one.
+	 */
+	void remove(int i) {
+		Instruction insn = instructions.remove(i);
+		Instruction next = i < instructions.size() ? instructions.get(i) : end;
+		next.lines.addAll(0, insn.lines);
+		for (Instruction other : instructions) {
+			if (other.target == insn)
+				other.target = next;
+		}
+	}
+
+	/**
+	 * Removes the basic blocks that can never be reached.
+	 *
+	 * @return the number of bytes removed
+	 */
+	int removeUnreachable() {
+		List<BasicBlock> blocks = blocks();
+		if (blocks.isEmpty())
+			return 0;
+		BitSet reached = new BitSet();
+		ArrayList<BasicBlock> pending = new ArrayList<>();
+		pending.add(blocks.get(0));
+		while (!pending.isEmpty()) {
+			BasicBlock b = pending.remove(pending.size() - 1);
+			if (reached.get(b.index))
+				continue;
+			reached.set(b.index);
+			pending.addAll(b.successors);
+		}
+
+		int ret = 0;
+		for (int k = blocks.size() - 1; k >= 0; k--) {
+			BasicBlock b = blocks.get(k);
+			if (reached.get(b.index))
+				continue;
+			for (int i = b.end - 1; i >= b.start; i--) {
+				ret += get(i).size();
+				remove(i);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the size in bytes of this code
+	 */
+	int size() {
+		int ret = 0;
+		for (Instruction insn : instructions)
+			ret += insn.size();
+		return ret;
+	}
+
+	/**
+	 * Computes the position of every instruction, relative to the start of this
+	 * code.
+	 *
+	 * @return false if a branch offset does not fit on a byte
+	 */
+	boolean layout() {
+		int pos = 0;
+		for (Instruction insn : instructions) {
+			insn.position = pos;
+			pos += insn.size();
+		}
+		end.position = pos;
+
+		for (Instruction insn : instructions) {
+			if (insn.isBranch()) {
+				int offset = insn.target.position - insn.position;
+				if (offset < Byte.MIN_VALUE || offset > Byte.MAX_VALUE)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Branch relaxation, a branch over a JMP_ADR is replaced by the inverted
+	 * branch to the jump destination when the offset fits on a byte. Removing
+	 * code only brings instructions closer, so this is repeated until nothing
+	 * else fits and the remaining jumps keep the long form.
+	 *
+	 * Each pass counts the references to every instruction once, keeping them
+	 * when retargeting, and drops the jumps replaced at the end of the pass.
+	 * Dropping jumps only brings instructions closer, so a branch relaxed on the
+	 * distances of the pass layout still fits.
+	 *
+	 * @return the number of bytes saved
+	 */
+	int relax() {
+		int ret = 0;
+		IdentityHashMap<Instruction, Integer> refs = new IdentityHashMap<>();
+		ArrayList<Instruction> kept = new ArrayList<>(instructions.size());
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			layout();
+			refs.clear();
+			for (Instruction insn : instructions) {
+				if (insn.target != null)
+					refs.merge(insn.target, 1, Integer::sum);
+			}
+
+			kept.clear();
+			for (int i = 0; i < instructions.size(); i++) {
+				Instruction insn = instructions.get(i);
+				kept.add(insn);
+				if (i + 1 == instructions.size())
+					break;
+				Instruction jump = instructions.get(i + 1);
+				Instruction over = next(i + 1);
+				if (!insn.isBranch() || jump.op != OpCode.e_op_code_JMP_ADR || insn.target != over
+						|| jump.target == jump || refs.containsKey(jump))
+					continue;
+
+				int offset = jump.target.position - insn.position;
+				if (offset > 0)
+					offset -= jump.size();
+				if (offset < Byte.MIN_VALUE || offset > Byte.MAX_VALUE)
+					continue;
+
+				insn.op = Instruction.invert(insn.op);
+				// the jump destination keeps its count, now from the branch
+				insn.target = jump.target;
+				if (refs.merge(over, -1, Integer::sum) == 0)
+					refs.remove(over);
+				// the jump is not referenced, only its lines move
+				over.lines.addAll(0, jump.lines);
+				ret += jump.size();
+				changed = true;
+				i++;
+			}
+			if (changed) {
+				instructions.clear();
+				instructions.addAll(kept);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Encodes this code, with the given base address for the absolute jumps. The
+	 * addresses of called methods should be already known.
+	 */
+	void encode(ByteBuffer out, int base) {
+		layout();
+		for (Instruction insn : instructions)
+			insn.encode(out, base);
+	}
+
+	/**
+	 * @return the source lines by their start position (after a layout)
+	 */
+	TreeMap<Integer, Integer> lines() {
+		TreeMap<Integer, Integer> ret = new TreeMap<>();
+		for (Instruction insn : instructions) {
+			for (Integer line : insn.lines)
+				ret.put(insn.position, line);
+		}
+		for (Integer line : end.lines)
+			ret.put(end.position, line);
+		return ret;
+	}
+
+	/**
+	 * Splits the code in basic blocks.
+	 */
+	List<BasicBlock> blocks() {
+		int n = instructions.size();
+		boolean[] leader = new boolean[n + 1];
+		HashMap<Instruction, Integer> index = new HashMap<>();
+		for (int i = 0; i < n; i++)
+			index.put(instructions.get(i), i);
+		index.put(end, n);
+
+		if (n > 0)
+			leader[0] = true;
+		for (int i = 0; i < n; i++) {
+			Instruction insn = instructions.get(i);
+			if (insn.target != null)
+				leader[index.get(insn.target)] = true;
+			if (insn.target != null || insn.isTerminal() || insn.op == OpCode.e_op_code_JMP_SUB)
+				leader[i + 1] = true;
+		}
+
+		ArrayList<BasicBlock> ret = new ArrayList<>();
+		BasicBlock[] blockAt = new BasicBlock[n + 1];
+		for (int i = 0; i < n; i++) {
+			if (leader[i]) {
+				BasicBlock b = new BasicBlock(this, ret.size(), i);
+				ret.add(b);
+			}
+			BasicBlock b = ret.get(ret.size() - 1);
+			b.end = i + 1;
+			blockAt[i] = b;
+		}
+
+		for (BasicBlock b : ret) {
+			Instruction last = instructions.get(b.end - 1);
+			if (!last.isTerminal() && b.end < n)
+				b.link(blockAt[b.end]);
+			if (last.target != null && last.target != end)
+				b.link(blockAt[index.get(last.target)]);
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,248 @@
+package bt.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import bt.Contract;
+
+/**
+ * Persistent cache of compiled contracts.
+ *
+ * Entries are keyed by the SHA-256 of the class bytes, the compiler version, the
+ * code generation version ({@link Compiler#CODEGEN_VERSION}) and the compiler
+ * options, so entries from an older code generation are never used. An entry keeps the linked code, the data size and
+ * initial values, the field addresses and the method hashes and addresses, so a
+ * contract that did not change is not compiled again.
+ *
+ * The default cache is on the ".blocktalk/cache" folder of the user home or on
+ * the folder given by the "bt.cache.dir" system property.
+ *
+ * @author jjos
+ */
+public class CompileCache {
+
+	private static final int FORMAT = 2;
+
+	private static Logger logger = LogManager.getLogger();
+
+	private static CompileCache instance;
+
+	private final File dir;
+	private final int codegenVersion;
+
+	public CompileCache(File dir) {
+		this(dir, Compiler.CODEGEN_VERSION);
+	}
+
+	/**
+	 * Creates a cache keyed by the given code generation version instead of the
+	 * current one, the entries of other versions are not found.
+	 * 
+	 * @param dir
+	 * @param codegenVersion
+	 */
+	public CompileCache(File dir, int codegenVersion) {
+		this.dir = dir;
+		this.codegenVersion = codegenVersion;
+	}
+
+	/**
+	 * @return the default cache
+	 */
+	public static synchronized CompileCache getInstance() {
+		if (instance == null) {
+			String dir = System.getProperty("bt.cache.dir");
+			instance = new CompileCache(dir != null ? new File(dir)
+					: new File(System.getProperty("user.home"), ".blocktalk" + File.separator + "cache"));
+		}
+		return instance;
+	}
+
+	/**
+	 * Compiles and links the given contract, or gets it from the cache if the
+	 * class did not change. Only contracts without errors are cached.
+	 *
+	 * @param clazz
+	 * @return the compiler with the result
+	 * @throws IOException
+	 */
+	public Compiler compile(Class<? extends Contract> clazz) throws IOException {
+		Compiler comp = new Compiler(clazz);
+		File file = new File(dir, getKey(comp) + ".bin");
+		if (file.exists()) {
+			try {
+				if (load(comp, file)) {
+					logger.debug("{} from cache", comp.getClassName());
+					return comp;
+				}
+			} catch (IOException e) {
+				logger.warn("Invalid cache entry {}: {}", file, e.getMessage());
+			}
+			// compile again on a clean one
+			comp = new Compiler(clazz);
+		}
+
+		comp.compile();
+		if (comp.getErrors().size() == 0)
+			comp.link();
+		if (comp.getErrors().size() == 0) {
+			try {
+				store(comp, file);
+			} catch (IOException e) {
+				logger.warn("Could not store cache entry {}: {}", file, e.getMessage());
+			}
+		}
+		return comp;
+	}
+
+	/**
+	 * Removes all entries from this cache.
+	 */
+	public void clear() {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".bin"));
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (!f.delete())
+				logger.warn("Could not delete {}", f);
+		}
+	}
+
+	/**
+	 * @return the cache key for the given (not compiled) contract
+	 */
+	String getKey(Compiler comp) {
+		try {
+			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			sha256.update(comp.classBytes);
+			String options = Compiler.currentVersion.name() + ":" + codegenVersion + ":" + comp.optimize + ":"
+					+ comp.inlineSize + ":" + comp.targetVersion;
+			sha256.update(options.getBytes(StandardCharsets.UTF_8));
+
+			StringBuilder sb = new StringBuilder();
+			for (byte b : sha256.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void store(Compiler comp, File file) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+
+		// unique name, the same contract can be compiled concurrently
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(FORMAT);
+			out.writeUTF(comp.getClassName());
+
+			byte[] code = comp.getCode();
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeInt(comp.lastFreeVar);
+			long[] data = comp.data == null ? new long[0] : comp.data;
+			out.writeInt(data.length);
+			for (long v : data)
+				out.writeLong(v);
+
+			out.writeInt(comp.fields.size());
+			for (Field f : comp.fields.values()) {
+				out.writeUTF(f.getName());
+				out.writeInt(f.address);
+			}
+
+			out.writeInt(comp.methods.size());
+			for (Method m : comp.methods.values()) {
+				out.writeUTF(m.getName());
+				out.writeLong(m.hash);
+				out.writeBoolean(m.linked);
+				out.writeInt(m.address);
+				out.writeInt(m.size);
+				out.writeInt(m.lines.size());
+				for (Map.Entry<Integer, Integer> l : m.lines.entrySet()) {
+					out.writeInt(l.getKey());
+					out.writeInt(l.getValue());
+				}
+			}
+		}
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			tmp.delete();
+			if (!file.exists())
+				throw new IOException("Could not rename " + tmp);
+		}
+	}
+
+	/**
+	 * Loads the given entry on a compiler that was not compiled yet.
+	 *
+	 * @return false if the entry does not match the contract
+	 */
+	boolean load(Compiler comp, File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FORMAT || !in.readUTF().equals(comp.getClassName()))
+				return false;
+
+			comp.readFields();
+			comp.listMethods();
+			if (comp.getErrors().size() > 0)
+				return false;
+
+			byte[] code = new byte[in.readInt()];
+			in.readFully(code);
+			int lastFreeVar = in.readInt();
+			long[] data = new long[in.readInt()];
+			for (int i = 0; i < data.length; i++)
+				data[i] = in.readLong();
+
+			int nfields = in.readInt();
+			if (nfields != comp.fields.size())
+				return false;
+			for (int i = 0; i < nfields; i++) {
+				Field f = comp.fields.get(in.readUTF());
+				if (f == null || f.address != in.readInt())
+					return false;
+			}
+
+			int nmethods = in.readInt();
+			if (nmethods != comp.methods.size())
+				return false;
+			for (int i = 0; i < nmethods; i++) {
+				Method m = comp.methods.get(in.readUTF());
+				if (m == null || m.hash != in.readLong())
+					return false;
+				m.linked = in.readBoolean();
+				m.address = in.readInt();
+				m.size = in.readInt();
+				m.lines = new TreeMap<>();
+				int nlines = in.readInt();
+				for (int j = 0; j < nlines; j++)
+					m.lines.put(in.readInt(), in.readInt());
+			}
+
+			comp.lastFreeVar = lastFreeVar;
+			comp.data = data.length == 0 ? null : data;
+			comp.code = ByteBuffer.allocate(Math.max(code.length, 40 * Compiler.PAGE_SIZE));
+			comp.code.order(ByteOrder.LITTLE_ENDIAN);
+			comp.code.put(code);
+			return true;
+		}
+	}
+}
@@ -2,7 +2,9 @@ package bt.compiler;
 
 import static org.objectweb.asm.Opcodes.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -21,6 +23,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.FieldNode;
@@ -49,11 +52,27 @@ public class Compiler {
 	public static final String TX_RECEIVED_METHOD = "txReceived";
 	public static final int PAGE_SIZE = 256;
 
+	/** Only inline methods called once */
+	public static final int INLINE_MIN_PAGES = 0;
+	/** Inline every method possible */
+	public static final int INLINE_MIN_STEPS = Integer.MAX_VALUE;
+	/** Inline methods up to this size, about the cost of the call itself */
+	public static final int INLINE_DEFAULT = 16;
+	/** First AT version where the denser instructions are selected */
+	public static final int DENSE_VERSION = 2;
+	/**
+	 * Version of the code generation, part of the compile cache key. Should be
+	 * incremented whenever the code or the line table emitted for the same class
+	 * changes.
+	 */
+	public static final int CODEGEN_VERSION = 2;
+
 	private static final String UNEXPECTED_ERROR = "Unexpected error, please report at https://github.com/burst-apps-team/blocktalk/issues";
 	
 	private static Logger logger = LogManager.getLogger();
 
 	ClassNode cn;
+	byte[] classBytes;
 	ByteBuffer code;
 
 	LinkedList<StackVar> stack = new LinkedList<>();
@@ -61,7 +80,16 @@ public class Compiler {
 
 	HashMap<String, Method> methods = new HashMap<>();
 	HashMap<String, Field> fields = new HashMap<>();
-	HashMap<LabelNode, Integer> labels = new HashMap<>();
+	boolean optimize = true;
+	int inlineSize = INLINE_DEFAULT;
+	int targetVersion = BT.getATVersion();
+	Inliner inliner;
+	int deadCodeSize;
+	int relaxedSize;
+	/** Initial data values, from the constant assignments on the constructor */
+	long[] data;
+	/** Variables saved by packing fields */
+	int packedSaved;
 
 	String className;
 
@@ -111,8 +139,22 @@ public class Compiler {
 		}
 
 		// read in, build classNode
+		ClassLoader loader = clazz.getClassLoader() != null ? clazz.getClassLoader() : ClassLoader.getSystemClassLoader();
+		InputStream in = loader.getResourceAsStream(className.replace('.', '/') + ".class");
+		if (in == null)
+			throw new IOException("Class not found: " + className);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				bytes.write(buffer, 0, n);
+			classBytes = bytes.toByteArray();
+		} finally {
+			in.close();
+		}
 		ClassNode classNode = new ClassNode();
-		ClassReader cr = new ClassReader(className);
+		ClassReader cr = new ClassReader(classBytes);
 		cr.accept(classNode, 0);
 
 		this.cn = classNode;
@@ -175,18 +217,33 @@ public class Compiler {
 		return code.position() / PAGE_SIZE + 1;
 	}
 
+	/**
+	 * @return the initial values of the data, starting on address 0, or null if
+	 *         all start as zero
+	 */
+	public long[] getData() {
+		return data;
+	}
+
 	public int getDataPages() {
 		// check if this is actually enough
-		int nvars = localStart + 3;
+		int nvars = lastFreeVar + 2;
 		int npages = nvars / 32 + 1;
 		return npages;
 	}
 
+	/**
+	 * @return the number of data pages saved by the {@link Packed} fields
+	 */
+	public int getPackedSavedPages() {
+		return (lastFreeVar + packedSaved + 2) / 32 + 1 - getDataPages();
+	}
+
 	public String getClassName() {
 		return className;
 	}
 
-	private void readFields() {
+	void readFields() {
 
 		if (!cn.superName.replace('/', '.').equals(Contract.class.getName())) {
 			addError(null, "A contract should derive from " + Contract.class.getName());
@@ -196,6 +253,10 @@ public class Compiler {
 		lastFreeVar = 0;
 		useLocal = false;
 		useCreator = false;
+		packedSaved = 0;
+		// the variables holding packed fields and their bits used
+		ArrayList<Integer> packedVars = new ArrayList<>();
+		ArrayList<Integer> packedBits = new ArrayList<>();
 
 		for (FieldNode f : cn.fields) {
 			logger.debug("field name: {}", f.name);
@@ -234,11 +295,35 @@ public class Compiler {
 			}
 
 			Field fld = new Field();
-			fld.address = lastFreeVar;
 			fld.node = f;
 			fld.size = nvars;
 			fields.put(f.name, fld);
 
+			if (isPacked(f)) {
+				if (desc.equals("Z"))
+					fld.bits = 1;
+				else if (desc.equals("I"))
+					fld.bits = 32;
+				else {
+					addError(null, f.name + ", only boolean and int fields can be packed");
+					continue;
+				}
+				// first variable with enough free bits, a new one otherwise
+				int i = 0;
+				while (i < packedVars.size() && packedBits.get(i) + fld.bits > 64)
+					i++;
+				if (i == packedVars.size()) {
+					packedVars.add(lastFreeVar++);
+					packedBits.add(0);
+				} else
+					packedSaved++;
+				fld.address = packedVars.get(i);
+				fld.shift = packedBits.get(i);
+				packedBits.set(i, fld.shift + fld.bits);
+				continue;
+			}
+
+			fld.address = lastFreeVar;
 			lastFreeVar += nvars;
 		}
 
@@ -264,9 +349,83 @@ public class Compiler {
 		localStart = lastFreeVar++;
 	}
 
+	private static boolean isPacked(FieldNode f) {
+		String desc = org.objectweb.asm.Type.getDescriptor(Packed.class);
+		for (List<AnnotationNode> annotations : Arrays.asList(f.visibleAnnotations, f.invisibleAnnotations)) {
+			if (annotations == null)
+				continue;
+			for (AnnotationNode a : annotations) {
+				if (a.desc.equals(desc))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Enables or disables the code optimizations (enabled by default).
+	 * 
+	 * @param optimize
+	 */
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
+	}
+
+	/**
+	 * Sets the maximum size in bytes of the non public methods to be inlined
+	 * (when optimizing). Methods called only once are always inlined since this
+	 * also reduces the code size.
+	 * 
+	 * Use {@link #INLINE_MIN_PAGES} to get the smallest code (lower deployment
+	 * fee), {@link #INLINE_MIN_STEPS} for the fastest code (lower fee per
+	 * activation) or -1 to disable the inlining.
+	 * 
+	 * @param inlineSize
+	 */
+	public void setInline(int inlineSize) {
+		this.inlineSize = inlineSize;
+	}
+
+	/**
+	 * Sets the AT version the code is compiled for, the denser instructions
+	 * (BEQ_DAT/BNE_DAT, DEC_DAT, NOT_DAT and the paired register setters) are
+	 * only selected from {@link #DENSE_VERSION} on. The default is the version
+	 * registered by {@link BT}, see {@link BT#activateCIP20(boolean)}.
+	 * 
+	 * @param version
+	 */
+	public void setTargetVersion(int version) {
+		this.targetVersion = version;
+	}
+
+	/**
+	 * @return the AT version the code is compiled for
+	 */
+	public int getTargetVersion() {
+		return targetVersion;
+	}
+
+	/**
+	 * @return the size versus steps report of the methods inlined, null if the
+	 *         inlining was not enabled
+	 */
+	public String getInlineReport() {
+		return inliner == null ? null : inliner.toString();
+	}
+
+	/**
+	 * @return the change in steps, measured on the optimized code, if every call
+	 *         site inlined runs once (negative when steps are saved)
+	 */
+	public int getInlineStepChange() {
+		return inliner == null ? 0 : inliner.getStepChange();
+	}
+
 	public void compile() {
 		readFields();
-		readMethods();		
+		readMethods();
+		if (packedSaved > 0)
+			logger.info("Packed fields: {} variables, {} data pages saved", packedSaved, getPackedSavedPages());
 	}
 
 	private void initialCode() {
@@ -286,7 +445,7 @@ public class Compiler {
 
 		// add the jump for the constructor
 		Method initMethod = methods.get(INIT_METHOD);
-		if (initMethod.code.position() > 1) {
+		if (initMethod.code.size() > 1) {
 			// only if we actually have a construction (it is not just the RET command)
 			code.put(OpCode.e_op_code_JMP_SUB);
 			code.putInt(methods.get(INIT_METHOD).address);
@@ -297,7 +456,7 @@ public class Compiler {
 		int afterPCSAddress = code.position();
 		// Check if we have a blockStarted method and put it here
 		Method startedMethod = getMethod(STARTED_METHOD);
-		boolean hasStarted = startedMethod != null && startedMethod.code.position() > 1;
+		boolean hasStarted = startedMethod != null && startedMethod.code.size() > 1;
 		if (hasStarted) {
 			code.put(OpCode.e_op_code_JMP_SUB);
 			code.putInt(startedMethod.address);
@@ -320,7 +479,7 @@ public class Compiler {
 
 		// if zero we will FINISH (after the blockFinish method), otherwise continue
 		Method finishMethod = getMethod(FINISHED_METHOD);
-		boolean hasFinish = finishMethod != null && finishMethod.code.position() > 1;
+		boolean hasFinish = finishMethod != null && finishMethod.code.size() > 1;
 		if (hasPublicMethods || hasTxReceived) {
 			code.put(OpCode.e_op_code_BNZ_DAT);
 			code.putInt(lastTxReceived);
@@ -378,45 +537,22 @@ public class Compiler {
 			code.putShort(OpCode.Get_B1);
 			code.putInt(tmpVar4);
 
+			// binary search over the method hashes, falling back to txReceived
+			ArrayList<Method> entries = new ArrayList<>();
 			for (Method m : methods.values()) {
 				if (m.node.name.equals(MAIN_METHOD) || m.node.name.equals(TX_RECEIVED_METHOD)
 						|| m.node.name.equals(INIT_METHOD) || !Modifier.isPublic(m.node.access))
 					continue;
-
-				if (m.node.name.equals(INIT_METHOD) && m.code.position() < 2)
-					continue; // empty constructor
-
-				code.put(OpCode.e_op_code_SET_VAL);
-				code.putInt(tmpVar1);
-				code.putLong(m.hash);
-
-				code.put(OpCode.e_op_code_SUB_DAT);
-				code.putInt(tmpVar1);
-				code.putInt(tmpVar4);
-
-				code.put(OpCode.e_op_code_BNZ_DAT);
-				code.putInt(tmpVar1);
-				code.put((byte) (16 + m.nargs * 7));
-
-				// load the arguments on the local vars
-				for (int i = 0; i < m.nargs; i++) {
-					useLocal = true;
-					code.put(OpCode.e_op_code_EXT_FUN_RET);
-					code.putShort((short) (OpCode.Get_B1 + i + 1));
-					code.putInt(localStart + 1 + m.localArgPos[i]);
-				}
-				// call the method
-				code.put(OpCode.e_op_code_JMP_SUB);
-				code.putInt(m.address);
-				// end this run (check for the next transaction)
-				code.put(OpCode.e_op_code_JMP_ADR);
-				code.putInt(afterBlockStartedAddress);
+				entries.add(m);
 			}
+			entries.sort((a, b) -> Long.compare(a.hash, b.hash));
+			int notFound = code.position() + dispatchSize(entries, 0, entries.size());
+			dispatch(entries, 0, entries.size(), notFound, afterBlockStartedAddress);
 		}
 
 		// call the txReceived method
 		Method txReceivedMethod = methods.get(TX_RECEIVED_METHOD);
-		if (txReceivedMethod.code.position() > 1) {
+		if (txReceivedMethod.code.size() > 1) {
 			// add method only if it is not empty (just the return command)
 			code.put(OpCode.e_op_code_JMP_SUB);
 			code.putInt(methods.get(TX_RECEIVED_METHOD).address);
@@ -429,50 +565,128 @@ public class Compiler {
 		}
 	}
 
+	/**
+	 * Emits the dispatch for the given range of methods, sorted by hash. Each node
+	 * compares the hash on tmpVar4 with the middle method and calls it when equal,
+	 * otherwise it continues on the lower (placed right after) or on the upper
+	 * half. Only about log2(n) nodes are visited instead of all methods.
+	 */
+	private void dispatch(List<Method> entries, int lo, int hi, int notFound, int afterBlockStartedAddress) {
+		if (lo >= hi) {
+			code.put(OpCode.e_op_code_JMP_ADR);
+			code.putInt(notFound);
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		Method m = entries.get(mid);
+		int nodeStart = code.position();
+
+		code.put(OpCode.e_op_code_SET_VAL);
+		code.putInt(tmpVar1);
+		code.putLong(m.hash);
+
+		code.put(OpCode.e_op_code_BLT_DAT);
+		code.putInt(tmpVar4);
+		code.putInt(tmpVar1);
+		code.put((byte) (30 + dispatchCallSize(m)));
+
+		code.put(OpCode.e_op_code_BGT_DAT);
+		code.putInt(tmpVar4);
+		code.putInt(tmpVar1);
+		code.put((byte) (15 + dispatchCallSize(m)));
+
+		// an empty method is not linked, there is nothing to call
+		if (m.linked) {
+			// load the arguments on the local vars
+			for (int i = 0; i < m.nargs; i++) {
+				code.put(OpCode.e_op_code_EXT_FUN_RET);
+				code.putShort((short) (OpCode.Get_B1 + i + 1));
+				if (m.frame >= 0)
+					code.putInt(m.frame + m.localArgPos[i]);
+				else {
+					// the first frame on the stack starts after all other variables
+					useLocal = true;
+					code.putInt(lastFreeVar + m.localArgPos[i]);
+				}
+			}
+			// call the method
+			code.put(OpCode.e_op_code_JMP_SUB);
+			code.putInt(m.address);
+		}
+		// end this run (check for the next transaction)
+		code.put(OpCode.e_op_code_JMP_ADR);
+		code.putInt(afterBlockStartedAddress);
+
+		// the upper half, after the lower one
+		int lowerStart = nodeStart + dispatchNodeSize(m) + 5;
+		code.put(OpCode.e_op_code_JMP_ADR);
+		code.putInt(mid + 1 < hi ? lowerStart + dispatchSize(entries, lo, mid) : notFound);
+
+		dispatch(entries, lo, mid, notFound, afterBlockStartedAddress);
+		if (mid + 1 < hi)
+			dispatch(entries, mid + 1, hi, notFound, afterBlockStartedAddress);
+	}
+
+	/**
+	 * @return the size in bytes of the dispatch code for the given range
+	 */
+	private static int dispatchSize(List<Method> entries, int lo, int hi) {
+		if (lo >= hi)
+			return 5; // jump to the not found address
+		int mid = (lo + hi) >>> 1;
+		int ret = dispatchNodeSize(entries.get(mid)) + 5 + dispatchSize(entries, lo, mid);
+		if (mid + 1 < hi)
+			ret += dispatchSize(entries, mid + 1, hi);
+		return ret;
+	}
+
+	/**
+	 * @return the size of a dispatch node, the compare, the call and the return
+	 *         jump (not including the jump to the upper half)
+	 */
+	private static int dispatchNodeSize(Method m) {
+		return 13 + 10 + 10 + dispatchCallSize(m) + 5;
+	}
+
+	/**
+	 * @return the size of the argument loads and the call of a dispatch node
+	 */
+	private static int dispatchCallSize(Method m) {
+		return m.linked ? m.nargs * 7 + 5 : 0;
+	}
+
 	public void link() {
 		// we allow here a larger size, there will be an error when registering
 		// if we pass the actual limit
 		code = ByteBuffer.allocate(40 * Compiler.PAGE_SIZE);
 		code.order(ByteOrder.LITTLE_ENDIAN);
 
+		removeDeadCode();
+
 		initialCode();
 		int startMethodsPosition = code.position();
 
-		// determine the address of each method
-		int address = startMethodsPosition; // position of the first method
+		// short branches where the destination is close enough
+		relaxedSize = 0;
 		for (Method m : methods.values()) {
-			if (m.code.position() < 2)
-				continue; // empty method
-			m.address = address;
-			address += m.code.position();
+			if (m.linked)
+				relaxedSize += m.code.relax();
 		}
+		if (relaxedSize > 0)
+			logger.info("Branches relaxed: {} bytes", relaxedSize);
 
-		ByteBuffer posBuffer = ByteBuffer.allocate(4);
-		posBuffer.order(ByteOrder.LITTLE_ENDIAN);
-
-		// resolve all jumps
+		// determine the address of each method
+		int address = startMethodsPosition; // position of the first method
 		for (Method m : methods.values()) {
-			// resolve all offsets
-			for (Method.Jump j : m.jumps) {
-				int jaddress = 0;
-				if (j.method != null)
-					jaddress = j.method.address;
-				else {
-					Integer position = labels.get(j.label);
-					if (position == null) {
-						addError(j.label, "Label not found: " + j.label.getLabel());
-						continue;
-					}
-					jaddress = position + m.address;
-				}
-				byte[] code = m.code.array();
-				posBuffer.putInt(jaddress);
-				posBuffer.clear();
-				byte[] posBytes = posBuffer.array();
-				for (int i = 0; i < posBytes.length; i++) {
-					code[j.position + i] = posBytes[i];
-				}
+			if (!m.linked)
+				continue; // empty or never called
+			if (!m.code.layout()) {
+				addError(m.node.instructions.get(0), "Branch offset too large on method " + m.node.name);
+				return;
 			}
+			m.address = address;
+			m.size = m.code.size();
+			address += m.size;
 		}
 
 		// now with the correct positions
@@ -481,22 +695,91 @@ public class Compiler {
 
 		// add methods
 		for (Method m : methods.values()) {
-			if (m.code.position() < 2)
-				continue; // empty method
+			if (!m.linked)
+				continue; // empty or never called
 
-			if (m.code.position() > code.capacity() - code.position()) {
+			if (m.code.size() > code.capacity() - code.position()) {
 				String methodList = "";
 				for (Method mi : methods.values()) {
-					methodList += "<br>" + mi.node.name + ", length: " + mi.code.position();
+					methodList += "<br>" + mi.node.name + ", length: " + mi.code.size();
 				}
 				addError(m.node.instructions.get(0), "<html>Maximum AT code size exceeded:" + methodList);
 				return;
 			}
-			code.put(m.code.array(), 0, m.code.position());
+			m.code.encode(code, m.address);
+			m.lines = m.code.lines();
 		}
 	}
 
-	private void readMethods() {
+	/**
+	 * Marks the methods to be linked, the ones reachable from the entry points
+	 * (constructor, txReceived, block started and finished and public methods),
+	 * after removing the unreachable code and the calls to empty methods.
+	 */
+	private void removeDeadCode() {
+		deadCodeSize = 0;
+		LinkedList<Method> pending = new LinkedList<>();
+		for (Method m : methods.values()) {
+			m.linked = false;
+			if (isEntryPoint(m))
+				pending.add(m);
+		}
+
+		HashSet<Method> reached = new HashSet<>();
+		while (!pending.isEmpty()) {
+			Method m = pending.poll();
+			if (!reached.add(m))
+				continue;
+			deadCodeSize += m.code.removeUnreachable();
+			for (int i = m.code.length() - 1; i >= 0; i--) {
+				Instruction insn = m.code.get(i);
+				if (insn.op != OpCode.e_op_code_JMP_SUB)
+					continue;
+				if (insn.method.code.size() < 2) {
+					// calling a method that simply returns
+					deadCodeSize += insn.size();
+					m.code.remove(i);
+				} else
+					pending.add(insn.method);
+			}
+			m.linked = m.code.size() > 1;
+		}
+
+		for (Method m : methods.values()) {
+			if (!reached.contains(m) && m.code.size() > 1) {
+				logger.info("Method not used: {}", m.node.name);
+				deadCodeSize += m.code.size();
+			}
+		}
+		if (deadCodeSize > 0)
+			logger.info("Dead code removed: {} bytes", deadCodeSize);
+	}
+
+	/**
+	 * @return true if the given method is called from the initial code
+	 */
+	boolean isEntryPoint(Method m) {
+		String name = m.node.name;
+		return name.equals(INIT_METHOD) || name.equals(TX_RECEIVED_METHOD) || name.equals(STARTED_METHOD)
+				|| name.equals(FINISHED_METHOD) || Modifier.isPublic(m.node.access);
+	}
+
+	/**
+	 * @return the number of bytes of dead code not linked in the contract
+	 */
+	public int getDeadCodeSize() {
+		return deadCodeSize;
+	}
+
+	/**
+	 * @return the number of bytes saved by replacing branches over jumps with
+	 *         short branches
+	 */
+	public int getRelaxedSize() {
+		return relaxedSize;
+	}
+
+	void listMethods() {
 		hasPublicMethods = false;
 		hasTxReceived = false;
 
@@ -517,10 +800,16 @@ public class Compiler {
 				hasPublicMethods = true;
 			}
 		}
+	}
 
+	private void readMethods() {
+		data = null;
+		listMethods();
 		if (errors.size() > 0)
 			return;
 
+		allocateLocals();
+
 		// Then parse
 		for (Method m : methods.values()) {
 			logger.debug("** METHOD: {}", m.node.name);
@@ -528,12 +817,154 @@ public class Compiler {
 				logger.info("METHOD: {}, hash: {}", m.node.name, m.hash);
 			}
 			parseMethod(m);
+		}
 
-			if (m.node.name.equals(TX_RECEIVED_METHOD) && m.code.position() > 1)
+		inliner = null;
+		if (optimize && errors.size() == 0) {
+			if (inlineSize >= 0) {
+				inliner = new Inliner(this, inlineSize);
+				inliner.inline();
+			}
+			for (Method m : methods.values())
+				Optimizer.optimize(this, m);
+			precomputeConstructor();
+		}
+
+		for (Method m : methods.values()) {
+			if (m.node.name.equals(TX_RECEIVED_METHOD) && m.code.size() > 1)
 				hasTxReceived = true;
 		}
 	}
 
+	/**
+	 * Moves the constant field assignments on the start of the constructor to the
+	 * initial data, so they cost neither code nor steps. Only the straight code
+	 * before any branch, call or indirect access is considered and a field is
+	 * moved only if not used before.
+	 */
+	private void precomputeConstructor() {
+		Code init = methods.get(INIT_METHOD).code;
+		HashSet<Instruction> targets = new HashSet<>();
+		for (Instruction insn : init.instructions) {
+			if (insn.target != null)
+				targets.add(insn.target);
+		}
+
+		long[] values = new long[lastTxTimestamp];
+		HashSet<Integer> touched = new HashSet<>();
+		int size = 0;
+		for (int i = 0; i < init.length();) {
+			Instruction insn = init.get(i);
+			if (targets.contains(insn) || !isStraight(insn))
+				break;
+			int address = insn.args.length > 0 ? insn.args[0] : -1;
+			if ((insn.op == OpCode.e_op_code_SET_VAL || insn.op == OpCode.e_op_code_CLR_DAT)
+					&& address < lastTxTimestamp && touched.add(address)) {
+				values[address] = insn.op == OpCode.e_op_code_SET_VAL ? insn.value : 0L;
+				if (values[address] != 0L)
+					size = Math.max(size, address + 1);
+				logger.debug("constructor constant: {} = {}", address, values[address]);
+				init.remove(i);
+				continue;
+			}
+			for (int a : insn.args)
+				touched.add(a);
+			i++;
+		}
+		if (size > 0)
+			data = Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * @return true if the instruction always continues on the next one and only
+	 *         accesses its own arguments
+	 */
+	private static boolean isStraight(Instruction insn) {
+		switch (insn.op) {
+		case OpCode.e_op_code_JMP_SUB:
+		case OpCode.e_op_code_SET_IND:
+		case OpCode.e_op_code_IND_DAT:
+		case OpCode.e_op_code_SET_IDX:
+		case OpCode.e_op_code_IDX_DAT:
+		case OpCode.e_op_code_SLP_DAT:
+		case OpCode.e_op_code_SLP_IMD:
+		case OpCode.e_op_code_FIZ_DAT:
+		case OpCode.e_op_code_STZ_DAT:
+		case OpCode.e_op_code_SET_PCS:
+			return false;
+		default:
+			return insn.target == null && !insn.isTerminal() && Instruction.nargs(insn.op) >= 0;
+		}
+	}
+
+	/**
+	 * Assigns fixed data addresses to the local variables of the methods that
+	 * cannot be reentered. Two methods share the same addresses if they can never
+	 * be active at the same time, i.e. none can be reached from the other.
+	 * 
+	 * Methods part of a recursion keep their locals on a stack indexed by
+	 * localStart, which starts after the fixed ones.
+	 */
+	private void allocateLocals() {
+		HashMap<Method, HashSet<Method>> calls = new HashMap<>();
+		for (Method m : methods.values()) {
+			HashSet<Method> callees = new HashSet<>();
+			Iterator<AbstractInsnNode> ite = m.node.instructions.iterator();
+			while (ite.hasNext()) {
+				AbstractInsnNode insn = ite.next();
+				if (insn instanceof MethodInsnNode) {
+					MethodInsnNode mi = (MethodInsnNode) insn;
+					Method callee = methods.get(mi.name);
+					if (callee != null && mi.owner.replace('/', '.').equals(className))
+						callees.add(callee);
+				}
+			}
+			calls.put(m, callees);
+		}
+
+		// all methods that can be reached from each one
+		HashMap<Method, HashSet<Method>> reach = new HashMap<>();
+		for (Method m : methods.values()) {
+			HashSet<Method> reached = new HashSet<>();
+			LinkedList<Method> pending = new LinkedList<>(calls.get(m));
+			while (!pending.isEmpty()) {
+				Method next = pending.poll();
+				if (reached.add(next))
+					pending.addAll(calls.get(next));
+			}
+			reach.put(m, reached);
+		}
+
+		HashMap<Method, Integer> offset = new HashMap<>();
+		for (Method m : methods.values()) {
+			if (!reach.get(m).contains(m))
+				offset.put(m, 0);
+		}
+		// a method frame goes after the frames of all methods that can call it
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Method m : offset.keySet()) {
+				int end = offset.get(m) + m.node.maxLocals - 1;
+				for (Method callee : reach.get(m)) {
+					Integer calleeOffset = offset.get(callee);
+					if (calleeOffset != null && calleeOffset < end) {
+						offset.put(callee, end);
+						changed = true;
+					}
+				}
+			}
+		}
+
+		int size = 0;
+		for (Map.Entry<Method, Integer> e : offset.entrySet()) {
+			Method m = e.getKey();
+			m.frame = lastFreeVar + e.getValue();
+			size = Math.max(size, e.getValue() + m.node.maxLocals - 1);
+		}
+		lastFreeVar += size;
+	}
+
 	/**
 	 * @return the methods
 	 */
@@ -549,6 +980,33 @@ public class Compiler {
 		return methods.get(name);
 	}
 
+	/**
+	 * @param pc a position in the linked code
+	 * @return the method containing the given code position or null if on the
+	 *         dispatch code
+	 */
+	public Method getMethodAt(int pc) {
+		for (Method m : methods.values()) {
+			if (!m.linked)
+				continue; // empty or never called
+			if (pc >= m.address && pc < m.address + m.size)
+				return m;
+		}
+		return null;
+	}
+
+	/**
+	 * @param pc a position in the linked code
+	 * @return the source line for the given code position, -1 if not known
+	 */
+	public int getLineAt(int pc) {
+		Method m = getMethodAt(pc);
+		if (m == null)
+			return -1;
+		Map.Entry<Integer, Integer> line = m.lines.floorEntry(pc - m.address);
+		return line == null ? -1 : line.getValue();
+	}
+
 	/**
 	 * @return the fields
 	 */
@@ -594,8 +1052,7 @@ public class Compiler {
 		if (v.type == STACK_PUSH) {
 			// pendingPush = v;
 			// is a tmp var, not a field, push to AT stack
-			m.code.put(OpCode.e_op_code_PSH_DAT);
-			m.code.putInt(v.address);
+			m.code.add(OpCode.e_op_code_PSH_DAT, v.address);
 			// pendingPush = null;
 		}
 		return v;
@@ -617,21 +1074,17 @@ public class Compiler {
 		}
 		if (pendingPush != null) {
 			// execute the pending push
-			m.code.put(OpCode.e_op_code_PSH_DAT);
-			m.code.putInt(pendingPush.address);
+			m.code.add(OpCode.e_op_code_PSH_DAT, pendingPush.address);
 			pendingPush = null;
 		}
 
 		if (var.type == STACK_PUSH) {
 			// is a tmp var, pop needed
-			m.code.put(OpCode.e_op_code_POP_DAT);
-			m.code.putInt(destAddress);
+			m.code.add(OpCode.e_op_code_POP_DAT, destAddress);
 			var.address = destAddress;
 		} else if (var.type == STACK_FIELD) {
 			if (forceCopy) {
-				m.code.put(OpCode.e_op_code_SET_DAT);
-				m.code.putInt(destAddress);
-				m.code.putInt(var.address);
+				m.code.add(OpCode.e_op_code_SET_DAT, destAddress, var.address);
 				var.address = destAddress;
 			}
 			// otherwise, do nothing
@@ -642,10 +1095,51 @@ public class Compiler {
 		return var;
 	}
 
-	private void parseMethod(Method m) {
-		ByteBuffer code = ByteBuffer.allocate(40 * Compiler.PAGE_SIZE);
-		code.order(ByteOrder.LITTLE_ENDIAN);
+	/**
+	 * Reads or writes a {@link Packed} field, masking its bits on the shared
+	 * variable.
+	 */
+	private void packedField(Method m, Field field, boolean get) {
+		Code code = m.code;
+		if (get) {
+			stack.pollLast(); // remove the 'this'
+			code.add(OpCode.e_op_code_SET_DAT, tmpVar1, field.address);
+			if (field.shift > 0) {
+				code.setVal(tmpVar2, field.shift);
+				code.add(OpCode.e_op_code_SHR_DAT, tmpVar1, tmpVar2);
+			}
+			if (field.shift + field.bits < 64) {
+				code.setVal(tmpVar2, field.mask());
+				code.add(OpCode.e_op_code_AND_DAT, tmpVar1, tmpVar2);
+			}
+			if (field.bits == 32) {
+				// sign extension of the int
+				code.setVal(tmpVar2, 1L << 31);
+				code.add(OpCode.e_op_code_XOR_DAT, tmpVar1, tmpVar2);
+				code.add(OpCode.e_op_code_SUB_DAT, tmpVar1, tmpVar2);
+			}
+			pushVar(m, tmpVar1);
+			return;
+		}
 
+		popVar(m, tmpVar1, true);
+		stack.pollLast(); // remove the 'this'
+		if (field.bits == 32 && field.shift + field.bits < 64) {
+			// remove the sign extension, booleans are already 0 or 1
+			code.setVal(tmpVar2, field.mask());
+			code.add(OpCode.e_op_code_AND_DAT, tmpVar1, tmpVar2);
+		}
+		if (field.shift > 0) {
+			code.setVal(tmpVar2, field.shift);
+			code.add(OpCode.e_op_code_SHL_DAT, tmpVar1, tmpVar2);
+		}
+		code.setVal(tmpVar2, ~(field.mask() << field.shift));
+		code.add(OpCode.e_op_code_AND_DAT, field.address, tmpVar2);
+		code.add(OpCode.e_op_code_BOR_DAT, field.address, tmpVar1);
+	}
+
+	private void parseMethod(Method m) {
+		Code code = new Code();
 		m.code = code;
 
 		if (m.node.name.equals(INIT_METHOD)) {
@@ -677,14 +1171,14 @@ public class Compiler {
 				// This is a label or line number information
 				if (insn instanceof LabelNode) {
 					LabelNode ln = (LabelNode) insn;
-					labels.put(ln, code.position());
+					code.place(ln);
 					logger.debug("label: {}", ln.getLabel());
+				} else if (insn instanceof LineNumberNode) {
+					// keep track of the source lines for profiling
+					code.line(((LineNumberNode) insn).line);
 				}
 				/*
-				 * else if(insn instanceof LineNumberNode) { LineNumberNode ln =
-				 * (LineNumberNode) insn;
-				 * 
-				 * System.out.println("line: " + ln.line); } else if(insn instanceof FrameNode)
+				 * else if(insn instanceof FrameNode)
 				 * { FrameNode fn = (FrameNode) insn;
 				 * 
 				 * System.out.println("frame type: " + fn.getType()); } else {
@@ -708,22 +1202,20 @@ public class Compiler {
 			case ALOAD:
 				if (insn instanceof VarInsnNode) {
 					VarInsnNode vi = (VarInsnNode) insn;
-					if (vi.var > 0) {
+					if (vi.var > 0 && m.frame >= 0) {
+						// fixed address
+						pushVar(m, m.frame + vi.var - 1);
+					} else if (vi.var > 0) {
 						useLocal = true;
 						// tmpVar2 have the local index, starting at localStart
-						code.put(OpCode.e_op_code_SET_DAT);
-						code.putInt(tmpVar2);
-						code.putInt(localStart);
+						code.add(OpCode.e_op_code_SET_DAT, tmpVar2, localStart);
 
 						// increment the index if 2 or higher
 						for (int i = 0; i < vi.var - 1; i++) {
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar2);
+							code.add(OpCode.e_op_code_INC_DAT, tmpVar2);
 						}
 						// set tmpVar1 using the index on tmpVar2
-						code.put(OpCode.e_op_code_SET_IND);
-						code.putInt(tmpVar1);
-						code.putInt(tmpVar2);
+						code.add(OpCode.e_op_code_SET_IND, tmpVar1, tmpVar2);
 
 						pushVar(m, tmpVar1);
 					} else {
@@ -744,25 +1236,25 @@ public class Compiler {
 					if (vi.var == 0)
 						addError(insn, UNEXPECTED_ERROR);
 					// local 0 is 'this', others are stored after 'localStart' variable
+					// or on a fixed address
 
-					arg1 = popVar(m, tmpVar1, false);
 					logger.debug("store local: " + vi.var);
+					if (m.frame >= 0) {
+						popVar(m, m.frame + vi.var - 1, true);
+						break;
+					}
+					arg1 = popVar(m, tmpVar1, false);
 
 					// tmpVar2 have the local index, starting at localStart
 					useLocal = true;
-					code.put(OpCode.e_op_code_SET_DAT);
-					code.putInt(tmpVar2);
-					code.putInt(localStart);
+					code.add(OpCode.e_op_code_SET_DAT, tmpVar2, localStart);
 
 					// increment the index if 2 or higher
 					for (int i = 0; i < vi.var - 1; i++) {
-						code.put(OpCode.e_op_code_INC_DAT);
-						code.putInt(tmpVar2);
+						code.add(OpCode.e_op_code_INC_DAT, tmpVar2);
 					}
 					// set var using the index on tmpVar2
-					code.put(OpCode.e_op_code_IND_DAT);
-					code.putInt(tmpVar2);
-					code.putInt(arg1.address);
+					code.add(OpCode.e_op_code_IND_DAT, tmpVar2, arg1.address);
 				} else {
 					addError(insn, UNEXPECTED_ERROR);
 				}
@@ -775,23 +1267,19 @@ public class Compiler {
 			case I2C: // int 2 char
 			case I2S: // int 2 short
 				arg1 = popVar(m, tmpVar1, true);
-				code.put(OpCode.e_op_code_SET_VAL);
-				code.putInt(tmpVar2);
 				switch (opcode) {
 				case L2I:
-					code.putLong(0xFFFFFFFFL);
+					code.setVal(tmpVar2, 0xFFFFFFFFL);
 					break;
 				case I2B:
-					code.putLong(0xFFL);
+					code.setVal(tmpVar2, 0xFFL);
 					break;
 				case I2C:
 				case I2S:
-					code.putLong(0xFFFFL);
+					code.setVal(tmpVar2, 0xFFFFL);
 					break;
 				}
-				code.put(OpCode.e_op_code_AND_DAT);
-				code.putInt(arg1.address);
-				code.putInt(tmpVar2);
+				code.add(OpCode.e_op_code_AND_DAT, arg1.address, tmpVar2);
 
 				pushVar(m, arg1.address);
 				break;
@@ -802,18 +1290,14 @@ public class Compiler {
 			case ICONST_3:
 			case ICONST_4:
 			case ICONST_5:
-				code.put(OpCode.e_op_code_SET_VAL);
-				code.putInt(tmpVar2);
-				code.putLong(opcode - ICONST_0);
+				code.setVal(tmpVar2, opcode - ICONST_0);
 
 				pushVar(m, tmpVar2);
 				logger.debug("iconstant : " + (opcode - ICONST_0));
 				break;
 
 			case LCONST_1:
-				code.put(OpCode.e_op_code_SET_VAL);
-				code.putInt(tmpVar2);
-				code.putLong(opcode - LCONST_0);
+				code.setVal(tmpVar2, opcode - LCONST_0);
 
 				pushVar(m, tmpVar2);
 				logger.debug("lconstant : " + (opcode - LCONST_0));
@@ -822,8 +1306,7 @@ public class Compiler {
 			case ACONST_NULL:
 			case ICONST_0:
 			case LCONST_0:
-				code.put(OpCode.e_op_code_CLR_DAT);
-				code.putInt(tmpVar2);
+				code.add(OpCode.e_op_code_CLR_DAT, tmpVar2);
 
 				pushVar(m, tmpVar2);
 				logger.debug("load null/zero");
@@ -849,49 +1332,49 @@ public class Compiler {
 				arg2 = popVar(m, tmpVar2, false);
 				arg1 = popVar(m, tmpVar1, true);
 
+				byte op;
 				switch (opcode) {
 				case ISUB:
 				case LSUB:
 					logger.debug("sub");
-					code.put(OpCode.e_op_code_SUB_DAT);
+					op = OpCode.e_op_code_SUB_DAT;
 					break;
 				case IMUL:
 				case LMUL:
 					logger.debug("mul");
-					code.put(OpCode.e_op_code_MUL_DAT);
+					op = OpCode.e_op_code_MUL_DAT;
 					break;
 				case IDIV:
 				case LDIV:
 					logger.debug("div");
-					code.put(OpCode.e_op_code_DIV_DAT);
+					op = OpCode.e_op_code_DIV_DAT;
 					break;
 				case IREM:
 				case LREM:
 					logger.debug("mod");
-					code.put(OpCode.e_op_code_MOD_DAT);
+					op = OpCode.e_op_code_MOD_DAT;
 					break;
 				case IAND:
 				case LAND:
 					logger.debug("AND");
-					code.put(OpCode.e_op_code_AND_DAT);
+					op = OpCode.e_op_code_AND_DAT;
 					break;
 				case IOR:
 				case LOR:
 					logger.debug("OR");
-					code.put(OpCode.e_op_code_BOR_DAT);
+					op = OpCode.e_op_code_BOR_DAT;
 					break;
 				case IXOR:
 				case LXOR:
 					logger.debug("XOR");
-					code.put(OpCode.e_op_code_XOR_DAT);
+					op = OpCode.e_op_code_XOR_DAT;
 					break;
 				default:
 					logger.debug("add");
-					code.put(OpCode.e_op_code_ADD_DAT);
+					op = OpCode.e_op_code_ADD_DAT;
 					break;
 				}
-				code.putInt(arg1.address);
-				code.putInt(arg2.address);
+				code.add(op, arg1.address, arg2.address);
 
 				pushVar(m, tmpVar1);
 				break;
@@ -901,11 +1384,8 @@ public class Compiler {
 
 				arg1 = popVar(m, tmpVar2, false);
 
-				code.put(OpCode.e_op_code_CLR_DAT);
-				code.putInt(tmpVar1);
-				code.put(OpCode.e_op_code_SUB_DAT);
-				code.putInt(tmpVar1);
-				code.putInt(arg1.address);
+				code.add(OpCode.e_op_code_CLR_DAT, tmpVar1);
+				code.add(OpCode.e_op_code_SUB_DAT, tmpVar1, arg1.address);
 
 				pushVar(m, tmpVar1);
 				break;
@@ -917,13 +1397,12 @@ public class Compiler {
 				arg1 = stack.pollLast();
 				if (arg1.type != STACK_PUSH) {
 					// add the pending push
-					m.code.put(OpCode.e_op_code_PSH_DAT);
-					m.code.putInt(arg1.address);
+					m.code.add(OpCode.e_op_code_PSH_DAT, arg1.address);
 				}
 			case RETURN:
 				// Recalling that every method call will use JMP_SUB
 				logger.debug("return");
-				code.put(OpCode.e_op_code_RET_SUB);
+				code.add(OpCode.e_op_code_RET_SUB);
 				break;
 
 			case DUP: // duplicate the value on top of the stack
@@ -968,28 +1447,17 @@ public class Compiler {
 							arg1 = popVar(m, tmpVar1, false);
 							arg2 = popVar(m, tmpVar2, false);
 
-							code.put(OpCode.e_op_code_CLR_DAT);
-							code.putInt(tmpVar3);
-							if (mi.name.equals("ge"))
-								code.put(OpCode.e_op_code_BLT_DAT);
-							else
-								code.put(OpCode.e_op_code_BGT_DAT);
-							code.putInt(arg2.address);
-							code.putInt(arg1.address);
-							code.put((byte) 0x0f); // offset
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar3);
+							code.add(OpCode.e_op_code_CLR_DAT, tmpVar3);
+							code.branchOver(mi.name.equals("ge") ? OpCode.e_op_code_BLT_DAT : OpCode.e_op_code_BGT_DAT,
+									arg2.address, arg1.address);
+							code.add(OpCode.e_op_code_INC_DAT, tmpVar3);
 							pushVar(m, tmpVar3);
 						} else if (mi.name.equals("addMinutes")) {
 							// we should have two arguments
 							arg2 = popVar(m, tmpVar2, false); // minutes
 							arg1 = popVar(m, tmpVar1, false); // the timestamp
 
-							code.put(OpCode.e_op_code_EXT_FUN_RET_DAT_2);
-							code.putShort(OpCode.Add_Minutes_To_Timestamp);
-							code.putInt(tmpVar3);
-							code.putInt(arg1.address);
-							code.putInt(arg2.address);
+							code.function(OpCode.e_op_code_EXT_FUN_RET_DAT_2, OpCode.Add_Minutes_To_Timestamp, tmpVar3, arg1.address, arg2.address);
 							pushVar(m, tmpVar3);
 						} else if (mi.name.equals("getValue")) {
 							// it is the timestamp object itself (already on stack)
@@ -1020,21 +1488,15 @@ public class Compiler {
 							pushVar(m, lastTxAmount);
 						} else if (mi.name.equals("getCurrentBalance")) {
 							stack.pollLast(); // remove the "this" from stack
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Get_Current_Balance);
-							code.putInt(tmpVar1);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_Current_Balance, tmpVar1);
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getTxAfterTimestamp")) {
 							arg1 = popVar(m, tmpVar1, false); // timestamp
 							stack.pollLast(); // remove the "this" from stack
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.A_To_Tx_After_Timestamp);
-							code.putInt(arg1.address);
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.A_To_Tx_After_Timestamp, arg1.address);
 
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Get_A1);
-							code.putInt(tmpVar2);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_A1, tmpVar2);
 							pushVar(m, tmpVar2);
 						} else if (mi.name.equals("parseAddress")) {
 							StackVar address = stack.pollLast();
@@ -1048,9 +1510,7 @@ public class Compiler {
 								addError(mi, ex.getMessage());
 							}
 
-							code.put(OpCode.e_op_code_SET_VAL);
-							code.putInt(tmpVar1);
-							code.putLong(value);
+							code.setVal(tmpVar1, value);
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getAddress")) {
 							arg1 = popVar(m, tmpVar1, false); // the address
@@ -1065,118 +1525,84 @@ public class Compiler {
 						} else if (mi.name.equals("getCreationTimestamp")) {
 							stack.pollLast(); // remove the "this" from stack
 
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Get_Creation_Timestamp);
-							code.putInt(tmpVar1);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_Creation_Timestamp, tmpVar1);
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getBlockTimestamp")) {
 							stack.pollLast(); // remove the "this" from stack
 
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Get_Block_Timestamp);
-							code.putInt(tmpVar1);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_Block_Timestamp, tmpVar1);
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getBlockHeight")) {
 							stack.pollLast(); // remove the "this" from stack
 
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Get_Block_Timestamp);
-							code.putInt(tmpVar1);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_Block_Timestamp, tmpVar1);
 							
 							// Get only the block height, removing the number of txs
-							code.put(OpCode.e_op_code_SET_VAL);
-							code.putInt(tmpVar2);
-							code.putLong(32L);
+							code.setVal(tmpVar2, 32L);
 
-							code.put(OpCode.e_op_code_SHR_DAT);
-							code.putInt(tmpVar1);
-							code.putInt(tmpVar2);
+							code.add(OpCode.e_op_code_SHR_DAT, tmpVar1, tmpVar2);
 							
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getPrevBlockHash")) {
 							stack.pollLast(); // remove the "this" from stack
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Put_Last_Block_Hash_In_A);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Put_Last_Block_Hash_In_A);
 
 							// Load the 4 register values
 							for (int i = 0; i < 4; i++) {
-								code.put(OpCode.e_op_code_EXT_FUN_RET);
-								code.putShort((short) (OpCode.Get_A1 + i));
-								code.putInt(tmpVar1);
+								code.function(OpCode.e_op_code_EXT_FUN_RET, (short) (OpCode.Get_A1 + i), tmpVar1);
 								pushVar(m, tmpVar1);
 							}
 						} else if (mi.name.equals("getPrevBlockHash1")) {
 							stack.pollLast(); // remove the "this" from stack
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Put_Last_Block_Hash_In_A);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Put_Last_Block_Hash_In_A);
 
 							// Load the first value
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort((short) (OpCode.Get_A1));
-							code.putInt(tmpVar1);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, (short) (OpCode.Get_A1), tmpVar1);
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getPrevBlockTimestamp")) {
 							stack.pollLast(); // remove the "this" from stack
 
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Get_Last_Block_Timestamp);
-							code.putInt(tmpVar1);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_Last_Block_Timestamp, tmpVar1);
 
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("sleepOneBlock")) {
 							stack.pollLast(); // remove the "this" from stack
-							code.put(OpCode.e_op_code_SLP_IMD);
+							code.add(OpCode.e_op_code_SLP_IMD);
 						} else if (mi.name.equals("sleep")) {
 							arg1 = popVar(m, tmpVar1, false);
 							stack.pollLast(); // remove the "this" from stack
 
-							code.put(OpCode.e_op_code_SLP_DAT);
-							code.putInt(arg1.address);
+							code.add(OpCode.e_op_code_SLP_DAT, arg1.address);
 						} else if (mi.name.equals("sendAmount")) {
 							arg1 = popVar(m, tmpVar1, false); // address
 							arg2 = popVar(m, tmpVar2, false); // amount
 							stack.pollLast(); // remove the 'this'
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B1);
-							code.putInt(arg1.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_B1, arg1.address); // address
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Send_To_Address_In_B);
-							code.putInt(arg2.address); // amount
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Send_To_Address_In_B, arg2.address); // amount
 						} else if (mi.name.equals("sendBalance")) {
 							StackVar address = stack.pollLast();
 							stack.pollLast(); // remove the 'this'
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B1);
-							code.putInt(address.address);
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_B1, address.address);
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Send_All_To_Address_In_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Send_All_To_Address_In_B);
 						} else if (mi.name.equals("performSHA256_64")) {
 							arg2 = popVar(m, tmpVar1, false); // input2
 							arg1 = popVar(m, tmpVar2, false); // input1
 							stack.pollLast(); // remove the 'this'
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Clear_A);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Clear_A);
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(arg1.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A2);
-							code.putInt(arg2.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, arg1.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A2, arg2.address); // address
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.SHA256_A_To_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.SHA256_A_To_B);
 
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Get_B1);
-							code.putInt(tmpVar1); // resulting hash
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_B1, tmpVar1); // resulting hash
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("performSHA256")) {
 							arg4 = popVar(m, tmpVar1, false); // input4
@@ -1185,33 +1611,20 @@ public class Compiler {
 							arg1 = popVar(m, tmpVar4, false); // input1
 							stack.pollLast(); // remove the 'this'
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(arg1.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A2);
-							code.putInt(arg2.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A3);
-							code.putInt(arg3.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A4);
-							code.putInt(arg4.address); // address
-
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.SHA256_A_To_B);
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, arg1.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A2, arg2.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A3, arg3.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A4, arg4.address); // address
+
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.SHA256_A_To_B);
 
 							for (int i = 0; i < 4; i++) {
-								code.put(OpCode.e_op_code_EXT_FUN_RET);
-								code.putShort((short) (OpCode.Get_B1 + i));
-								code.putInt(tmpVar1); // resulting hash
+								code.function(OpCode.e_op_code_EXT_FUN_RET, (short) (OpCode.Get_B1 + i), tmpVar1); // resulting hash
 								pushVar(m, tmpVar1);
 							}
 						} else if (mi.name.equals("sendMessage")) {
 							arg1 = popVar(m, tmpVar1, false); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B1);
-							code.putInt(arg1.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_B1, arg1.address); // address
 
 							if (mi.desc.equals("(Ljava/lang/String;Lbt/Address;)V")) {
 								// It should be a constant string, fill A1-A4 with 4*longs
@@ -1226,40 +1639,28 @@ public class Compiler {
 										c <<= 8 * i;
 										value += c;
 									}
-									code.put(OpCode.e_op_code_SET_VAL);
-									code.putInt(tmpVar1);
-									code.putLong(value);
+									code.setVal(tmpVar1, value);
 
-									code.put(OpCode.e_op_code_EXT_FUN_DAT);
-									code.putShort((short) (OpCode.Set_A1 + a));
-									code.putInt(tmpVar1);
+									code.function(OpCode.e_op_code_EXT_FUN_DAT, (short) (OpCode.Set_A1 + a), tmpVar1);
 								}
 							}
 							else if (mi.desc.equals("(JLbt/Address;)V")) {
 								// single long argument
 								StackVar msg = popVar(m, tmpVar1, false);
 								
-								code.put(OpCode.e_op_code_EXT_FUN);
-								code.putShort(OpCode.Clear_A);
+								code.function(OpCode.e_op_code_EXT_FUN, OpCode.Clear_A);
 								
-								code.put(OpCode.e_op_code_EXT_FUN_DAT);
-								code.putShort((short) (OpCode.Set_A1));
-								code.putInt(msg.address);
+								code.function(OpCode.e_op_code_EXT_FUN_DAT, (short) (OpCode.Set_A1), msg.address);
 							}
 							else if (mi.desc.equals("(JJLbt/Address;)V")) {
 								// two long arguments
 								StackVar msg2 = popVar(m, tmpVar2, false);
 								StackVar msg = popVar(m, tmpVar1, false);
 								
-								code.put(OpCode.e_op_code_EXT_FUN);
-								code.putShort(OpCode.Clear_A);
+								code.function(OpCode.e_op_code_EXT_FUN, OpCode.Clear_A);
 								
-								code.put(OpCode.e_op_code_EXT_FUN_DAT);
-								code.putShort((short) (OpCode.Set_A1));
-								code.putInt(msg.address);
-								code.put(OpCode.e_op_code_EXT_FUN_DAT);
-								code.putShort((short) (OpCode.Set_A2));
-								code.putInt(msg2.address);
+								code.function(OpCode.e_op_code_EXT_FUN_DAT, (short) (OpCode.Set_A1), msg.address);
+								code.function(OpCode.e_op_code_EXT_FUN_DAT, (short) (OpCode.Set_A2), msg2.address);
 							}
 							else if (mi.desc.equals("(JJJJLbt/Address;)V")) {
 								// four long arguments
@@ -1268,31 +1669,20 @@ public class Compiler {
 								StackVar msg2 = popVar(m, tmpVar2, false);
 								StackVar msg = popVar(m, tmpVar1, false);
 								
-								code.put(OpCode.e_op_code_EXT_FUN_DAT);
-								code.putShort((short) (OpCode.Set_A1));
-								code.putInt(msg.address);
-								code.put(OpCode.e_op_code_EXT_FUN_DAT);
-								code.putShort((short) (OpCode.Set_A2));
-								code.putInt(msg2.address);
-								code.put(OpCode.e_op_code_EXT_FUN_DAT);
-								code.putShort((short) (OpCode.Set_A3));
-								code.putInt(msg3.address);
-								code.put(OpCode.e_op_code_EXT_FUN_DAT);
-								code.putShort((short) (OpCode.Set_A4));
-								code.putInt(msg4.address);
+								code.function(OpCode.e_op_code_EXT_FUN_DAT, (short) (OpCode.Set_A1), msg.address);
+								code.function(OpCode.e_op_code_EXT_FUN_DAT, (short) (OpCode.Set_A2), msg2.address);
+								code.function(OpCode.e_op_code_EXT_FUN_DAT, (short) (OpCode.Set_A3), msg3.address);
+								code.function(OpCode.e_op_code_EXT_FUN_DAT, (short) (OpCode.Set_A4), msg4.address);
 							}
 							else {
 								// We should have received a Register, it is on stack
 								for (int i = 3; i >= 0; i--) {
 									StackVar reg = popVar(m, tmpVar1, false);
-									code.put(OpCode.e_op_code_EXT_FUN_DAT);
-									code.putShort((short) (OpCode.Set_A1 + i));
-									code.putInt(reg.address);
+									code.function(OpCode.e_op_code_EXT_FUN_DAT, (short) (OpCode.Set_A1 + i), reg.address);
 								}
 							}
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Send_A_To_Address_In_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Send_A_To_Address_In_B);
 
 							stack.pollLast(); // remove the 'this'
 						} else {
@@ -1304,51 +1694,41 @@ public class Compiler {
 							}
 
 							// update the local variable start position to not conflict with this one
-							if (m.node.maxLocals > 1) {
+							if (m.frame < 0 && m.node.maxLocals > 1) {
 								useLocal = true;
-								code.put(OpCode.e_op_code_SET_VAL);
-								code.putInt(tmpVar1);
-								code.putLong(m.node.maxLocals - 1);
-								code.put(OpCode.e_op_code_ADD_DAT);
-								code.putInt(localStart);
-								code.putInt(tmpVar1);
+								code.setVal(tmpVar1, m.node.maxLocals - 1);
+								code.add(OpCode.e_op_code_ADD_DAT, localStart, tmpVar1);
 							}
 
 							// load the arguments as local variables, tmpVar2 is the index
 							for (int i = 0; i < mcall.nargs; i++) {
+								if (mcall.frame >= 0) {
+									// directly on the fixed address
+									popVar(m, mcall.frame + mcall.localArgPos[i], true);
+									continue;
+								}
 								if (i == 0) {
 									useLocal = true;
-									code.put(OpCode.e_op_code_SET_DAT);
-									code.putInt(tmpVar2);
-									code.putInt(localStart);
+									code.add(OpCode.e_op_code_SET_DAT, tmpVar2, localStart);
 								}
 
 								StackVar argi = popVar(m, tmpVar1, false);
-								code.put(OpCode.e_op_code_IND_DAT);
-								code.putInt(tmpVar2);
-								code.putInt(argi.address);
+								code.add(OpCode.e_op_code_IND_DAT, tmpVar2, argi.address);
 
 								// increment the local postion, not needed if this is the last argument
 								for (int j = 0; i < mcall.nargs - 1 && j < mcall.localArgSize[i]; j++) {
-									code.put(OpCode.e_op_code_INC_DAT);
-									code.putInt(tmpVar2);
+									code.add(OpCode.e_op_code_INC_DAT, tmpVar2);
 								}
 							}
 							stack.pollLast(); // remove the 'this'
 
 							// call method here
-							code.put(OpCode.e_op_code_JMP_SUB);
-							m.jumps.add(new Method.Jump(code.position(), mcall));
-							code.putInt(0); // address, to be resolved latter
+							code.call(mcall); // address, to be resolved latter
 
 							// update the local variable start position back
-							if (m.node.maxLocals > 1) {
-								code.put(OpCode.e_op_code_SET_VAL);
-								code.putInt(tmpVar1);
-								code.putLong(m.node.maxLocals - 1);
-								code.put(OpCode.e_op_code_SUB_DAT);
-								code.putInt(localStart);
-								code.putInt(tmpVar1);
+							if (m.frame < 0 && m.node.maxLocals > 1) {
+								code.setVal(tmpVar1, m.node.maxLocals - 1);
+								code.add(OpCode.e_op_code_SUB_DAT, localStart, tmpVar1);
 							}
 
 							// check if the method has a return value
@@ -1361,27 +1741,18 @@ public class Compiler {
 						if (mi.name.equals("getSenderAddress")) {
 							arg1 = popVar(m, tmpVar1, false); // the TX we want the address
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(arg1.address);
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, arg1.address);
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.B_To_Address_Of_Tx_In_A);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.B_To_Address_Of_Tx_In_A);
 
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Get_B1);
-							code.putInt(tmpVar1);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_B1, tmpVar1);
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getAmount")) {
 							arg1 = popVar(m, tmpVar1, false); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(arg1.address); // the TX address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, arg1.address); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Get_Amount_For_Tx_In_A);
-							code.putInt(tmpVar1); // the amount
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_Amount_For_Tx_In_A, tmpVar1); // the amount
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getId")) {
 							// it is the getId, the object itself is already on stack
@@ -1389,30 +1760,21 @@ public class Compiler {
 						} else if (mi.name.equals("getTimestamp")) {
 							arg1 = popVar(m, tmpVar1, false); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(arg1.address); // the TX address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, arg1.address); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Get_Timestamp_For_Tx_In_A);
-							code.putInt(tmpVar1); // the timestamp
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Get_Timestamp_For_Tx_In_A, tmpVar1); // the timestamp
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getMessage")) {
 							arg1 = popVar(m, tmpVar1, false); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(arg1.address); // the TX address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, arg1.address); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Message_From_Tx_In_A_To_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Message_From_Tx_In_A_To_B);
 
 							// we push the four longs to the stack, so the field that receive
 							// this should consume all of them
 							for (int i = 0; i < 4; i++) {
-								code.put(OpCode.e_op_code_EXT_FUN_RET);
-								code.putShort((short) (OpCode.Get_B1 + i));
-								code.putInt(tmpVar1); // the message contents
+								code.function(OpCode.e_op_code_EXT_FUN_RET, (short) (OpCode.Get_B1 + i), tmpVar1); // the message contents
 								pushVar(m, tmpVar1);
 							}
 						} else if (mi.name.equals("checkMessageSHA256")) {
@@ -1423,32 +1785,18 @@ public class Compiler {
 
 							StackVar txArg = popVar(m, tmpVar5, false); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(txArg.address); // the TX address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, txArg.address); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Message_From_Tx_In_A_To_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Message_From_Tx_In_A_To_B);
 							
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Copy_A_From_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Copy_A_From_B);
 							
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B1);
-							code.putInt(arg1.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B2);
-							code.putInt(arg2.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B3);
-							code.putInt(arg3.address); // address
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_B4);
-							code.putInt(arg4.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_B1, arg1.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_B2, arg2.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_B3, arg3.address); // address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_B4, arg4.address); // address
 							
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort(OpCode.Check_SHA256_A_With_B);
-							code.putInt(tmpVar1); // the check result
+							code.function(OpCode.e_op_code_EXT_FUN_RET, OpCode.Check_SHA256_A_With_B, tmpVar1); // the check result
 							
 							pushVar(m, tmpVar1);
 							
@@ -1460,102 +1808,61 @@ public class Compiler {
 
 							StackVar txArg = popVar(m, tmpVar5, false); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(txArg.address); // the TX address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, txArg.address); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Message_From_Tx_In_A_To_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Message_From_Tx_In_A_To_B);
 							
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Copy_A_From_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Copy_A_From_B);
 							
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.SHA256_A_To_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.SHA256_A_To_B);
 							
 							// tmpVar1 will be zero if match
-							code.put(OpCode.e_op_code_CLR_DAT);
-							code.putInt(tmpVar1);
+							code.add(OpCode.e_op_code_CLR_DAT, tmpVar1);
 
 							// check 2
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort((short) (OpCode.Get_B2));
-							code.putInt(tmpVar5);
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(arg2.address);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar1);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, (short) (OpCode.Get_B2), tmpVar5);
+							code.add(OpCode.e_op_code_SUB_DAT, tmpVar5, arg2.address);
+							code.branchOver(OpCode.e_op_code_BNZ_DAT, tmpVar5);
+							code.add(OpCode.e_op_code_INC_DAT, tmpVar1);
 							
 							// check 3
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort((short) (OpCode.Get_B3));
-							code.putInt(tmpVar5);
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(arg3.address);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar1);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, (short) (OpCode.Get_B3), tmpVar5);
+							code.add(OpCode.e_op_code_SUB_DAT, tmpVar5, arg3.address);
+							code.branchOver(OpCode.e_op_code_BNZ_DAT, tmpVar5);
+							code.add(OpCode.e_op_code_INC_DAT, tmpVar1);
 							
 							// check 4
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort((short) (OpCode.Get_B4));
-							code.putInt(tmpVar5);
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(arg4.address);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar1);
+							code.function(OpCode.e_op_code_EXT_FUN_RET, (short) (OpCode.Get_B4), tmpVar5);
+							code.add(OpCode.e_op_code_SUB_DAT, tmpVar5, arg4.address);
+							code.branchOver(OpCode.e_op_code_BNZ_DAT, tmpVar5);
+							code.add(OpCode.e_op_code_INC_DAT, tmpVar1);
 							
 							// tmpVar1 is zero if match, so we return 1 if match
-							code.put(OpCode.e_op_code_CLR_DAT);
-							code.putInt(tmpVar2);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar1);
-							code.put((byte) 0x0b); // offset
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar2);
+							code.add(OpCode.e_op_code_CLR_DAT, tmpVar2);
+							code.branchOver(OpCode.e_op_code_BNZ_DAT, tmpVar1);
+							code.add(OpCode.e_op_code_INC_DAT, tmpVar2);
 							
 							pushVar(m, tmpVar2);
 							
 						} else if (mi.name.equals("getMessage1")) {
 							arg1 = popVar(m, tmpVar1, false); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(arg1.address); // the TX address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, arg1.address); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Message_From_Tx_In_A_To_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Message_From_Tx_In_A_To_B);
 
 							// we push only the first long to the stack
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort((short) (OpCode.Get_B1));
-							code.putInt(tmpVar1); // the message contents
+							code.function(OpCode.e_op_code_EXT_FUN_RET, (short) (OpCode.Get_B1), tmpVar1); // the message contents
 							pushVar(m, tmpVar1);
 						} else if (mi.name.equals("getMessage2")) {
 							arg1 = popVar(m, tmpVar1, false); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN_DAT);
-							code.putShort(OpCode.Set_A1);
-							code.putInt(arg1.address); // the TX address
+							code.function(OpCode.e_op_code_EXT_FUN_DAT, OpCode.Set_A1, arg1.address); // the TX address
 
-							code.put(OpCode.e_op_code_EXT_FUN);
-							code.putShort(OpCode.Message_From_Tx_In_A_To_B);
+							code.function(OpCode.e_op_code_EXT_FUN, OpCode.Message_From_Tx_In_A_To_B);
 
 							// we push only the first long to the stack
-							code.put(OpCode.e_op_code_EXT_FUN_RET);
-							code.putShort((short) (OpCode.Get_B2));
-							code.putInt(tmpVar1); // the message contents
+							code.function(OpCode.e_op_code_EXT_FUN_RET, (short) (OpCode.Get_B2), tmpVar1); // the message contents
 							pushVar(m, tmpVar1);
 						} else {
 							addError(insn, UNEXPECTED_ERROR);
@@ -1565,18 +1872,12 @@ public class Compiler {
 							arg1 = popVar(m, tmpVar1, true); // the obj 1
 							arg2 = popVar(m, tmpVar2, false); // the obj 2
 
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(arg1.address);
-							code.putInt(arg2.address);
+							code.add(OpCode.e_op_code_SUB_DAT, arg1.address, arg2.address);
 
-							code.put(OpCode.e_op_code_CLR_DAT);
-							code.putInt(tmpVar2);
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar1);
-							code.put((byte) 0x0b); // offset
+							code.add(OpCode.e_op_code_CLR_DAT, tmpVar2);
+							code.branchOver(OpCode.e_op_code_BNZ_DAT, tmpVar1);
 
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar2);
+							code.add(OpCode.e_op_code_INC_DAT, tmpVar2);
 							pushVar(m, tmpVar2);
 						} else {
 							addError(insn, UNEXPECTED_ERROR);
@@ -1592,42 +1893,28 @@ public class Compiler {
 							pushVar(m, values[pos].address);
 						}
 						else if (mi.name.equals("equals")) {
-							code.put(OpCode.e_op_code_CLR_DAT);
-							code.putInt(tmpVar5);
+							code.add(OpCode.e_op_code_CLR_DAT, tmpVar5);
 
 							// we have another register on stack
 							for (int i = values.length - 1; i >= 0; i--) {
 								StackVar other = popVar(m, tmpVar6, false);
 
-								code.put(OpCode.e_op_code_SUB_DAT);
-								code.putInt(values[i].address);
-								code.putInt(other.address);
+								code.add(OpCode.e_op_code_SUB_DAT, values[i].address, other.address);
 
-								code.put(OpCode.e_op_code_BNZ_DAT);
-								code.putInt(values[i].address);
-								code.put((byte) 0x0b); // offset
+								code.branchOver(OpCode.e_op_code_BNZ_DAT, values[i].address);
 
-								code.put(OpCode.e_op_code_INC_DAT);
-								code.putInt(tmpVar5);
+								code.add(OpCode.e_op_code_INC_DAT, tmpVar5);
 							}
 							// tmpVar 5 must be equal 4
-							code.put(OpCode.e_op_code_SET_VAL);
-							code.putInt(tmpVar1);
-							code.putLong(4L);
+							code.setVal(tmpVar1, 4L);
 
-							code.put(OpCode.e_op_code_SUB_DAT);
-							code.putInt(tmpVar5);
-							code.putInt(tmpVar1);
+							code.add(OpCode.e_op_code_SUB_DAT, tmpVar5, tmpVar1);
 
-							code.put(OpCode.e_op_code_CLR_DAT);
-							code.putInt(tmpVar2);
+							code.add(OpCode.e_op_code_CLR_DAT, tmpVar2);
 
-							code.put(OpCode.e_op_code_BNZ_DAT);
-							code.putInt(tmpVar5);
-							code.put((byte) 0x0b); // offset
+							code.branchOver(OpCode.e_op_code_BNZ_DAT, tmpVar5);
 
-							code.put(OpCode.e_op_code_INC_DAT);
-							code.putInt(tmpVar2);
+							code.add(OpCode.e_op_code_INC_DAT, tmpVar2);
 
 							pushVar(m, tmpVar2);
 						} else
@@ -1648,7 +1935,9 @@ public class Compiler {
 					logger.debug((opcode == GETFIELD ? "get " : "put ") + "field: " + fi.name);
 
 					Field field = fields.get(fi.name);
-					if (opcode == GETFIELD) {
+					if (field.bits > 0)
+						packedField(m, field, opcode == GETFIELD);
+					else if (opcode == GETFIELD) {
 						stack.pollLast(); // remove the 'this'
 						for (int i = 0; i < field.size; i++) {
 							pushVar(m, field.address + i);
@@ -1682,9 +1971,7 @@ public class Compiler {
 						else {
 							addError(ld, "Invalid constant: " + ld.cst);
 						}
-						code.put(OpCode.e_op_code_SET_VAL);
-						code.putInt(tmpVar2);
-						code.putLong(value);
+						code.setVal(tmpVar2, value);
 						pushVar(m, tmpVar2);
 					}
 				} else {
@@ -1696,9 +1983,7 @@ public class Compiler {
 						// otherwise
 				arg2 = popVar(m, tmpVar2, false);
 				arg1 = popVar(m, tmpVar1, true);
-				code.put(OpCode.e_op_code_SUB_DAT);
-				code.putInt(arg1.address);
-				code.putInt(arg2.address);
+				code.add(OpCode.e_op_code_SUB_DAT, arg1.address, arg2.address);
 				pushVar(m, arg1.address);
 
 				logger.debug("lcmp");
@@ -1727,44 +2012,32 @@ public class Compiler {
 					switch (opcode) {
 					case IFEQ:
 					case IFNULL:
-						code.put(OpCode.e_op_code_BNZ_DAT);
-						code.putInt(arg1.address);
-						code.put((byte) 11);
+						code.branchOver(OpCode.e_op_code_BNZ_DAT, arg1.address);
 						break;
 
 					case IFNE:
 					case IFNONNULL:
-						code.put(OpCode.e_op_code_BZR_DAT);
-						code.putInt(arg1.address);
-						code.put((byte) 11);
+						code.branchOver(OpCode.e_op_code_BZR_DAT, arg1.address);
 						break;
 
 					case IFGE:
 					case IFGT:
-						code.put(OpCode.e_op_code_CLR_DAT);
-						code.putInt(tmpVar2);
-						code.put(opcode == IFGE ? OpCode.e_op_code_BLT_DAT : OpCode.e_op_code_BLE_DAT);
-						code.putInt(arg1.address);
-						code.putInt(tmpVar2);
-						code.put((byte) 15);
+						code.add(OpCode.e_op_code_CLR_DAT, tmpVar2);
+						code.branchOver(opcode == IFGE ? OpCode.e_op_code_BLT_DAT : OpCode.e_op_code_BLE_DAT,
+								arg1.address, tmpVar2);
 						break;
 					case IFLE:
 					case IFLT:
-						code.put(OpCode.e_op_code_CLR_DAT);
-						code.putInt(tmpVar2);
-						code.put(opcode == IFLE ? OpCode.e_op_code_BGT_DAT : OpCode.e_op_code_BGE_DAT);
-						code.putInt(arg1.address);
-						code.putInt(tmpVar2);
-						code.put((byte) 15);
+						code.add(OpCode.e_op_code_CLR_DAT, tmpVar2);
+						code.branchOver(opcode == IFLE ? OpCode.e_op_code_BGT_DAT : OpCode.e_op_code_BGE_DAT,
+								arg1.address, tmpVar2);
 						break;
 					case GOTO:
 						// do nothing, simply jump to the address
 						break;
 					}
 
-					code.put(OpCode.e_op_code_JMP_ADR);
-					m.jumps.add(new Method.Jump(code.position(), jmp.label));
-					code.putInt(0); // address, to be resolved later
+					code.jump(jmp.label);
 
 					logger.debug("ifeq: " + jmp.label.getLabel());
 				} else {
@@ -1782,18 +2055,12 @@ public class Compiler {
 					arg1 = popVar(m, tmpVar1, true);
 					arg2 = popVar(m, tmpVar2, false);
 
-					code.put(OpCode.e_op_code_SUB_DAT);
-					code.putInt(arg1.address);
-					code.putInt(arg2.address);
+					code.add(OpCode.e_op_code_SUB_DAT, arg1.address, arg2.address);
 
-					code.put(opcode == IF_ACMPEQ || opcode == IF_ICMPEQ ? OpCode.e_op_code_BNZ_DAT
-							: OpCode.e_op_code_BZR_DAT);
-					code.putInt(arg1.address);
-					code.put((byte) 11); // offset
+					code.branchOver(opcode == IF_ACMPEQ || opcode == IF_ICMPEQ ? OpCode.e_op_code_BNZ_DAT
+							: OpCode.e_op_code_BZR_DAT, arg1.address);
 
-					code.put(OpCode.e_op_code_JMP_ADR);
-					m.jumps.add(new Method.Jump(code.position(), jmp.label));
-					code.putInt(0); // to be resolved later
+					code.jump(jmp.label);
 
 					logger.debug("ifeq: " + jmp.label.getLabel());
 				} else {
@@ -1814,6 +2081,9 @@ public class Compiler {
 				break;
 			}
 		}
+
+		for (LabelNode l : code.close())
+			addError(l, "Label not found: " + l.getLabel());
 	}
 
 	public ArrayList<Error> getErrors() {
@@ -11,6 +11,8 @@ public class Field {
 	FieldNode node;
 	int size;
 	int address;
+	/** the first bit and number of bits when {@link Packed}, bits is 0 otherwise */
+	int shift, bits;
 
 	/**
 	 * @return the name of this field
@@ -20,9 +22,39 @@ public class Field {
 	}
 
 	/**
-	 * @return the address of this field
+	 * @return the address of this field (shared with other fields if packed)
 	 */
 	public int getAddress(){
 		return address;
 	}
+
+	/**
+	 * @return the first bit of this field on its address, 0 if not packed
+	 */
+	public int getShift(){
+		return shift;
+	}
+
+	/**
+	 * @return the number of bits of this field if packed, 0 otherwise
+	 */
+	public int getBits(){
+		return bits;
+	}
+
+	/**
+	 * @param data the contract data
+	 * @return the value of this field on the given data
+	 */
+	public long getValue(long[] data){
+		long value = data[address];
+		if (bits == 0)
+			return value;
+		value = (value >>> shift) & mask();
+		return bits == 32 ? (int) value : value;
+	}
+
+	long mask(){
+		return (1L << bits) - 1;
+	}
 }
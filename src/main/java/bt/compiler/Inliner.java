@@ -0,0 +1,277 @@
+package bt.compiler;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inlines the calls to small non public methods.
+ *
+ * The called code is copied in place of the JMP_SUB, with the RET_SUB
+ * instructions replaced by jumps to the instruction after the call. Only
+ * methods with fixed frames (not part of a recursion) are inlined, so the
+ * arguments are already popped on the right addresses by the caller.
+ *
+ * A method is inlined if its size is up to the given limit or if it has a
+ * single call site, when inlining also reduces the code size. Calls are counted
+ * again after each round, only on the methods still reachable, since inlining
+ * copies the calls of the callee and can leave other methods unused.
+ *
+ * The steps saved are measured on the optimized code: the instructions left
+ * from each call site (argument copies, the inlined body and the return value
+ * pop) are compared with a call to the optimized callee, one step per
+ * instruction on a straight path.
+ *
+ * @author jjos
+ */
+final class Inliner {
+
+	/** A call site inlined */
+	static final class Site {
+		final Method caller;
+		final Method callee;
+		/** the instructions of the call, now on the caller */
+		final Set<Instruction> insns = Collections.newSetFromMap(new IdentityHashMap<>());
+		/** if the caller pops the value returned */
+		final boolean popsReturn;
+
+		Site(Method caller, Method callee, List<Instruction> insns, boolean popsReturn) {
+			this.caller = caller;
+			this.callee = callee;
+			this.insns.addAll(insns);
+			this.popsReturn = popsReturn;
+		}
+
+		/**
+		 * @return the change in steps of this call, the instructions left on the
+		 *         caller versus a call to the optimized callee (argument copies,
+		 *         JMP_SUB, the callee code and the return value pop)
+		 */
+		int getStepChange() {
+			int ret = -(callee.nargs + 1 + callee.code.length() + (popsReturn ? 1 : 0));
+			for (Instruction insn : caller.code.instructions) {
+				if (insns.contains(insn))
+					ret++;
+			}
+			return ret;
+		}
+	}
+
+	final Compiler compiler;
+	final int maxSize;
+
+	/** the number of call sites inlined by method */
+	final LinkedHashMap<Method, Integer> inlined = new LinkedHashMap<>();
+	/** the size of each method inlined, when it was inlined */
+	final HashMap<Method, Integer> sizes = new HashMap<>();
+	/** the call sites inlined by method */
+	final HashMap<Method, ArrayList<Site>> sites = new HashMap<>();
+	/** the calls to the methods still reachable after the last round */
+	HashMap<Method, Integer> calls;
+
+	Inliner(Compiler compiler, int maxSize) {
+		this.compiler = compiler;
+		this.maxSize = maxSize;
+	}
+
+	boolean canInline(Method m) {
+		return m.frame >= 0 && !Modifier.isPublic(m.node.access) && m.code.size() > 1;
+	}
+
+	/**
+	 * Inlines the calls on all methods of the contract, in rounds until nothing
+	 * else can be inlined. The calls copied by a round are only considered on the
+	 * next one, with the calls counted again.
+	 */
+	void inline() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			calls = countCalls();
+			for (Method m : calls.keySet()) {
+				Code code = m.code;
+				for (int i = 0; i < code.length(); i++) {
+					Instruction insn = code.get(i);
+					if (insn.op != OpCode.e_op_code_JMP_SUB || insn.method == m || !canInline(insn.method))
+						continue;
+					Method callee = insn.method;
+					int size = callee.code.size();
+					if (size > maxSize && calls.get(callee) > 1)
+						continue;
+
+					ArrayList<Instruction> body = copy(callee.code, code.next(i));
+					ArrayList<Instruction> site = new ArrayList<>(body);
+					for (int j = i - 1; j >= 0 && j >= i - callee.nargs && isArgument(callee, code.get(j)); j--)
+						site.add(code.get(j));
+					boolean popsReturn = !callee.node.desc.endsWith("V")
+							&& code.next(i).op == OpCode.e_op_code_POP_DAT;
+					if (popsReturn)
+						site.add(code.next(i));
+					sites.computeIfAbsent(callee, k -> new ArrayList<>()).add(new Site(m, callee, site, popsReturn));
+
+					// back on the caller line after the inlined body
+					int line = lineAt(code, i);
+					if (line >= 0)
+						code.next(i).lines.add(0, line);
+					code.instructions.addAll(i + 1, body);
+					code.remove(i);
+					// the calls copied are left for the next round
+					i += body.size() - 1;
+					inlined.merge(callee, 1, Integer::sum);
+					sizes.put(callee, size);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of calls to each method, only from the methods reachable
+	 *         from the entry points (all reachable methods are keys)
+	 */
+	private HashMap<Method, Integer> countCalls() {
+		LinkedHashMap<Method, Integer> ret = new LinkedHashMap<>();
+		LinkedList<Method> pending = new LinkedList<>();
+		for (Method m : compiler.getMethods()) {
+			if (compiler.isEntryPoint(m))
+				pending.add(m);
+		}
+		HashSet<Method> reached = new HashSet<>();
+		while (!pending.isEmpty()) {
+			Method m = pending.poll();
+			if (!reached.add(m))
+				continue;
+			ret.putIfAbsent(m, 0);
+			for (Instruction insn : m.code.instructions) {
+				if (insn.op == OpCode.e_op_code_JMP_SUB) {
+					ret.merge(insn.method, 1, Integer::sum);
+					pending.add(insn.method);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the source line of the instruction at the given index, -1 if not
+	 *         known
+	 */
+	private static int lineAt(Code code, int i) {
+		for (int j = i; j >= 0; j--) {
+			ArrayList<Integer> lines = code.get(j).lines;
+			if (!lines.isEmpty())
+				return lines.get(lines.size() - 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the given instruction writes an argument of the callee
+	 */
+	private static boolean isArgument(Method callee, Instruction insn) {
+		int def = insn.def();
+		for (int k = 0; k < callee.nargs; k++) {
+			if (def == callee.frame + callee.localArgPos[k])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return a copy of the given code, returning to the given instruction
+	 */
+	private ArrayList<Instruction> copy(Code code, Instruction next) {
+		HashMap<Instruction, Instruction> map = new HashMap<>();
+		ArrayList<Instruction> ret = new ArrayList<>();
+		for (Instruction insn : code.instructions) {
+			Instruction c = new Instruction(insn.op, insn.args.clone());
+			c.fun = insn.fun;
+			c.value = insn.value;
+			c.method = insn.method;
+			c.target = insn.target;
+			// the steps of the inlined code are profiled on the callee lines
+			c.lines.addAll(insn.lines);
+			if (insn.op == OpCode.e_op_code_RET_SUB) {
+				c.op = OpCode.e_op_code_JMP_ADR;
+				c.target = code.end;
+			}
+			map.put(insn, c);
+			ret.add(c);
+		}
+		map.put(code.end, next);
+		for (Instruction c : ret) {
+			if (c.target != null)
+				c.target = map.get(c.target);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the estimated code size change, in bytes, of the inlining
+	 */
+	int getSizeChange() {
+		int ret = 0;
+		for (Map.Entry<Method, Integer> e : inlined.entrySet())
+			ret += getSizeChange(e.getKey());
+		return ret;
+	}
+
+	/**
+	 * @return the estimated code size change for the given method, each call is
+	 *         replaced by the method body (without the final RET_SUB) and the
+	 *         method is removed if not reachable anymore after the last round
+	 */
+	int getSizeChange(Method m) {
+		int size = sizes.get(m);
+		int sites = inlined.get(m);
+		int ret = sites * (size - 1 - 5);
+		if (!calls.containsKey(m))
+			ret -= size;
+		return ret;
+	}
+
+	/**
+	 * @return the average change in steps of a call to the given method, measured
+	 *         on the optimized code
+	 */
+	double getStepChange(Method m) {
+		ArrayList<Site> list = sites.get(m);
+		double ret = 0;
+		for (Site site : list)
+			ret += site.getStepChange();
+		return ret / list.size();
+	}
+
+	/**
+	 * @return the change in steps if every call site inlined runs once
+	 */
+	int getStepChange() {
+		int ret = 0;
+		for (ArrayList<Site> list : sites.values()) {
+			for (Site site : list)
+				ret += site.getStepChange();
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-24s %6s %6s %8s %12s%n", "inlined", "calls", "size", "bytes", "steps/call"));
+		for (Map.Entry<Method, Integer> e : inlined.entrySet()) {
+			Method m = e.getKey();
+			sb.append(String.format("%-24s %6d %6d %+8d %+12.1f%n", m.getName(), e.getValue(), sizes.get(m),
+					getSizeChange(m), getStepChange(m)));
+		}
+		sb.append(String.format("%-24s %6s %6s %+8d%n", "total", "", "", getSizeChange()));
+		return sb.toString();
+	}
+}
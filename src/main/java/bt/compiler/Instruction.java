@@ -0,0 +1,271 @@
+package bt.compiler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A single ciyam instruction.
+ *
+ * Branch and jump destinations are kept as references to other instructions
+ * (or methods), so a list of instructions can be changed before encoding.
+ *
+ * @author jjos
+ */
+final class Instruction {
+
+	byte op;
+	/** the API function code, for the EXT_FUN family */
+	short fun;
+	/** data addresses */
+	int[] args;
+	/** the value for SET_VAL */
+	long value;
+
+	/** the destination for branches and JMP_ADR */
+	Instruction target;
+	/** the method called by JMP_SUB */
+	Method method;
+
+	/** source lines starting at this instruction */
+	ArrayList<Integer> lines = new ArrayList<>();
+
+	/** the position relative to the method start, after a layout */
+	int position;
+
+	Instruction(byte op, int... args) {
+		this.op = op;
+		this.args = args;
+	}
+
+	/**
+	 * @return the number of address arguments for the given op code, -1 if the op
+	 *         code is invalid
+	 */
+	static int nargs(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_NOP:
+		case OpCode.e_op_code_JMP_SUB:
+		case OpCode.e_op_code_RET_SUB:
+		case OpCode.e_op_code_JMP_ADR:
+		case OpCode.e_op_code_FIN_IMD:
+		case OpCode.e_op_code_STP_IMD:
+		case OpCode.e_op_code_SLP_IMD:
+		case OpCode.e_op_code_ERR_ADR:
+		case OpCode.e_op_code_SET_PCS:
+		case OpCode.e_op_code_EXT_FUN:
+			return 0;
+		case OpCode.e_op_code_SET_VAL:
+		case OpCode.e_op_code_CLR_DAT:
+		case OpCode.e_op_code_INC_DAT:
+		case OpCode.e_op_code_DEC_DAT:
+		case OpCode.e_op_code_NOT_DAT:
+		case OpCode.e_op_code_PSH_DAT:
+		case OpCode.e_op_code_POP_DAT:
+		case OpCode.e_op_code_BZR_DAT:
+		case OpCode.e_op_code_BNZ_DAT:
+		case OpCode.e_op_code_SLP_DAT:
+		case OpCode.e_op_code_FIZ_DAT:
+		case OpCode.e_op_code_STZ_DAT:
+		case OpCode.e_op_code_EXT_FUN_DAT:
+		case OpCode.e_op_code_EXT_FUN_RET:
+			return 1;
+		case OpCode.e_op_code_SET_DAT:
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_DIV_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_SET_IND:
+		case OpCode.e_op_code_IND_DAT:
+		case OpCode.e_op_code_MOD_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+		case OpCode.e_op_code_BGT_DAT:
+		case OpCode.e_op_code_BLT_DAT:
+		case OpCode.e_op_code_BGE_DAT:
+		case OpCode.e_op_code_BLE_DAT:
+		case OpCode.e_op_code_BEQ_DAT:
+		case OpCode.e_op_code_BNE_DAT:
+		case OpCode.e_op_code_EXT_FUN_DAT_2:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT:
+			return 2;
+		case OpCode.e_op_code_SET_IDX:
+		case OpCode.e_op_code_IDX_DAT:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+	static boolean isFunction(byte op) {
+		return op >= OpCode.e_op_code_EXT_FUN && op <= OpCode.e_op_code_EXT_FUN_RET_DAT_2;
+	}
+
+	static boolean isBranch(byte op) {
+		return op == OpCode.e_op_code_BZR_DAT || op == OpCode.e_op_code_BNZ_DAT
+				|| (op >= OpCode.e_op_code_BGT_DAT && op <= OpCode.e_op_code_BNE_DAT);
+	}
+
+	boolean isBranch() {
+		return isBranch(op);
+	}
+
+	/**
+	 * @return the branch taken exactly when the given one is not
+	 */
+	static byte invert(byte op) {
+		switch (op) {
+		case OpCode.e_op_code_BZR_DAT:
+			return OpCode.e_op_code_BNZ_DAT;
+		case OpCode.e_op_code_BNZ_DAT:
+			return OpCode.e_op_code_BZR_DAT;
+		case OpCode.e_op_code_BGT_DAT:
+			return OpCode.e_op_code_BLE_DAT;
+		case OpCode.e_op_code_BLE_DAT:
+			return OpCode.e_op_code_BGT_DAT;
+		case OpCode.e_op_code_BLT_DAT:
+			return OpCode.e_op_code_BGE_DAT;
+		case OpCode.e_op_code_BGE_DAT:
+			return OpCode.e_op_code_BLT_DAT;
+		case OpCode.e_op_code_BEQ_DAT:
+			return OpCode.e_op_code_BNE_DAT;
+		case OpCode.e_op_code_BNE_DAT:
+			return OpCode.e_op_code_BEQ_DAT;
+		default:
+			throw new IllegalArgumentException("Not a branch: " + op);
+		}
+	}
+
+	/**
+	 * @return true if the execution never continues on the next instruction
+	 */
+	boolean isTerminal() {
+		return op == OpCode.e_op_code_JMP_ADR || op == OpCode.e_op_code_RET_SUB || op == OpCode.e_op_code_FIN_IMD
+				|| op == OpCode.e_op_code_STP_IMD;
+	}
+
+	/**
+	 * @return the size in bytes of this instruction when encoded
+	 */
+	int size() {
+		int ret = 1 + args.length * 4;
+		if (isFunction(op))
+			ret += 2;
+		else if (isBranch())
+			ret += 1;
+		else if (op == OpCode.e_op_code_SET_VAL)
+			ret += 8;
+		else if (op == OpCode.e_op_code_JMP_SUB || op == OpCode.e_op_code_JMP_ADR || op == OpCode.e_op_code_ERR_ADR)
+			ret += 4;
+		return ret;
+	}
+
+	/**
+	 * @return the address written by this instruction or -1 if none (indirect
+	 *         writes are not considered)
+	 */
+	int def() {
+		switch (op) {
+		case OpCode.e_op_code_PSH_DAT:
+		case OpCode.e_op_code_IND_DAT:
+		case OpCode.e_op_code_IDX_DAT:
+		case OpCode.e_op_code_SLP_DAT:
+		case OpCode.e_op_code_FIZ_DAT:
+		case OpCode.e_op_code_STZ_DAT:
+		case OpCode.e_op_code_EXT_FUN_DAT:
+		case OpCode.e_op_code_EXT_FUN_DAT_2:
+			return -1;
+		default:
+			return isBranch() || args.length == 0 ? -1 : args[0];
+		}
+	}
+
+	/**
+	 * @return true if the address written is also read by this instruction
+	 */
+	boolean readsDef() {
+		switch (op) {
+		case OpCode.e_op_code_INC_DAT:
+		case OpCode.e_op_code_DEC_DAT:
+		case OpCode.e_op_code_NOT_DAT:
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_DIV_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_MOD_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return the first argument index that is only read (all arguments from this
+	 *         one on are read only)
+	 */
+	int firstUse() {
+		int def = def();
+		return def >= 0 ? 1 : 0;
+	}
+
+	/**
+	 * @return true if the given address is read by this instruction (indirect
+	 *         reads are not considered)
+	 */
+	boolean uses(int address) {
+		if (readsDef() && args[0] == address)
+			return true;
+		for (int i = firstUse(); i < args.length; i++) {
+			if (args[i] == address)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Encodes this instruction, positions and method addresses should be already
+	 * known.
+	 * 
+	 * @param base the address of the method start
+	 */
+	void encode(ByteBuffer code, int base) {
+		code.put(op);
+		if (isFunction(op))
+			code.putShort(fun);
+		for (int a : args)
+			code.putInt(a);
+		if (op == OpCode.e_op_code_SET_VAL)
+			code.putLong(value);
+		else if (isBranch())
+			code.put((byte) (target.position - position));
+		else if (op == OpCode.e_op_code_JMP_SUB)
+			code.putInt(method.address);
+		else if (op == OpCode.e_op_code_JMP_ADR || op == OpCode.e_op_code_ERR_ADR)
+			code.putInt(base + target.position);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%04x %02x", position, op));
+		if (isFunction(op))
+			sb.append(String.format(" fun %04x", fun));
+		for (int a : args)
+			sb.append(" @").append(a);
+		if (op == OpCode.e_op_code_SET_VAL)
+			sb.append(" #").append(value);
+		if (target != null)
+			sb.append(" -> ").append(String.format("%04x", target.position));
+		if (method != null)
+			sb.append(" -> ").append(method.getName());
+		return sb.toString();
+	}
+}
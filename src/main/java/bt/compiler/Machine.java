@@ -0,0 +1,787 @@
+package bt.compiler;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Interpreter for the ciyam AT bytecode.
+ *
+ * Runs the code produced by {@link Compiler#link()} against a long data
+ * segment. Register functions (A and B manipulation and hashing) are handled
+ * here, while the blockchain related API functions are delegated to an
+ * {@link Api} implementation.
+ *
+ * @author jjos
+ */
+public class Machine {
+
+	/**
+	 * The blockchain side of the AT API functions.
+	 * 
+	 * Addresses and transactions are given by their ids and timestamps by their
+	 * long values.
+	 */
+	public interface Api {
+		long getBlockTimestamp();
+
+		long getCreationTimestamp();
+
+		long getLastBlockTimestamp();
+
+		/**
+		 * @return the 4 longs of the previous block hash
+		 */
+		long[] getLastBlockHash();
+
+		/**
+		 * @return the id of the first transaction received after the given
+		 *         timestamp or 0 if there is none
+		 */
+		long getTxAfterTimestamp(long timestamp);
+
+		long getTxType(long txId);
+
+		long getTxAmount(long txId);
+
+		long getTxTimestamp(long txId);
+
+		long getTxRandomId(long txId);
+
+		/**
+		 * @return the 4 longs of the transaction message
+		 */
+		long[] getTxMessage(long txId);
+
+		long getTxSender(long txId);
+
+		long getCreator();
+
+		long getCurrentBalance();
+
+		long getPreviousBalance();
+
+		void sendAmount(long amount, long address);
+
+		void sendMessage(long[] message, long address);
+	}
+
+	public static final int STATE_RUNNING = 0;
+	public static final int STATE_FINISHED = 1;
+	public static final int STATE_STOPPED = 2;
+	public static final int STATE_SLEEPING = 3;
+	public static final int STATE_FROZEN = 4;
+	public static final int STATE_DEAD = 5;
+
+	/** Number of stack entries on a single page */
+	public static final int STACK_PAGE_SIZE = Compiler.PAGE_SIZE / 8;
+
+	final byte[] code;
+	final ByteBuffer codeBuffer;
+	final long[] data;
+	final long[] a = new long[4];
+	final long[] b = new long[4];
+
+	final long[] userStack;
+	final int[] callStack;
+	int usp, csp;
+
+	int pc, pcs;
+	int errPc = -1;
+	int state = STATE_RUNNING;
+	long sleepBlocks;
+	long steps;
+	String error;
+	Profile profile;
+
+	final Api api;
+
+	public Machine(byte[] code, int dataPages, Api api) {
+		this(code, dataPages, 1, 1, api);
+	}
+
+	public Machine(byte[] code, int dataPages, int callStackPages, int userStackPages, Api api) {
+		this.code = code;
+		this.codeBuffer = ByteBuffer.wrap(code);
+		this.codeBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		this.data = new long[dataPages * STACK_PAGE_SIZE];
+		this.callStack = new int[callStackPages * STACK_PAGE_SIZE];
+		this.userStack = new long[userStackPages * STACK_PAGE_SIZE];
+		this.api = api;
+	}
+
+	/**
+	 * Sets the initial data values, starting on address 0.
+	 */
+	public void setData(long[] values) {
+		System.arraycopy(values, 0, data, 0, values.length);
+	}
+
+	/**
+	 * @return a copy of this machine, on the same state, calling the given API
+	 */
+	public Machine copy(Api api) {
+		Machine ret = new Machine(code, data.length / STACK_PAGE_SIZE, callStack.length / STACK_PAGE_SIZE,
+				userStack.length / STACK_PAGE_SIZE, api);
+		System.arraycopy(data, 0, ret.data, 0, data.length);
+		System.arraycopy(a, 0, ret.a, 0, a.length);
+		System.arraycopy(b, 0, ret.b, 0, b.length);
+		System.arraycopy(userStack, 0, ret.userStack, 0, userStack.length);
+		System.arraycopy(callStack, 0, ret.callStack, 0, callStack.length);
+		ret.usp = usp;
+		ret.csp = csp;
+		ret.pc = pc;
+		ret.pcs = pcs;
+		ret.errPc = errPc;
+		ret.state = state;
+		ret.sleepBlocks = sleepBlocks;
+		ret.steps = steps;
+		ret.error = error;
+		return ret;
+	}
+
+	/**
+	 * Runs the code until the machine finishes, stops, sleeps or the given number
+	 * of steps is reached.
+	 *
+	 * A finished or stopped machine restarts from the PCS position, a sleeping or
+	 * frozen one continues from where it was.
+	 *
+	 * @param maxSteps the maximum number of steps for this run
+	 * @return the state after the run
+	 */
+	public int run(long maxSteps) {
+		if (state == STATE_DEAD)
+			return state;
+		if (state == STATE_FINISHED || state == STATE_STOPPED)
+			pc = pcs;
+		state = STATE_RUNNING;
+		sleepBlocks = 0;
+
+		for (long i = 0; i < maxSteps && state == STATE_RUNNING; i++) {
+			step();
+		}
+		return state;
+	}
+
+	/**
+	 * Executes a single instruction.
+	 */
+	public void step() {
+		if (pc < 0 || pc >= code.length) {
+			fail("Invalid code address: " + pc);
+			return;
+		}
+		int start = pc;
+		byte op = code[pc++];
+		steps++;
+		if (profile != null)
+			profile.count(start);
+
+		try {
+			switch (op) {
+			case OpCode.e_op_code_NOP:
+				break;
+			case OpCode.e_op_code_SET_VAL: {
+				int addr = address();
+				data[addr] = codeBuffer.getLong(pc);
+				pc += 8;
+				break;
+			}
+			case OpCode.e_op_code_SET_DAT: {
+				int addr1 = address();
+				int addr2 = address();
+				data[addr1] = data[addr2];
+				break;
+			}
+			case OpCode.e_op_code_CLR_DAT:
+				data[address()] = 0;
+				break;
+			case OpCode.e_op_code_INC_DAT:
+				data[address()]++;
+				break;
+			case OpCode.e_op_code_DEC_DAT:
+				data[address()]--;
+				break;
+			case OpCode.e_op_code_NOT_DAT: {
+				int addr = address();
+				data[addr] = ~data[addr];
+				break;
+			}
+			case OpCode.e_op_code_ADD_DAT:
+			case OpCode.e_op_code_SUB_DAT:
+			case OpCode.e_op_code_MUL_DAT:
+			case OpCode.e_op_code_DIV_DAT:
+			case OpCode.e_op_code_BOR_DAT:
+			case OpCode.e_op_code_AND_DAT:
+			case OpCode.e_op_code_XOR_DAT:
+			case OpCode.e_op_code_MOD_DAT:
+			case OpCode.e_op_code_SHL_DAT:
+			case OpCode.e_op_code_SHR_DAT: {
+				int addr1 = address();
+				int addr2 = address();
+				data[addr1] = arithmetic(op, data[addr1], data[addr2]);
+				break;
+			}
+			case OpCode.e_op_code_SET_IND: {
+				int addr1 = address();
+				int addr2 = address();
+				data[addr1] = data[checkAddress(data[addr2])];
+				break;
+			}
+			case OpCode.e_op_code_SET_IDX: {
+				int addr1 = address();
+				int addr2 = address();
+				int addr3 = address();
+				data[addr1] = data[checkAddress(data[addr2] + data[addr3])];
+				break;
+			}
+			case OpCode.e_op_code_IND_DAT: {
+				int addr1 = address();
+				int addr2 = address();
+				data[checkAddress(data[addr1])] = data[addr2];
+				break;
+			}
+			case OpCode.e_op_code_IDX_DAT: {
+				int addr1 = address();
+				int addr2 = address();
+				int addr3 = address();
+				data[checkAddress(data[addr1] + data[addr2])] = data[addr3];
+				break;
+			}
+			case OpCode.e_op_code_PSH_DAT:
+				if (usp >= userStack.length)
+					throw new MachineException("User stack overflow");
+				userStack[usp++] = data[address()];
+				break;
+			case OpCode.e_op_code_POP_DAT: {
+				int addr = address();
+				if (usp == 0)
+					throw new MachineException("User stack underflow");
+				data[addr] = userStack[--usp];
+				break;
+			}
+			case OpCode.e_op_code_JMP_SUB: {
+				int addr = codeAddress();
+				if (csp >= callStack.length)
+					throw new MachineException("Call stack overflow");
+				callStack[csp++] = pc;
+				pc = addr;
+				break;
+			}
+			case OpCode.e_op_code_RET_SUB:
+				if (csp == 0)
+					throw new MachineException("Call stack underflow");
+				pc = callStack[--csp];
+				break;
+			case OpCode.e_op_code_JMP_ADR:
+				pc = codeAddress();
+				break;
+			case OpCode.e_op_code_BZR_DAT:
+			case OpCode.e_op_code_BNZ_DAT: {
+				long value = data[address()];
+				byte offset = code[pc++];
+				if ((op == OpCode.e_op_code_BZR_DAT) == (value == 0))
+					pc = start + offset;
+				break;
+			}
+			case OpCode.e_op_code_BGT_DAT:
+			case OpCode.e_op_code_BLT_DAT:
+			case OpCode.e_op_code_BGE_DAT:
+			case OpCode.e_op_code_BLE_DAT:
+			case OpCode.e_op_code_BEQ_DAT:
+			case OpCode.e_op_code_BNE_DAT: {
+				long value1 = data[address()];
+				long value2 = data[address()];
+				byte offset = code[pc++];
+				if (compare(op, value1, value2))
+					pc = start + offset;
+				break;
+			}
+			case OpCode.e_op_code_SLP_DAT: {
+				long blocks = data[address()];
+				if (blocks > 0) {
+					sleepBlocks = blocks;
+					state = STATE_SLEEPING;
+				}
+				break;
+			}
+			case OpCode.e_op_code_SLP_IMD:
+				sleepBlocks = 1;
+				state = STATE_SLEEPING;
+				break;
+			case OpCode.e_op_code_FIZ_DAT:
+				if (data[address()] == 0)
+					state = STATE_FINISHED;
+				break;
+			case OpCode.e_op_code_STZ_DAT:
+				if (data[address()] == 0)
+					state = STATE_STOPPED;
+				break;
+			case OpCode.e_op_code_FIN_IMD:
+				state = STATE_FINISHED;
+				break;
+			case OpCode.e_op_code_STP_IMD:
+				state = STATE_STOPPED;
+				break;
+			case OpCode.e_op_code_ERR_ADR:
+				errPc = codeAddress();
+				break;
+			case OpCode.e_op_code_SET_PCS:
+				pcs = pc;
+				break;
+			case OpCode.e_op_code_EXT_FUN:
+				function(funCode(), 0, 0);
+				break;
+			case OpCode.e_op_code_EXT_FUN_DAT: {
+				short fun = funCode();
+				function(fun, data[address()], 0);
+				break;
+			}
+			case OpCode.e_op_code_EXT_FUN_DAT_2: {
+				short fun = funCode();
+				long value1 = data[address()];
+				long value2 = data[address()];
+				function(fun, value1, value2);
+				break;
+			}
+			case OpCode.e_op_code_EXT_FUN_RET: {
+				short fun = funCode();
+				int addr = address();
+				data[addr] = function(fun, 0, 0);
+				break;
+			}
+			case OpCode.e_op_code_EXT_FUN_RET_DAT: {
+				short fun = funCode();
+				int addr = address();
+				data[addr] = function(fun, data[address()], 0);
+				break;
+			}
+			case OpCode.e_op_code_EXT_FUN_RET_DAT_2: {
+				short fun = funCode();
+				int addr = address();
+				long value1 = data[address()];
+				long value2 = data[address()];
+				data[addr] = function(fun, value1, value2);
+				break;
+			}
+			default:
+				throw new MachineException("Invalid op code: " + op);
+			}
+		} catch (MachineException | IndexOutOfBoundsException e) {
+			if (errPc >= 0) {
+				pc = errPc;
+			} else {
+				pc = start;
+				fail(e instanceof MachineException ? e.getMessage() : "Invalid address at " + start);
+			}
+		}
+	}
+
+	private void fail(String message) {
+		error = message;
+		state = STATE_DEAD;
+	}
+
+	private int address() {
+		int addr = codeBuffer.getInt(pc);
+		pc += 4;
+		return checkAddress(addr);
+	}
+
+	private short funCode() {
+		short fun = codeBuffer.getShort(pc);
+		pc += 2;
+		return fun;
+	}
+
+	private int codeAddress() {
+		int addr = codeBuffer.getInt(pc);
+		pc += 4;
+		if (addr < 0 || addr >= code.length)
+			throw new MachineException("Invalid code address: " + addr);
+		return addr;
+	}
+
+	private int checkAddress(long addr) {
+		if (addr < 0 || addr >= data.length)
+			throw new MachineException("Invalid data address: " + addr);
+		return (int) addr;
+	}
+
+	static long arithmetic(byte op, long value1, long value2) {
+		switch (op) {
+		case OpCode.e_op_code_ADD_DAT:
+			return value1 + value2;
+		case OpCode.e_op_code_SUB_DAT:
+			return value1 - value2;
+		case OpCode.e_op_code_MUL_DAT:
+			return value1 * value2;
+		case OpCode.e_op_code_DIV_DAT:
+			if (value2 == 0)
+				throw new MachineException("Division by zero");
+			return value1 / value2;
+		case OpCode.e_op_code_MOD_DAT:
+			if (value2 == 0)
+				throw new MachineException("Division by zero");
+			return value1 % value2;
+		case OpCode.e_op_code_BOR_DAT:
+			return value1 | value2;
+		case OpCode.e_op_code_AND_DAT:
+			return value1 & value2;
+		case OpCode.e_op_code_XOR_DAT:
+			return value1 ^ value2;
+		case OpCode.e_op_code_SHL_DAT:
+			return value2 < 0 || value2 > 63 ? 0 : value1 << value2;
+		default: // SHR
+			return value2 < 0 || value2 > 63 ? 0 : value1 >>> value2;
+		}
+	}
+
+	static boolean compare(byte op, long value1, long value2) {
+		switch (op) {
+		case OpCode.e_op_code_BGT_DAT:
+			return value1 > value2;
+		case OpCode.e_op_code_BLT_DAT:
+			return value1 < value2;
+		case OpCode.e_op_code_BGE_DAT:
+			return value1 >= value2;
+		case OpCode.e_op_code_BLE_DAT:
+			return value1 <= value2;
+		case OpCode.e_op_code_BEQ_DAT:
+			return value1 == value2;
+		default: // BNE
+			return value1 != value2;
+		}
+	}
+
+	private long function(short fun, long arg1, long arg2) {
+		switch (fun) {
+		case OpCode.Get_A1:
+		case OpCode.Get_A2:
+		case OpCode.Get_A3:
+		case OpCode.Get_A4:
+			return a[fun - OpCode.Get_A1];
+		case OpCode.Get_B1:
+		case OpCode.Get_B2:
+		case OpCode.Get_B3:
+		case OpCode.Get_B4:
+			return b[fun - OpCode.Get_B1];
+
+		case OpCode.Set_A1:
+		case OpCode.Set_A2:
+		case OpCode.Set_A3:
+		case OpCode.Set_A4:
+			a[fun - OpCode.Set_A1] = arg1;
+			return 0;
+		case OpCode.Set_B1:
+		case OpCode.Set_B2:
+		case OpCode.Set_B3:
+		case OpCode.Set_B4:
+			b[fun - OpCode.Set_B1] = arg1;
+			return 0;
+		case OpCode.Set_A1_A2:
+			a[0] = arg1;
+			a[1] = arg2;
+			return 0;
+		case OpCode.Set_A3_A4:
+			a[2] = arg1;
+			a[3] = arg2;
+			return 0;
+		case OpCode.Set_B1_B2:
+			b[0] = arg1;
+			b[1] = arg2;
+			return 0;
+		case OpCode.Set_B3_B4:
+			b[2] = arg1;
+			b[3] = arg2;
+			return 0;
+
+		case OpCode.Clear_A:
+			clear(a);
+			return 0;
+		case OpCode.Clear_B:
+			clear(b);
+			return 0;
+		case OpCode.Clear_A_And_B:
+			clear(a);
+			clear(b);
+			return 0;
+		case OpCode.Copy_A_From_B:
+			System.arraycopy(b, 0, a, 0, 4);
+			return 0;
+		case OpCode.Copy_B_From_A:
+			System.arraycopy(a, 0, b, 0, 4);
+			return 0;
+		case OpCode.Check_A_Is_Zero:
+			return isZero(a) ? 1 : 0;
+		case OpCode.Check_B_Is_Zero:
+			return isZero(b) ? 1 : 0;
+		case OpCode.Check_A_Equals_B:
+			return equals(a, b) ? 1 : 0;
+		case OpCode.Swap_A_and_B:
+			for (int i = 0; i < 4; i++) {
+				long tmp = a[i];
+				a[i] = b[i];
+				b[i] = tmp;
+			}
+			return 0;
+		case OpCode.OR_A_with_B:
+		case OpCode.OR_B_with_A:
+		case OpCode.AND_A_with_B:
+		case OpCode.AND_B_with_A:
+		case OpCode.XOR_A_with_B:
+		case OpCode.XOR_B_with_A:
+			bitwise(fun);
+			return 0;
+
+		case OpCode.MD5_A_To_B: {
+			byte[] hash = digest("MD5", a, 2);
+			setFromBytes(b, hash, 2);
+			return 0;
+		}
+		case OpCode.Check_MD5_A_With_B: {
+			long[] hash = new long[2];
+			setFromBytes(hash, digest("MD5", a, 2), 2);
+			return hash[0] == b[0] && hash[1] == b[1] ? 1 : 0;
+		}
+		case OpCode.SHA256_A_To_B:
+			setFromBytes(b, digest("SHA-256", a, 4), 4);
+			return 0;
+		case OpCode.Check_SHA256_A_With_B: {
+			long[] hash = new long[4];
+			setFromBytes(hash, digest("SHA-256", a, 4), 4);
+			return equals(hash, b) ? 1 : 0;
+		}
+
+		default:
+			if (api == null)
+				throw new MachineException("Unsupported function: " + fun);
+			return chainFunction(fun, arg1, arg2);
+		}
+	}
+
+	private long chainFunction(short fun, long arg1, long arg2) {
+		switch (fun) {
+		case OpCode.Get_Block_Timestamp:
+			return api.getBlockTimestamp();
+		case OpCode.Get_Creation_Timestamp:
+			return api.getCreationTimestamp();
+		case OpCode.Get_Last_Block_Timestamp:
+			return api.getLastBlockTimestamp();
+		case OpCode.Put_Last_Block_Hash_In_A:
+			System.arraycopy(api.getLastBlockHash(), 0, a, 0, 4);
+			return 0;
+		case OpCode.A_To_Tx_After_Timestamp:
+			clear(a);
+			a[0] = api.getTxAfterTimestamp(arg1);
+			return 0;
+		case OpCode.Get_Type_For_Tx_In_A:
+			return api.getTxType(a[0]);
+		case OpCode.Get_Amount_For_Tx_In_A:
+			return api.getTxAmount(a[0]);
+		case OpCode.Get_Timestamp_For_Tx_In_A:
+			return api.getTxTimestamp(a[0]);
+		case OpCode.Get_Random_Id_For_Tx_In_A:
+			return api.getTxRandomId(a[0]);
+		case OpCode.Message_From_Tx_In_A_To_B:
+			System.arraycopy(api.getTxMessage(a[0]), 0, b, 0, 4);
+			return 0;
+		case OpCode.B_To_Address_Of_Tx_In_A:
+			clear(b);
+			b[0] = api.getTxSender(a[0]);
+			return 0;
+		case OpCode.B_To_Address_Of_Creator:
+			clear(b);
+			b[0] = api.getCreator();
+			return 0;
+
+		case OpCode.Get_Current_Balance:
+			return api.getCurrentBalance();
+		case OpCode.Get_Previous_Balance:
+			return api.getPreviousBalance();
+		case OpCode.Send_To_Address_In_B:
+			api.sendAmount(arg1, b[0]);
+			return 0;
+		case OpCode.Send_All_To_Address_In_B:
+			api.sendAmount(api.getCurrentBalance(), b[0]);
+			return 0;
+		case OpCode.Send_Old_To_Address_In_B:
+			api.sendAmount(api.getPreviousBalance(), b[0]);
+			return 0;
+		case OpCode.Send_A_To_Address_In_B:
+			api.sendMessage(a.clone(), b[0]);
+			return 0;
+		case OpCode.Add_Minutes_To_Timestamp:
+			return arg1 + ((arg2 / 4) << 32);
+
+		default:
+			throw new MachineException("Unsupported function: " + fun);
+		}
+	}
+
+	private void bitwise(short fun) {
+		for (int i = 0; i < 4; i++) {
+			switch (fun) {
+			case OpCode.OR_A_with_B:
+				a[i] |= b[i];
+				break;
+			case OpCode.OR_B_with_A:
+				b[i] |= a[i];
+				break;
+			case OpCode.AND_A_with_B:
+				a[i] &= b[i];
+				break;
+			case OpCode.AND_B_with_A:
+				b[i] &= a[i];
+				break;
+			case OpCode.XOR_A_with_B:
+				a[i] ^= b[i];
+				break;
+			default:
+				b[i] ^= a[i];
+				break;
+			}
+		}
+	}
+
+	private static void clear(long[] reg) {
+		for (int i = 0; i < reg.length; i++)
+			reg[i] = 0;
+	}
+
+	private static boolean isZero(long[] reg) {
+		for (long v : reg) {
+			if (v != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean equals(long[] reg1, long[] reg2) {
+		for (int i = 0; i < reg1.length; i++) {
+			if (reg1[i] != reg2[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] digest(String algorithm, long[] reg, int nlongs) {
+		ByteBuffer input = ByteBuffer.allocate(nlongs * 8);
+		input.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < nlongs; i++)
+			input.putLong(reg[i]);
+		try {
+			return MessageDigest.getInstance(algorithm).digest(input.array());
+		} catch (NoSuchAlgorithmException e) {
+			throw new MachineException("Hash not available: " + algorithm);
+		}
+	}
+
+	private static void setFromBytes(long[] reg, byte[] bytes, int nlongs) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < nlongs; i++)
+			reg[i] = buffer.getLong(i * 8);
+	}
+
+	/**
+	 * Freezes a running machine, it will continue from the current position on the
+	 * next run.
+	 */
+	public void freeze() {
+		if (state == STATE_RUNNING)
+			state = STATE_FROZEN;
+	}
+
+	/**
+	 * @return the machine state, one of the STATE_ constants
+	 */
+	public int getState() {
+		return state;
+	}
+
+	/**
+	 * @return the number of blocks requested to sleep on the last run
+	 */
+	public long getSleepBlocks() {
+		return sleepBlocks;
+	}
+
+	/**
+	 * Sets a profile to count the steps executed on every code position, null to
+	 * disable profiling.
+	 */
+	public void setProfile(Profile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * @return the profile in use or null if not profiling
+	 */
+	public Profile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * @return the total number of steps executed by this machine
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return the current program counter
+	 */
+	public int getPc() {
+		return pc;
+	}
+
+	/**
+	 * @return the error message if the machine is dead, null otherwise
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @return the data segment
+	 */
+	public long[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return the value of the given register part, index from 0 to 3
+	 */
+	public long getA(int index) {
+		return a[index];
+	}
+
+	public long getB(int index) {
+		return b[index];
+	}
+
+	/**
+	 * Sets the given register part, index from 0 to 3
+	 */
+	public void setA(int index, long value) {
+		a[index] = value;
+	}
+
+	public void setB(int index, long value) {
+		b[index] = value;
+	}
+
+	/**
+	 * Exception for an invalid operation, handled as an AT error.
+	 */
+	public static class MachineException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public MachineException(String message) {
+			super(message);
+		}
+	}
+}
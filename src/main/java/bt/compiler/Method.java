@@ -1,9 +1,7 @@
 package bt.compiler;
 
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.TreeMap;
 
-import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.MethodNode;
 
 /**
@@ -15,21 +13,6 @@ public class Method {
 
 	public static final int MAX_ARGS = 3;
 
-	static class Jump {
-		int position;
-		LabelNode label;
-		Method method;
-
-		Jump(int p, LabelNode l) {
-			position = p;
-			label = l;
-		}
-		Jump(int p, Method m) {
-			position = p;
-			method = m;
-		}
-	}
-
 	/**
 	 * @return the hash of this method (for external calling)
 	 */
@@ -51,12 +34,19 @@ public class Method {
 		return node.name;
 	}
 	
+	/**
+	 * @return true if this method is part of the linked code (not empty and
+	 *         reachable)
+	 */
+	public boolean isLinked() {
+		return linked;
+	}
+
 	public MethodNode getNode() {
 		return node;
 	}
 
-	ArrayList<Jump> jumps = new ArrayList<>();
-	ByteBuffer code;
+	Code code;
 	MethodNode node;
 	int nargs;
 	int localArgPos[] = new int[MAX_ARGS];
@@ -66,4 +56,13 @@ public class Method {
 	long hash;
 	
 	int address;
+	/** the linked code size */
+	int size;
+	/** Data address of the first local variable, -1 if on the localStart stack */
+	int frame = -1;
+	/** If this method is part of the linked code */
+	boolean linked;
+
+	/** Source line numbers, by the code position where each line starts */
+	TreeMap<Integer, Integer> lines = new TreeMap<>();
 }
@@ -13,7 +13,7 @@ final class OpCode {
   static final byte e_op_code_SET_DAT = 0x02;
   static final byte e_op_code_CLR_DAT = 0x03;
   static final byte e_op_code_INC_DAT = 0x04;
-  static final byte e_op_code_DEC_DAT = 0x05; // Unused
+  static final byte e_op_code_DEC_DAT = 0x05;
   static final byte e_op_code_ADD_DAT = 0x06;
   static final byte e_op_code_SUB_DAT = 0x07;
   static final byte e_op_code_MUL_DAT = 0x08;
@@ -21,7 +21,7 @@ final class OpCode {
   static final byte e_op_code_BOR_DAT = 0x0a;
   static final byte e_op_code_AND_DAT = 0x0b;
   static final byte e_op_code_XOR_DAT = 0x0c;
-  static final byte e_op_code_NOT_DAT = 0x0d; // Unused
+  static final byte e_op_code_NOT_DAT = 0x0d;
   static final byte e_op_code_SET_IND = 0x0e;
   static final byte e_op_code_SET_IDX = 0x0f; // Unused
   static final byte e_op_code_PSH_DAT = 0x10;
@@ -31,8 +31,8 @@ final class OpCode {
   static final byte e_op_code_IND_DAT = 0x14;
   static final byte e_op_code_IDX_DAT = 0x15; // Unused
   static final byte e_op_code_MOD_DAT = 0x16;
-  static final byte e_op_code_SHL_DAT = 0x17; // Unused
-  static final byte e_op_code_SHR_DAT = 0x18; // Unused
+  static final byte e_op_code_SHL_DAT = 0x17;
+  static final byte e_op_code_SHR_DAT = 0x18;
   static final byte e_op_code_JMP_ADR = 0x1a;
   static final byte e_op_code_BZR_DAT = 0x1b;
   static final byte e_op_code_BNZ_DAT = 0x1e;
@@ -40,8 +40,8 @@ final class OpCode {
   static final byte e_op_code_BLT_DAT = 0x20;
   static final byte e_op_code_BGE_DAT = 0x21;
   static final byte e_op_code_BLE_DAT = 0x22;
-  static final byte e_op_code_BEQ_DAT = 0x23; // Unused
-  static final byte e_op_code_BNE_DAT = 0x24; // Unused
+  static final byte e_op_code_BEQ_DAT = 0x23;
+  static final byte e_op_code_BNE_DAT = 0x24;
   static final byte e_op_code_SLP_DAT = 0x25;
   static final byte e_op_code_FIZ_DAT = 0x26; // Unused
   static final byte e_op_code_STZ_DAT = 0x27; // Unused
@@ -61,14 +61,14 @@ final class OpCode {
   static final short Set_A2    = 0x0111; // EXT_FUN_DAT       sets A2 from $addr
   static final short Set_A3    = 0x0112; // EXT_FUN_DAT       sets A3 from $addr
   static final short Set_A4    = 0x0113; // EXT_FUN_DAT       sets A4 from $addr
-  static final short Set_A1_A2 = 0x0114; // EXT_FUN_DAT_2     sets A1 from $addr1 and A2 from $addr2 // Unused
-  static final short Set_A3_A4 = 0x0115; // EXT_FUN_DAT_2     sets A3 from $addr1 and A4 from $addr2 // Unused
+  static final short Set_A1_A2 = 0x0114; // EXT_FUN_DAT_2     sets A1 from $addr1 and A2 from $addr2
+  static final short Set_A3_A4 = 0x0115; // EXT_FUN_DAT_2     sets A3 from $addr1 and A4 from $addr2
   static final short Set_B1    = 0x0116; // EXT_FUN_DAT       sets B1 from $addr
-  static final short Set_B2    = 0x0117; // EXT_FUN_DAT       sets B2 from $addr // Unused
-  static final short Set_B3    = 0x0118; // EXT_FUN_DAT       sets B3 from $addr // Unused
-  static final short Set_B4    = 0x0119; // EXT_FUN_DAT       sets B4 from $addr // Unused
-  static final short Set_B1_B2 = 0x011a; // EXT_FUN_DAT_2     sets B1 from $addr1 and B2 from $addr2 // Unused
-  static final short Set_B3_B4 = 0x011b; // EXT_FUN_DAT_2     sets B3 from $addr1 and B4 from $addr2 // Unused
+  static final short Set_B2    = 0x0117; // EXT_FUN_DAT       sets B2 from $addr
+  static final short Set_B3    = 0x0118; // EXT_FUN_DAT       sets B3 from $addr
+  static final short Set_B4    = 0x0119; // EXT_FUN_DAT       sets B4 from $addr
+  static final short Set_B1_B2 = 0x011a; // EXT_FUN_DAT_2     sets B1 from $addr1 and B2 from $addr2
+  static final short Set_B3_B4 = 0x011b; // EXT_FUN_DAT_2     sets B3 from $addr1 and B4 from $addr2
   
   static final short Clear_A          = 0x0120; //  EXT_FUN           sets A to zero (A being A1..4)
   static final short Clear_B          = 0x0121; //  EXT_FUN           sets B to zero (B being B1..4) // Unused
@@ -0,0 +1,622 @@
+package bt.compiler;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Optimizer for the {@link Code} of a single method.
+ *
+ * Runs peephole and data flow simplifications until nothing changes, then
+ * allocates the temporary variables again with {@link Registers}.
+ *
+ * The temporary variables are assumed to be dead when a method returns, every
+ * other variable is always considered alive.
+ *
+ * @author jjos
+ */
+final class Optimizer {
+
+	private static final int MAX_PASSES = 64;
+
+	final Code code;
+	final ArrayList<Instruction> insns;
+	final int[] tmpVars;
+	/** If the denser instructions of the target version can be selected */
+	final boolean dense;
+	/** the branch and jump destinations, collected at the start of a pass */
+	private final HashSet<Instruction> targets = new HashSet<>();
+
+	Optimizer(Compiler compiler, Method method) {
+		this.code = method.code;
+		this.insns = code.instructions;
+		this.tmpVars = new int[] { compiler.tmpVar1, compiler.tmpVar2, compiler.tmpVar3, compiler.tmpVar4,
+				compiler.tmpVar5, compiler.tmpVar6 };
+		this.dense = compiler.targetVersion >= Compiler.DENSE_VERSION;
+	}
+
+	/**
+	 * Optimizes the code of the given method.
+	 */
+	static void optimize(Compiler compiler, Method m) {
+		Optimizer opt = new Optimizer(compiler, m);
+
+		boolean changed = true;
+		for (int i = 0; changed && i < MAX_PASSES; i++) {
+			changed = opt.pushPop();
+			changed |= opt.jumps();
+			changed |= opt.unreachable();
+			changed |= opt.propagate();
+			changed |= opt.coalesce();
+			changed |= opt.deadStores();
+			changed |= opt.select();
+			if (!changed)
+				changed = Registers.allocate(opt.code, opt.tmpVars);
+		}
+	}
+
+	int tmpIndex(int address) {
+		for (int i = 0; i < tmpVars.length; i++) {
+			if (tmpVars[i] == address)
+				return i;
+		}
+		return -1;
+	}
+
+	boolean isTmp(int address) {
+		return tmpIndex(address) >= 0;
+	}
+
+	/**
+	 * Collects the branch and jump destinations, for the passes checking
+	 * {@link #isTarget(Instruction)}.
+	 */
+	private void findTargets() {
+		targets.clear();
+		for (Instruction insn : insns) {
+			if (insn.target != null)
+				targets.add(insn.target);
+		}
+	}
+
+	boolean isTarget(Instruction insn) {
+		return targets.contains(insn);
+	}
+
+	/**
+	 * Removes the instruction at the given index, the references to it move to
+	 * the next one and so does its target mark.
+	 */
+	private void remove(int i) {
+		boolean target = targets.remove(code.get(i));
+		code.remove(i);
+		if (target)
+			targets.add(i < code.length() ? code.get(i) : code.end);
+	}
+
+	/**
+	 * A push followed by a pop is replaced by a simple copy (or nothing).
+	 */
+	boolean pushPop() {
+		boolean changed = false;
+		findTargets();
+		for (int i = 0; i + 1 < code.length(); i++) {
+			Instruction push = code.get(i);
+			Instruction pop = code.get(i + 1);
+			if (push.op != OpCode.e_op_code_PSH_DAT || pop.op != OpCode.e_op_code_POP_DAT || isTarget(pop))
+				continue;
+
+			changed = true;
+			if (push.args[0] == pop.args[0]) {
+				remove(i + 1);
+				remove(i);
+				i--;
+			} else {
+				push.op = OpCode.e_op_code_SET_DAT;
+				push.args = new int[] { pop.args[0], push.args[0] };
+				remove(i + 1);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Jumps to jumps are threaded and jumps to the next instruction removed.
+	 */
+	boolean jumps() {
+		boolean changed = false;
+		for (int i = 0; i < code.length(); i++) {
+			Instruction insn = code.get(i);
+			if (insn.op == OpCode.e_op_code_JMP_ADR) {
+				for (int n = 0; n < code.length() && insn.target.op == OpCode.e_op_code_JMP_ADR
+						&& insn.target.target != insn.target; n++) {
+					insn.target = insn.target.target;
+					changed = true;
+				}
+			}
+			if ((insn.op == OpCode.e_op_code_JMP_ADR || insn.isBranch()) && insn.target == code.next(i)) {
+				code.remove(i--);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes the basic blocks that can never be reached.
+	 */
+	boolean unreachable() {
+		return code.removeUnreachable() > 0;
+	}
+
+	/**
+	 * Forward propagation of constants and copies inside basic blocks.
+	 */
+	boolean propagate() {
+		boolean changed = false;
+		HashMap<Integer, Long> consts = new HashMap<>();
+		HashMap<Integer, Integer> copies = new HashMap<>();
+		HashSet<Instruction> leaders = new HashSet<>();
+		for (BasicBlock b : code.blocks())
+			leaders.add(b.first());
+
+		for (int i = 0; i < code.length(); i++) {
+			Instruction insn = code.get(i);
+			if (leaders.contains(insn)) {
+				consts.clear();
+				copies.clear();
+			}
+
+			// read the copy source instead of the temporary variable
+			for (int a = insn.firstUse(); a < insn.args.length; a++) {
+				Integer src = copies.get(insn.args[a]);
+				if (src != null && isTmp(insn.args[a])) {
+					insn.args[a] = src;
+					changed = true;
+				}
+			}
+
+			int simplified = simplify(insn, consts, copies);
+			if (simplified < 0) {
+				code.remove(i--);
+				changed = true;
+				continue;
+			}
+			if (simplified > 0)
+				changed = true;
+
+			update(insn, consts, copies);
+		}
+		return changed;
+	}
+
+	/**
+	 * @return -1 if the instruction should be removed, 1 if changed and 0
+	 *         otherwise
+	 */
+	private int simplify(Instruction insn, HashMap<Integer, Long> consts, HashMap<Integer, Integer> copies) {
+		Long cx = insn.args.length > 0 ? consts.get(insn.args[0]) : null;
+		Long cy = insn.args.length > 1 ? consts.get(insn.args[1]) : null;
+
+		switch (insn.op) {
+		case OpCode.e_op_code_SET_VAL:
+			if (cx != null && cx == insn.value)
+				return -1;
+			if (insn.value == 0) {
+				insn.op = OpCode.e_op_code_CLR_DAT;
+				return 1;
+			}
+			return 0;
+		case OpCode.e_op_code_CLR_DAT:
+			return cx != null && cx == 0 ? -1 : 0;
+		case OpCode.e_op_code_SET_DAT: {
+			int x = insn.args[0], y = insn.args[1];
+			if (x == y || Integer.valueOf(y).equals(copies.get(x)) || Integer.valueOf(x).equals(copies.get(y))
+					|| (cx != null && cx.equals(cy)))
+				return -1;
+			if (cy != null && cy == 0) {
+				setClear(insn);
+				return 1;
+			}
+			return 0;
+		}
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_DIV_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_MOD_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+			if (cy == null)
+				return 0;
+			if (cx != null) {
+				if (cy == 0 && (insn.op == OpCode.e_op_code_DIV_DAT || insn.op == OpCode.e_op_code_MOD_DAT))
+					return 0; // keep the error
+				long result = Machine.arithmetic(insn.op, cx, cy);
+				if (result == cx)
+					return -1;
+				if (result == 0)
+					setClear(insn);
+				else {
+					insn.op = OpCode.e_op_code_SET_VAL;
+					insn.args = new int[] { insn.args[0] };
+					insn.value = result;
+				}
+				return 1;
+			}
+			return simplifyIdentity(insn, cy);
+		case OpCode.e_op_code_BZR_DAT:
+		case OpCode.e_op_code_BNZ_DAT:
+			if (cx == null)
+				return 0;
+			return simplifyBranch(insn, (insn.op == OpCode.e_op_code_BZR_DAT) == (cx == 0));
+		case OpCode.e_op_code_BGT_DAT:
+		case OpCode.e_op_code_BLT_DAT:
+		case OpCode.e_op_code_BGE_DAT:
+		case OpCode.e_op_code_BLE_DAT:
+		case OpCode.e_op_code_BEQ_DAT:
+		case OpCode.e_op_code_BNE_DAT:
+			if (insn.args[0] == insn.args[1])
+				return simplifyBranch(insn, Machine.compare(insn.op, 0, 0));
+			if (cx == null || cy == null)
+				return 0;
+			return simplifyBranch(insn, Machine.compare(insn.op, cx, cy));
+		default:
+			return 0;
+		}
+	}
+
+	private int simplifyIdentity(Instruction insn, long cy) {
+		switch (insn.op) {
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+			if (cy == 1 || cy == -1) {
+				// ADD 1 and SUB -1 become INC_DAT on any version, ADD -1 and SUB 1
+				// become DEC_DAT only on the dense target
+				boolean inc = (insn.op == OpCode.e_op_code_ADD_DAT) == (cy == 1);
+				if (!inc && !dense)
+					return 0;
+				insn.op = inc ? OpCode.e_op_code_INC_DAT : OpCode.e_op_code_DEC_DAT;
+				insn.args = new int[] { insn.args[0] };
+				return 1;
+			}
+			return cy == 0 ? -1 : 0;
+		case OpCode.e_op_code_XOR_DAT:
+			if (cy == -1 && dense) {
+				insn.op = OpCode.e_op_code_NOT_DAT;
+				insn.args = new int[] { insn.args[0] };
+				return 1;
+			}
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+			return cy == 0 ? -1 : 0;
+		case OpCode.e_op_code_MUL_DAT:
+			if (cy == 0) {
+				setClear(insn);
+				return 1;
+			}
+		case OpCode.e_op_code_DIV_DAT:
+			return cy == 1 ? -1 : 0;
+		case OpCode.e_op_code_AND_DAT:
+			if (cy == 0) {
+				setClear(insn);
+				return 1;
+			}
+			return cy == -1 ? -1 : 0;
+		default:
+			return 0;
+		}
+	}
+
+	private int simplifyBranch(Instruction insn, boolean taken) {
+		if (!taken)
+			return -1;
+		if (insn.target == code.end)
+			return 0;
+		insn.op = OpCode.e_op_code_JMP_ADR;
+		insn.args = new int[0];
+		return 1;
+	}
+
+	private static void setClear(Instruction insn) {
+		insn.op = OpCode.e_op_code_CLR_DAT;
+		insn.args = new int[] { insn.args[0] };
+	}
+
+	private void update(Instruction insn, HashMap<Integer, Long> consts, HashMap<Integer, Integer> copies) {
+		if (insn.op == OpCode.e_op_code_JMP_SUB || insn.isTerminal()) {
+			// the called method can change anything
+			consts.clear();
+			copies.clear();
+			return;
+		}
+		if (insn.op == OpCode.e_op_code_IND_DAT || insn.op == OpCode.e_op_code_IDX_DAT) {
+			// unknown address written, only temporary variables are safe
+			consts.keySet().removeIf(a -> !isTmp(a));
+			copies.entrySet().removeIf(e -> !isTmp(e.getKey()) || !isTmp(e.getValue()));
+			return;
+		}
+
+		int def = insn.def();
+		if (def < 0)
+			return;
+
+		Long value = null;
+		Long cx = consts.get(def);
+		switch (insn.op) {
+		case OpCode.e_op_code_SET_VAL:
+			value = insn.value;
+			break;
+		case OpCode.e_op_code_CLR_DAT:
+			value = 0L;
+			break;
+		case OpCode.e_op_code_SET_DAT:
+			value = consts.get(insn.args[1]);
+			break;
+		case OpCode.e_op_code_INC_DAT:
+			value = cx == null ? null : cx + 1;
+			break;
+		case OpCode.e_op_code_DEC_DAT:
+			value = cx == null ? null : cx - 1;
+			break;
+		case OpCode.e_op_code_NOT_DAT:
+			value = cx == null ? null : ~cx;
+			break;
+		default:
+			break;
+		}
+
+		consts.remove(def);
+		copies.entrySet().removeIf(e -> e.getKey() == def || e.getValue() == def);
+		if (value != null)
+			consts.put(def, value);
+		if (insn.op == OpCode.e_op_code_SET_DAT && insn.args[1] != def)
+			copies.put(def, insn.args[1]);
+	}
+
+	/**
+	 * Writes directly on the final destination instead of on a temporary variable
+	 * that is copied and then discarded.
+	 */
+	boolean coalesce() {
+		boolean changed = false;
+		BitSet[] liveOut = liveness();
+		findTargets();
+
+		for (int i = 0; i + 1 < code.length(); i++) {
+			Instruction insn = code.get(i);
+			int t = insn.def();
+			if (t < 0 || !isTmp(t))
+				continue;
+
+			// a value written and then copied
+			Instruction copy = code.get(i + 1);
+			if (isPureDef(insn) && copy.op == OpCode.e_op_code_SET_DAT && copy.args[1] == t && copy.args[0] != t
+					&& !isTarget(copy) && !liveOut[i + 1].get(tmpIndex(t))) {
+				insn.args[0] = copy.args[0];
+				code.remove(i + 1);
+				return true;
+			}
+
+			// a value copied, changed in place and then copied back
+			if (insn.op == OpCode.e_op_code_SET_DAT && insn.args[1] != t) {
+				int a = insn.args[1];
+				int j = i + 1;
+				while (j < code.length() && isInPlace(code.get(j), t, a) && !isTarget(code.get(j)))
+					j++;
+				if (j == i + 1 || j >= code.length())
+					continue;
+				Instruction back = code.get(j);
+				if (back.op == OpCode.e_op_code_SET_DAT && back.args[0] == a && back.args[1] == t && !isTarget(back)
+						&& !liveOut[j].get(tmpIndex(t))) {
+					for (int k = i + 1; k < j; k++)
+						code.get(k).args[0] = a;
+					code.remove(j);
+					code.remove(i);
+					return true;
+				}
+			}
+		}
+		return changed;
+	}
+
+	private static boolean isPureDef(Instruction insn) {
+		switch (insn.op) {
+		case OpCode.e_op_code_SET_VAL:
+		case OpCode.e_op_code_SET_DAT:
+		case OpCode.e_op_code_CLR_DAT:
+		case OpCode.e_op_code_SET_IND:
+		case OpCode.e_op_code_SET_IDX:
+		case OpCode.e_op_code_POP_DAT:
+		case OpCode.e_op_code_EXT_FUN_RET:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT:
+		case OpCode.e_op_code_EXT_FUN_RET_DAT_2:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isInPlace(Instruction insn, int t, int a) {
+		if (!insn.readsDef() || insn.args[0] != t)
+			return false;
+		for (int k = 1; k < insn.args.length; k++) {
+			if (insn.args[k] == t || insn.args[k] == a)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes writes on temporary variables that are never read.
+	 */
+	boolean deadStores() {
+		boolean changed = false;
+		BitSet[] liveOut = liveness();
+		for (int i = code.length() - 1; i >= 0; i--) {
+			Instruction insn = code.get(i);
+			int t = insn.def();
+			if (t >= 0 && isTmp(t) && isRemovable(insn) && !liveOut[i].get(tmpIndex(t))) {
+				code.remove(i);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean isRemovable(Instruction insn) {
+		switch (insn.op) {
+		case OpCode.e_op_code_SET_VAL:
+		case OpCode.e_op_code_SET_DAT:
+		case OpCode.e_op_code_CLR_DAT:
+		case OpCode.e_op_code_INC_DAT:
+		case OpCode.e_op_code_DEC_DAT:
+		case OpCode.e_op_code_NOT_DAT:
+		case OpCode.e_op_code_ADD_DAT:
+		case OpCode.e_op_code_SUB_DAT:
+		case OpCode.e_op_code_MUL_DAT:
+		case OpCode.e_op_code_BOR_DAT:
+		case OpCode.e_op_code_AND_DAT:
+		case OpCode.e_op_code_XOR_DAT:
+		case OpCode.e_op_code_SHL_DAT:
+		case OpCode.e_op_code_SHR_DAT:
+			return true;
+		case OpCode.e_op_code_EXT_FUN_RET:
+			// only reading the registers, no side effects
+			return insn.fun >= OpCode.Get_A1 && insn.fun <= OpCode.Get_B4;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Selects the denser instructions of the target version: a difference only
+	 * tested for zero becomes a BEQ_DAT/BNE_DAT and two consecutive register
+	 * setters become a single paired one.
+	 */
+	boolean select() {
+		if (!dense)
+			return false;
+		BitSet[] liveOut = liveness();
+		findTargets();
+		for (int i = 0; i + 1 < code.length(); i++) {
+			Instruction insn = code.get(i);
+			Instruction next = code.get(i + 1);
+			if (isTarget(next))
+				continue;
+
+			int t = insn.def();
+			if (insn.op == OpCode.e_op_code_SUB_DAT && isTmp(t) && insn.args[1] != t
+					&& (next.op == OpCode.e_op_code_BNZ_DAT || next.op == OpCode.e_op_code_BZR_DAT)
+					&& next.args[0] == t && !liveOut[i + 1].get(tmpIndex(t))) {
+				next.op = next.op == OpCode.e_op_code_BNZ_DAT ? OpCode.e_op_code_BNE_DAT : OpCode.e_op_code_BEQ_DAT;
+				next.args = insn.args;
+				code.remove(i);
+				return true;
+			}
+
+			short pair = pair(insn, next);
+			if (pair != 0) {
+				boolean first = insn.fun < next.fun;
+				insn.op = OpCode.e_op_code_EXT_FUN_DAT_2;
+				insn.fun = pair;
+				insn.args = first ? new int[] { insn.args[0], next.args[0] }
+						: new int[] { next.args[0], insn.args[0] };
+				code.remove(i + 1);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the paired setter for the two given register setters, 0 if none
+	 */
+	private static short pair(Instruction insn, Instruction next) {
+		if (insn.op != OpCode.e_op_code_EXT_FUN_DAT || next.op != OpCode.e_op_code_EXT_FUN_DAT)
+			return 0;
+		short lo = (short) Math.min(insn.fun, next.fun);
+		short hi = (short) Math.max(insn.fun, next.fun);
+		if (lo == OpCode.Set_A1 && hi == OpCode.Set_A2)
+			return OpCode.Set_A1_A2;
+		if (lo == OpCode.Set_A3 && hi == OpCode.Set_A4)
+			return OpCode.Set_A3_A4;
+		if (lo == OpCode.Set_B1 && hi == OpCode.Set_B2)
+			return OpCode.Set_B1_B2;
+		if (lo == OpCode.Set_B3 && hi == OpCode.Set_B4)
+			return OpCode.Set_B3_B4;
+		return 0;
+	}
+
+	/**
+	 * @return the temporary variables alive after each instruction
+	 */
+	BitSet[] liveness() {
+		List<BasicBlock> blocks = code.blocks();
+		int nb = blocks.size();
+		BitSet[] use = new BitSet[nb];
+		BitSet[] kill = new BitSet[nb];
+		BitSet[] liveIn = new BitSet[nb];
+		BitSet[] liveOut = new BitSet[nb];
+		for (BasicBlock b : blocks) {
+			BitSet u = new BitSet(), k = new BitSet();
+			for (int i = b.end - 1; i >= b.start; i--)
+				transfer(code.get(i), u, k);
+			use[b.index] = u;
+			kill[b.index] = k;
+			liveIn[b.index] = new BitSet();
+			liveOut[b.index] = new BitSet();
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k = nb - 1; k >= 0; k--) {
+				BasicBlock b = blocks.get(k);
+				BitSet out = new BitSet();
+				for (BasicBlock s : b.successors)
+					out.or(liveIn[s.index]);
+				BitSet in = (BitSet) out.clone();
+				in.andNot(kill[k]);
+				in.or(use[k]);
+				if (!out.equals(liveOut[k]) || !in.equals(liveIn[k])) {
+					liveOut[k] = out;
+					liveIn[k] = in;
+					changed = true;
+				}
+			}
+		}
+
+		BitSet[] ret = new BitSet[code.length()];
+		for (BasicBlock b : blocks) {
+			BitSet live = (BitSet) liveOut[b.index].clone();
+			for (int i = b.end - 1; i >= b.start; i--) {
+				ret[i] = (BitSet) live.clone();
+				transfer(code.get(i), live, null);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Updates the live temporary variables backwards over the given instruction.
+	 */
+	private void transfer(Instruction insn, BitSet live, BitSet kill) {
+		int def = insn.def();
+		if (def >= 0 && isTmp(def)) {
+			live.clear(tmpIndex(def));
+			if (kill != null)
+				kill.set(tmpIndex(def));
+		}
+		for (int t = 0; t < tmpVars.length; t++) {
+			if (insn.uses(tmpVars[t]))
+				live.set(t);
+		}
+	}
+}
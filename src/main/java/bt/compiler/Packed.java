@@ -0,0 +1,19 @@
+package bt.compiler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Packs a boolean or int field together with other packed fields on a single
+ * long variable.
+ * 
+ * Contracts with many small fields use less data pages (cheaper to register),
+ * but every access to a packed field costs some extra masking and shifting
+ * steps.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD})
+public @interface Packed {
+}
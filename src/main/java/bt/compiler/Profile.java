@@ -0,0 +1,192 @@
+package bt.compiler;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import bt.Contract;
+
+/**
+ * Execution profile for a compiled contract.
+ *
+ * Counts the steps executed on every code position of a {@link Machine} and
+ * aggregates them by {@link Method} and by source line, so it is possible to
+ * see where the execution fees go.
+ *
+ * @author jjos
+ */
+public class Profile {
+
+	final Compiler compiler;
+	final long[] pcSteps;
+
+	long activations;
+	long lastSteps;
+	long maxSteps;
+
+	public Profile(Compiler compiler) {
+		this.compiler = compiler;
+		this.pcSteps = new long[compiler.getCode().length];
+	}
+
+	void count(int pc) {
+		pcSteps[pc]++;
+	}
+
+	/**
+	 * Registers the end of an activation (a machine run on a given block).
+	 *
+	 * @param steps the number of steps executed on this activation
+	 */
+	public void activation(long steps) {
+		activations++;
+		lastSteps = steps;
+		maxSteps = Math.max(maxSteps, steps);
+	}
+
+	/**
+	 * @return the number of activations profiled
+	 */
+	public long getActivations() {
+		return activations;
+	}
+
+	/**
+	 * @return the number of steps on the last activation
+	 */
+	public long getLastSteps() {
+		return lastSteps;
+	}
+
+	/**
+	 * @return the fee paid on the last activation
+	 */
+	public long getLastFee() {
+		return lastSteps * Contract.STEP_FEE;
+	}
+
+	/**
+	 * @return the maximum number of steps on a single activation
+	 */
+	public long getMaxSteps() {
+		return maxSteps;
+	}
+
+	/**
+	 * @return the total number of steps profiled
+	 */
+	public long getSteps() {
+		long ret = 0;
+		for (long s : pcSteps)
+			ret += s;
+		return ret;
+	}
+
+	/**
+	 * @return the total fee for the steps profiled
+	 */
+	public long getFee() {
+		return getSteps() * Contract.STEP_FEE;
+	}
+
+	/**
+	 * @return the number of steps executed at the given code position
+	 */
+	public long getSteps(int pc) {
+		return pcSteps[pc];
+	}
+
+	/**
+	 * @return the steps spent on the given method
+	 */
+	public long getSteps(Method m) {
+		long ret = 0;
+		if (!m.linked)
+			return ret; // empty or never called
+		for (int pc = m.address; pc < m.address + m.size && pc < pcSteps.length; pc++)
+			ret += pcSteps[pc];
+		return ret;
+	}
+
+	/**
+	 * @return the steps spent on the initial and dispatch code, outside of any
+	 *         method
+	 */
+	public long getDispatchSteps() {
+		long ret = getSteps();
+		for (Method m : compiler.getMethods())
+			ret -= getSteps(m);
+		return ret;
+	}
+
+	/**
+	 * @return the steps spent by method, keyed by the method hash
+	 */
+	public Map<Long, Long> getMethodSteps() {
+		TreeMap<Long, Long> ret = new TreeMap<>();
+		for (Method m : compiler.getMethods()) {
+			long steps = getSteps(m);
+			if (steps > 0)
+				ret.merge(m.getHash(), steps, Long::sum);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the steps spent by source line, lines not known are reported as -1
+	 */
+	public Map<Integer, Long> getLineSteps() {
+		TreeMap<Integer, Long> ret = new TreeMap<>();
+		for (int pc = 0; pc < pcSteps.length; pc++) {
+			if (pcSteps[pc] > 0)
+				ret.merge(compiler.getLineAt(pc), pcSteps[pc], Long::sum);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return a copy of this profile, with the same counters
+	 */
+	public Profile copy() {
+		Profile ret = new Profile(compiler);
+		System.arraycopy(pcSteps, 0, ret.pcSteps, 0, pcSteps.length);
+		ret.activations = activations;
+		ret.lastSteps = lastSteps;
+		ret.maxSteps = maxSteps;
+		return ret;
+	}
+
+	/**
+	 * Clears all the counters.
+	 */
+	public void reset() {
+		for (int pc = 0; pc < pcSteps.length; pc++)
+			pcSteps[pc] = 0;
+		activations = lastSteps = maxSteps = 0;
+	}
+
+	@Override
+	public String toString() {
+		long total = getSteps();
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%s: %d steps, %d NQT on %d activations (max %d steps)%n", compiler.getClassName(),
+				total, total * Contract.STEP_FEE, activations, maxSteps));
+
+		sb.append(String.format("%-24s %20s %10s %7s%n", "method", "hash", "steps", "%"));
+		for (Method m : compiler.getMethods()) {
+			long steps = getSteps(m);
+			if (steps > 0)
+				sb.append(String.format("%-24s %20d %10d %6.1f%%%n", m.getName(), m.getHash(), steps,
+						100.0 * steps / total));
+		}
+		long dispatch = getDispatchSteps();
+		if (dispatch > 0)
+			sb.append(String.format("%-24s %20s %10d %6.1f%%%n", "(dispatch)", "", dispatch, 100.0 * dispatch / total));
+
+		sb.append(String.format("%-8s %10s %7s%n", "line", "steps", "%"));
+		for (Map.Entry<Integer, Long> e : getLineSteps().entrySet()) {
+			sb.append(String.format("%-8s %10d %6.1f%%%n", e.getKey() < 0 ? "?" : e.getKey().toString(), e.getValue(),
+					100.0 * e.getValue() / total));
+		}
+		return sb.toString();
+	}
+}
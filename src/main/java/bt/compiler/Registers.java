@@ -0,0 +1,327 @@
+package bt.compiler;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Register allocation for the temporary variables of a method.
+ *
+ * Every definition of a temporary variable, together with the uses it reaches,
+ * becomes a virtual register. Virtual registers are then assigned again to the
+ * physical temporary variables by coloring their interference graph, giving
+ * preference to the register of copy related values so the copies can be
+ * removed.
+ *
+ * Values alive across a method call keep their original register, since the
+ * called method can change the other ones.
+ *
+ * @author jjos
+ */
+final class Registers {
+
+	final Code code;
+	final int[] tmpVars;
+	final int n;
+
+	/** the temporary variable index defined by each instruction, or -1 */
+	int[] defTmp;
+	/** the definitions reaching each instruction */
+	BitSet[] reaching;
+	/** union-find of definitions, the roots are the virtual registers */
+	int[] parent;
+
+	Registers(Code code, int[] tmpVars) {
+		this.code = code;
+		this.tmpVars = tmpVars;
+		this.n = code.length();
+	}
+
+	/**
+	 * Allocates the temporary variables of the given code again.
+	 *
+	 * @return true if the code was changed
+	 */
+	static boolean allocate(Code code, int[] tmpVars) {
+		return new Registers(code, tmpVars).allocate();
+	}
+
+	int tmpIndex(int address) {
+		for (int i = 0; i < tmpVars.length; i++) {
+			if (tmpVars[i] == address)
+				return i;
+		}
+		return -1;
+	}
+
+	ArrayList<ArrayList<Integer>> successors() {
+		HashMap<Instruction, Integer> index = new HashMap<>();
+		for (int i = 0; i < n; i++)
+			index.put(code.get(i), i);
+
+		ArrayList<ArrayList<Integer>> ret = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			Instruction insn = code.get(i);
+			ArrayList<Integer> succ = new ArrayList<>();
+			if (!insn.isTerminal() && i + 1 < n)
+				succ.add(i + 1);
+			if (insn.target != null && insn.target != code.end)
+				succ.add(index.get(insn.target));
+			ret.add(succ);
+		}
+		return ret;
+	}
+
+	int find(int d) {
+		while (parent[d] != d) {
+			parent[d] = parent[parent[d]];
+			d = parent[d];
+		}
+		return d;
+	}
+
+	void union(int a, int b) {
+		parent[find(a)] = find(b);
+	}
+
+	/**
+	 * @return the virtual register read by the given instruction on the given
+	 *         temporary variable, -1 if not defined
+	 */
+	int useWeb(int i, int t) {
+		BitSet r = reaching[i];
+		for (int d = r.nextSetBit(0); d >= 0; d = r.nextSetBit(d + 1)) {
+			if (defTmp[d] == t)
+				return find(d);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the virtual register on each argument of the given instruction, -1
+	 *         if not a temporary variable
+	 */
+	int[] webs(int i) {
+		Instruction insn = code.get(i);
+		int[] ret = new int[insn.args.length];
+		for (int k = 0; k < insn.args.length; k++) {
+			int t = tmpIndex(insn.args[k]);
+			if (t < 0)
+				ret[k] = -1;
+			else if (k == 0 && defTmp[i] >= 0)
+				ret[k] = find(i);
+			else
+				ret[k] = useWeb(i, t);
+		}
+		return ret;
+	}
+
+	boolean allocate() {
+		if (n == 0)
+			return false;
+		ArrayList<ArrayList<Integer>> succ = successors();
+		ArrayList<ArrayList<Integer>> pred = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+			pred.add(new ArrayList<>());
+		for (int i = 0; i < n; i++) {
+			for (int s : succ.get(i))
+				pred.get(s).add(i);
+		}
+
+		// reaching definitions
+		defTmp = new int[n];
+		BitSet[] defsOf = new BitSet[tmpVars.length];
+		for (int t = 0; t < tmpVars.length; t++)
+			defsOf[t] = new BitSet();
+		for (int i = 0; i < n; i++) {
+			int def = code.get(i).def();
+			defTmp[i] = def < 0 ? -1 : tmpIndex(def);
+			if (defTmp[i] >= 0)
+				defsOf[defTmp[i]].set(i);
+		}
+		reaching = new BitSet[n];
+		BitSet[] out = new BitSet[n];
+		for (int i = 0; i < n; i++) {
+			reaching[i] = new BitSet();
+			out[i] = new BitSet();
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < n; i++) {
+				BitSet in = new BitSet();
+				for (int p : pred.get(i))
+					in.or(out[p]);
+				BitSet o = (BitSet) in.clone();
+				if (defTmp[i] >= 0) {
+					o.andNot(defsOf[defTmp[i]]);
+					o.set(i);
+				}
+				if (!in.equals(reaching[i]) || !o.equals(out[i])) {
+					reaching[i] = in;
+					out[i] = o;
+					changed = true;
+				}
+			}
+		}
+
+		// join the definitions reaching the same use in a virtual register
+		parent = new int[n];
+		for (int i = 0; i < n; i++)
+			parent[i] = i;
+		for (int i = 0; i < n; i++) {
+			Instruction insn = code.get(i);
+			for (int t = 0; t < tmpVars.length; t++) {
+				if (!insn.uses(tmpVars[t]))
+					continue;
+				int first = -1;
+				BitSet r = reaching[i];
+				for (int d = r.nextSetBit(0); d >= 0; d = r.nextSetBit(d + 1)) {
+					if (defTmp[d] != t)
+						continue;
+					if (first < 0)
+						first = d;
+					else
+						union(d, first);
+				}
+				if (first < 0)
+					return false; // reading an undefined value, keep it as is
+				if (insn.readsDef() && defTmp[i] == t)
+					union(i, first);
+			}
+		}
+
+		int[][] webs = new int[n][];
+		for (int i = 0; i < n; i++)
+			webs[i] = webs(i);
+
+		// liveness of the virtual registers
+		BitSet[] liveIn = new BitSet[n];
+		BitSet[] liveOut = new BitSet[n];
+		for (int i = 0; i < n; i++) {
+			liveIn[i] = new BitSet();
+			liveOut[i] = new BitSet();
+		}
+		changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = n - 1; i >= 0; i--) {
+				Instruction insn = code.get(i);
+				BitSet o = new BitSet();
+				for (int s : succ.get(i))
+					o.or(liveIn[s]);
+				BitSet in = (BitSet) o.clone();
+				if (defTmp[i] >= 0)
+					in.clear(find(i));
+				for (int k = insn.firstUse(); k < insn.args.length; k++) {
+					if (webs[i][k] >= 0)
+						in.set(webs[i][k]);
+				}
+				if (insn.readsDef() && webs[i][0] >= 0)
+					in.set(webs[i][0]);
+				if (!o.equals(liveOut[i]) || !in.equals(liveIn[i])) {
+					liveOut[i] = o;
+					liveIn[i] = in;
+					changed = true;
+				}
+			}
+		}
+
+		// interference and copies
+		HashMap<Integer, BitSet> interference = new HashMap<>();
+		HashMap<Integer, ArrayList<Integer>> copies = new HashMap<>();
+		ArrayList<Integer> order = new ArrayList<>();
+		BitSet fixed = new BitSet();
+		for (int i = 0; i < n; i++) {
+			if (defTmp[i] >= 0 && find(i) == i)
+				order.add(i);
+		}
+		for (int w : order) {
+			interference.put(w, new BitSet());
+			copies.put(w, new ArrayList<>());
+		}
+		for (int i = 0; i < n; i++) {
+			Instruction insn = code.get(i);
+			if (insn.op == OpCode.e_op_code_JMP_SUB)
+				fixed.or(liveOut[i]);
+			if (defTmp[i] < 0)
+				continue;
+			int w = find(i);
+			int source = -1;
+			if (insn.op == OpCode.e_op_code_SET_DAT && webs[i][1] >= 0) {
+				source = webs[i][1];
+				copies.get(w).add(source);
+				copies.get(source).add(w);
+			}
+			BitSet live = liveOut[i];
+			for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+				if (v != w && v != source) {
+					interference.get(w).set(v);
+					interference.get(v).set(w);
+				}
+			}
+		}
+
+		// coloring, the fixed virtual registers first
+		HashMap<Integer, Integer> color = new HashMap<>();
+		for (int w : order) {
+			if (fixed.get(w))
+				color.put(w, defTmp[w]);
+		}
+		for (int w : order) {
+			if (color.containsKey(w))
+				continue;
+			BitSet used = new BitSet();
+			BitSet neighbors = interference.get(w);
+			for (int v = neighbors.nextSetBit(0); v >= 0; v = neighbors.nextSetBit(v + 1)) {
+				if (color.containsKey(v))
+					used.set(color.get(v));
+			}
+			int c = -1;
+			for (int v : copies.get(w)) {
+				Integer cv = color.get(v);
+				if (cv != null && !used.get(cv)) {
+					c = cv;
+					break;
+				}
+			}
+			if (c < 0 && !used.get(defTmp[w]))
+				c = defTmp[w];
+			if (c < 0)
+				c = used.nextClearBit(0);
+			if (c >= tmpVars.length)
+				return false; // more values alive than registers, keep it as is
+			color.put(w, c);
+		}
+		for (int w : order) {
+			BitSet neighbors = interference.get(w);
+			for (int v = neighbors.nextSetBit(0); v >= 0; v = neighbors.nextSetBit(v + 1)) {
+				if (color.get(v).equals(color.get(w)))
+					return false; // conflicting fixed registers
+			}
+		}
+
+		// rewrite the code with the new registers
+		changed = false;
+		for (int i = 0; i < n; i++) {
+			Instruction insn = code.get(i);
+			for (int k = 0; k < insn.args.length; k++) {
+				if (webs[i][k] < 0)
+					continue;
+				int address = tmpVars[color.get(webs[i][k])];
+				if (insn.args[k] != address) {
+					insn.args[k] = address;
+					changed = true;
+				}
+			}
+		}
+		for (int i = n - 1; i >= 0; i--) {
+			Instruction insn = code.get(i);
+			if (insn.op == OpCode.e_op_code_SET_DAT && insn.args[0] == insn.args[1]) {
+				code.remove(i);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+}
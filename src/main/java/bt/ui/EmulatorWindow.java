@@ -172,6 +172,8 @@ public class EmulatorWindow extends JFrame implements ActionListener {
 					Address add = (Address) value;
 					if (add.getContract() != null)
 						c.setToolTipText(add.getContract().getFieldValues());
+					else if (add.getCompiledContract() != null)
+						c.setToolTipText(add.getCompiledContract().getFieldValues());
 				}
 				return c;
 			}
@@ -0,0 +1,44 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import bt.compiler.BatchCompiler;
+import bt.compiler.Compiler;
+
+/**
+ * Checks contracts compiled in parallel are the same as compiled one by one.
+ *
+ * @author jjos
+ */
+public class BatchCompilerTest {
+
+	@Test
+	public void testParallel() throws Exception {
+		List<Class<? extends Contract>> contracts = BatchCompiler.findContracts("bt.sample",
+				getClass().getClassLoader());
+		assertTrue(contracts.size() > 10);
+		assertFalse(contracts.contains(Contract.class));
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		List<BatchCompiler.Result> results = new BatchCompiler(pool, null).compile(contracts);
+		pool.shutdown();
+
+		assertEquals(contracts.size(), results.size());
+		for (BatchCompiler.Result r : results) {
+			Compiler comp = new Compiler(r.getContract());
+			comp.compile();
+			if (comp.getErrors().size() > 0) {
+				assertTrue(r.hasErrors());
+				continue;
+			}
+			comp.link();
+			assertArrayEquals(r.getContract().getName(), comp.getCode(), r.getCompiler().getCode());
+			assertEquals(64, r.getCodeHash().length());
+		}
+	}
+}
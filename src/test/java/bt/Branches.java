@@ -0,0 +1,39 @@
+package bt;
+
+import bt.Contract;
+import bt.ui.EmulatorWindow;
+
+/**
+ * A contract with a tight loop and a conditional too long for a short branch.
+ */
+public class Branches extends Contract {
+
+	long total;
+	long a, b, c, d, e, f;
+
+	@Override
+	public void txReceived() {
+		long n = getCurrentTxAmount() / ONE_BURST;
+		for (long i = 0; i < n; i++)
+			total += i;
+
+		if (total > 10) {
+			a = total * 2;
+			b = a * 3;
+			c = b * 4;
+			d = c * 5;
+			e = d * 6;
+			f = e * 7;
+			a += b + c + d;
+			b += c + d + e;
+			c += d + e + f;
+			d += e + f + a;
+			e += f + a + b;
+			f += a + b + c;
+		}
+	}
+
+	public static void main(String[] args) {
+		new EmulatorWindow(Branches.class);
+	}
+}
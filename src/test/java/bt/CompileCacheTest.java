@@ -0,0 +1,67 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import bt.compiler.CompileCache;
+import bt.compiler.Compiler;
+import bt.compiler.Method;
+import bt.sample.TXCounter;
+
+/**
+ * Checks a cached contract is the same as a freshly compiled one.
+ *
+ * @author jjos
+ */
+public class CompileCacheTest {
+
+	@Test
+	public void testCache() throws Exception {
+		File dir = Files.createTempDirectory("btcache").toFile();
+		CompileCache cache = new CompileCache(dir);
+
+		Compiler compiled = cache.compile(TXCounter.class);
+		assertEquals(0, compiled.getErrors().size());
+		assertEquals(1, dir.listFiles().length);
+
+		Compiler cached = cache.compile(TXCounter.class);
+		assertArrayEquals(compiled.getCode(), cached.getCode());
+		assertEquals(compiled.getDataPages(), cached.getDataPages());
+		assertArrayEquals(compiled.getData(), cached.getData());
+		for (bt.compiler.Field f : compiled.getFields())
+			assertEquals(f.getAddress(), cached.getFieldAddress(f.getName()));
+		for (Method m : compiled.getMethods()) {
+			assertEquals(m.getHash(), cached.getMethod(m.getName()).getHash());
+			assertEquals(m.isLinked(), cached.getMethod(m.getName()).isLinked());
+		}
+		for (int pc = 0; pc < compiled.getCode().length; pc++)
+			assertEquals(compiled.getLineAt(pc), cached.getLineAt(pc));
+
+		cache.clear();
+		assertEquals(0, dir.listFiles().length);
+		dir.delete();
+	}
+
+	@Test
+	public void testCodegenVersion() throws Exception {
+		File dir = Files.createTempDirectory("btcache").toFile();
+		CompileCache cache = new CompileCache(dir);
+		cache.compile(TXCounter.class);
+		assertEquals(1, dir.listFiles().length);
+
+		// a new code generation does not use the old entry
+		CompileCache next = new CompileCache(dir, Compiler.CODEGEN_VERSION + 1);
+		Compiler compiled = next.compile(TXCounter.class);
+		assertEquals(0, compiled.getErrors().size());
+		assertEquals(2, dir.listFiles().length);
+		next.compile(TXCounter.class);
+		assertEquals(2, dir.listFiles().length);
+
+		cache.clear();
+		dir.delete();
+	}
+}
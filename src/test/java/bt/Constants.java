@@ -0,0 +1,36 @@
+package bt;
+
+import bt.Contract;
+import bt.ui.EmulatorWindow;
+
+/**
+ * A contract initializing fields with constants on the constructor.
+ */
+public class Constants extends Contract {
+
+	long price;
+	int count;
+	boolean open;
+	long zero;
+	Address owner;
+	long received;
+
+	public Constants() {
+		price = 1000 * ONE_BURST;
+		count = 5;
+		open = true;
+		zero = 0;
+		owner = getCreator();
+		if (getCurrentBalance() > 0)
+			received = 1;
+	}
+
+	@Override
+	public void txReceived() {
+		count++;
+	}
+
+	public static void main(String[] args) {
+		new EmulatorWindow(Constants.class);
+	}
+}
@@ -0,0 +1,37 @@
+package bt;
+
+/**
+ * Contract with methods that are never called.
+ * 
+ * @author jjos
+ */
+public class DeadCode extends Contract {
+
+	long counter;
+
+	void increment() {
+		counter++;
+	}
+
+	void unused() {
+		counter = 0;
+		increment();
+		big();
+	}
+
+	void nothing() {
+	}
+
+	void big() {
+		counter += 2;
+		counter *= 3;
+		counter -= 4;
+	}
+
+	@Override
+	public void txReceived() {
+		increment();
+		nothing();
+		big();
+	}
+}
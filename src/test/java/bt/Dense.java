@@ -0,0 +1,36 @@
+package bt;
+
+import bt.Contract;
+import bt.ui.EmulatorWindow;
+
+/**
+ * A contract with equality tests, decrements, complements and messages of four
+ * longs, all with denser instructions on the newer AT version.
+ */
+public class Dense extends Contract {
+
+	long last;
+	long matches;
+	long countdown;
+	long flags;
+
+	public Dense() {
+		countdown = 10;
+	}
+
+	@Override
+	public void txReceived() {
+		long amount = getCurrentTxAmount();
+		if (amount == last)
+			matches++;
+		if (amount != last)
+			last = amount;
+		countdown--;
+		flags = ~flags;
+		sendMessage(last, matches, countdown, flags, getCurrentTxSender());
+	}
+
+	public static void main(String[] args) {
+		new EmulatorWindow(Dense.class);
+	}
+}
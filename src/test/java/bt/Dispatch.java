@@ -0,0 +1,61 @@
+package bt;
+
+import bt.Contract;
+import bt.ui.EmulatorWindow;
+
+/**
+ * A contract with many public methods, to check the method dispatch.
+ */
+public class Dispatch extends Contract {
+
+	long called;
+	long created;
+
+	public Dispatch() {
+		created = getBlockHeight();
+	}
+
+	public void method1() {
+		called = 1;
+	}
+
+	public void method2() {
+		called = 2;
+	}
+
+	public void method3() {
+		called = 3;
+	}
+
+	public void method4() {
+		called = 4;
+	}
+
+	public void method5() {
+		called = 5;
+	}
+
+	public void method6() {
+		called = 6;
+	}
+
+	public void empty() {
+	}
+
+	public void add(long a, long b) {
+		called = a + b;
+	}
+
+	public void sub(long a, long b, long c) {
+		called = a - b - c;
+	}
+
+	@Override
+	public void txReceived() {
+		called = -1;
+	}
+
+	public static void main(String[] args) {
+		new EmulatorWindow(Dispatch.class);
+	}
+}
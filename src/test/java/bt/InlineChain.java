@@ -0,0 +1,29 @@
+package bt;
+
+/**
+ * A large method inlined once on a small one, which is inlined twice, so the
+ * large one is still called afterwards.
+ * 
+ * @author jjos
+ */
+public class InlineChain extends Contract {
+
+	long counter;
+
+	void small() {
+		big();
+	}
+
+	void big() {
+		counter += 2;
+		counter *= 3;
+		counter -= 4;
+		counter /= 5;
+	}
+
+	@Override
+	public void txReceived() {
+		small();
+		small();
+	}
+}
@@ -0,0 +1,547 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import bt.compiler.Machine;
+import bt.compiler.Profile;
+import bt.sample.AlwaysRunning;
+import bt.sample.Hello;
+import bt.sample.TXCounter;
+
+/**
+ * Runs the compiled bytecode on the emulator, no node is needed.
+ *
+ * @author jjos
+ */
+public class MachineTest {
+
+	@Test
+	public void testCounter() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("COUNTER_CREATOR");
+		Address user = emu.getAddress("COUNTER_USER");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.airDrop(user, 1000 * Contract.ONE_BURST);
+
+		Address javaCounter = emu.getAddress("COUNTER_JAVA");
+		Address compiledCounter = emu.getAddress("COUNTER_COMPILED");
+		emu.createConctract(creator, javaCounter, TXCounter.class, Contract.ONE_BURST);
+		emu.createConctract(creator, compiledCounter, BT.compileContract(TXCounter.class), Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		for (int i = 0; i < 10; i++) {
+			emu.send(user, javaCounter, 2 * Contract.ONE_BURST);
+			emu.send(user, compiledCounter, 2 * Contract.ONE_BURST);
+			emu.send(creator, javaCounter, 2 * Contract.ONE_BURST);
+			emu.send(creator, compiledCounter, 2 * Contract.ONE_BURST);
+			emu.forgeBlock();
+		}
+		emu.forgeBlock();
+
+		CompiledContract compiled = compiledCounter.getCompiledContract();
+		assertEquals(Machine.STATE_FINISHED, compiled.getMachine().getState());
+		assertEquals(20, compiled.getFieldValue("ntx"));
+		assertEquals(creator.getId(), compiled.getFieldValue("address"));
+		assertTrue("Steps should be charged", compiledCounter.getBalance() < 41 * Contract.ONE_BURST);
+	}
+
+	@Test
+	public void testHello() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("HELLO_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Address hello = emu.getAddress("HELLO_COMPILED");
+		emu.createConctract(creator, hello, BT.compileContract(Hello.class), Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		emu.send(creator, hello, 2 * Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		Transaction reply = null;
+		for (Transaction tx : emu.getCurrentBlock().txs) {
+			if (tx.getSenderAddress() == hello)
+				reply = tx;
+		}
+		assertNotNull("No reply message", reply);
+		assertEquals(creator, reply.getReceiverAddress());
+		assertEquals(Register.newMessage("Hello, World").getValue1(), reply.getMessage().getValue1());
+		assertEquals(Register.newMessage("Hello, World").getValue2(), reply.getMessage().getValue2());
+	}
+
+	@Test
+	public void testCreationAmount() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("AMOUNT_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		Address java = emu.getAddress("AMOUNT_JAVA");
+		Address compiled = emu.getAddress("AMOUNT_COMPILED");
+		emu.createConctract(creator, java, TXCounter.class, 10 * Contract.ONE_BURST);
+		emu.createConctract(creator, compiled, BT.compileContract(TXCounter.class), 10 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.send(creator, java, 30 * Contract.ONE_BURST);
+		emu.send(creator, compiled, 30 * Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		// both emulations report the same amounts
+		int ntxs = 0;
+		for (Transaction tx : emu.getTxs()) {
+			if (tx.getReceiverAddress() != java && tx.getReceiverAddress() != compiled)
+				continue;
+			ntxs++;
+			if (tx.type == Transaction.TYPE_AT_CREATE)
+				assertEquals(10 * Contract.ONE_BURST, tx.getAmount());
+			else
+				assertEquals(20 * Contract.ONE_BURST, tx.getAmount());
+		}
+		assertEquals(4, ntxs);
+	}
+
+	@Test
+	public void testProfile() throws Exception {
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("PROFILE_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Address counter = emu.getAddress("PROFILE_COUNTER");
+		emu.createConctract(creator, counter, BT.compileContract(TXCounter.class), Contract.ONE_BURST);
+		emu.forgeBlock();
+		for (int i = 0; i < 5; i++) {
+			emu.send(creator, counter, 2 * Contract.ONE_BURST);
+			emu.forgeBlock();
+		}
+
+		CompiledContract compiled = counter.getCompiledContract();
+		Profile profile = compiled.getProfile();
+		assertEquals(compiled.getMachine().getSteps(), profile.getSteps());
+		assertEquals(profile.getSteps() * Contract.STEP_FEE, profile.getFee());
+		assertEquals(6, profile.getActivations());
+
+		long methodSteps = 0;
+		for (long steps : profile.getMethodSteps().values())
+			methodSteps += steps;
+		assertEquals(profile.getSteps(), methodSteps + profile.getDispatchSteps());
+		long txReceived = compiled.getCompiler().getMethod("txReceived").getHash();
+		assertTrue(profile.getMethodSteps().get(txReceived) > 0);
+
+		long lineSteps = 0;
+		for (long steps : profile.getLineSteps().values())
+			lineSteps += steps;
+		assertEquals(profile.getSteps(), lineSteps);
+		assertTrue(profile.getLineSteps().keySet().stream().anyMatch(line -> line > 0));
+	}
+
+	@Test
+	public void testDispatch() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("DISPATCH_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Address dispatch = emu.getAddress("DISPATCH");
+		bt.compiler.Compiler comp = BT.compileContract(Dispatch.class);
+		emu.createConctract(creator, dispatch, comp, Contract.ONE_BURST);
+		emu.forgeBlock();
+		CompiledContract compiled = dispatch.getCompiledContract();
+		long created = compiled.getFieldValue("created");
+
+		for (int i = 1; i <= 6; i++) {
+			emu.send(creator, dispatch, 2 * Contract.ONE_BURST,
+					Register.newInstance(comp.getMethod("method" + i).getHash(), 0, 0, 0));
+			emu.forgeBlock();
+			assertEquals(i, compiled.getFieldValue("called"));
+		}
+		emu.send(creator, dispatch, 2 * Contract.ONE_BURST,
+				Register.newInstance(comp.getMethod("add").getHash(), 30, 12, 0));
+		emu.forgeBlock();
+		assertEquals(42, compiled.getFieldValue("called"));
+		emu.send(creator, dispatch, 2 * Contract.ONE_BURST,
+				Register.newInstance(comp.getMethod("sub").getHash(), 30, 12, 8));
+		emu.forgeBlock();
+		assertEquals(10, compiled.getFieldValue("called"));
+		// an empty method is not linked, the dispatch simply ends the run
+		assertFalse(comp.getMethod("empty").isLinked());
+		long steps = compiled.getMachine().getSteps();
+		emu.send(creator, dispatch, 2 * Contract.ONE_BURST,
+				Register.newInstance(comp.getMethod("method1").getHash(), 0, 0, 0));
+		emu.forgeBlock();
+		long method1Steps = compiled.getMachine().getSteps() - steps;
+		steps = compiled.getMachine().getSteps();
+		emu.send(creator, dispatch, 2 * Contract.ONE_BURST,
+				Register.newInstance(comp.getMethod("empty").getHash(), 0, 0, 0));
+		emu.forgeBlock();
+		assertEquals(1, compiled.getFieldValue("called"));
+		assertEquals(created, compiled.getFieldValue("created"));
+		assertTrue(compiled.getMachine().getSteps() - steps < method1Steps);
+		assertEquals(Machine.STATE_FINISHED, compiled.getMachine().getState());
+
+		// not a method hash, falls back to txReceived
+		emu.send(creator, dispatch, 2 * Contract.ONE_BURST, Register.newInstance(12345, 0, 0, 0));
+		emu.forgeBlock();
+		assertEquals(-1, compiled.getFieldValue("called"));
+	}
+
+	@Test
+	public void testPacked() throws Exception {
+		bt.compiler.Compiler comp = BT.compileContract(PackedFields.class);
+		assertEquals(comp.getFieldAddress("open"), comp.getFieldAddress("count"));
+		assertEquals(comp.getFieldAddress("open"), comp.getFieldAddress("closed"));
+		// no room left for a second int
+		assertNotEquals(comp.getFieldAddress("open"), comp.getFieldAddress("balance"));
+		assertNotEquals(comp.getFieldAddress("open"), comp.getFieldAddress("total"));
+
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("PACKED_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		Address packed = emu.getAddress("PACKED");
+		emu.createConctract(creator, packed, comp, Contract.ONE_BURST);
+		emu.forgeBlock();
+		CompiledContract compiled = packed.getCompiledContract();
+
+		long total = 0;
+		for (int i = 1; i <= 5; i++) {
+			emu.send(creator, packed, 2 * Contract.ONE_BURST);
+			emu.forgeBlock();
+			total += i;
+			assertEquals(i % 2, compiled.getFieldValue("open"));
+			assertEquals(i, compiled.getFieldValue("count"));
+			assertEquals(-3 * i, compiled.getFieldValue("balance"));
+			assertEquals(i == 3 ? 1 : 0, compiled.getFieldValue("closed"));
+			assertEquals(total, compiled.getFieldValue("total"));
+		}
+	}
+
+	@Test
+	public void testRetention() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("RETENTION_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		Address counter = emu.getAddress("RETENTION_COUNTER");
+		emu.createConctract(creator, counter, BT.compileContract(TXCounter.class), Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		emu.setRetention(2);
+		for (int i = 0; i < 20; i++) {
+			emu.send(creator, counter, 2 * Contract.ONE_BURST);
+			emu.send(creator, counter, 2 * Contract.ONE_BURST);
+			emu.forgeBlock();
+			assertTrue(emu.getBlocks().size() <= 2);
+			assertTrue(emu.getTxs().size() <= 10);
+		}
+		emu.forgeBlock();
+		// a lookup from outside the contract does not keep its transactions
+		assertNotNull(emu.getTxAfter(counter, null));
+		for (int i = 0; i < 3; i++)
+			emu.forgeBlock();
+		assertEquals(0, emu.getTxs().size());
+
+		CompiledContract compiled = counter.getCompiledContract();
+		assertEquals(40, compiled.getFieldValue("ntx"));
+		assertTrue(emu.getPrunedTxs() >= 40);
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("SNAPSHOT_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+
+		emu.createConctract(creator, emu.getAddress("SNAPSHOT_JAVA"), TXCounter.class, Contract.ONE_BURST);
+		emu.createConctract(creator, emu.getAddress("SNAPSHOT_COMPILED"), BT.compileContract(TXCounter.class),
+				Contract.ONE_BURST);
+		emu.forgeBlock();
+		sendCounters(emu, "SNAPSHOT", 3);
+
+		Snapshot snapshot = emu.snapshot();
+		long balance = emu.getAddress("SNAPSHOT_COMPILED").getBalance();
+		sendCounters(emu, "SNAPSHOT", 5);
+		assertEquals(8, countJava(emu, "SNAPSHOT"));
+		assertEquals(8, countCompiled(emu, "SNAPSHOT"));
+
+		// a fork runs independently
+		Emulator fork = snapshot.fork();
+		assertEquals(3, countJava(fork, "SNAPSHOT"));
+		assertEquals(3, countCompiled(fork, "SNAPSHOT"));
+		assertEquals(balance, fork.getAddress("SNAPSHOT_COMPILED").getBalance());
+		sendCounters(fork, "SNAPSHOT", 2);
+		assertEquals(5, countJava(fork, "SNAPSHOT"));
+		assertEquals(5, countCompiled(fork, "SNAPSHOT"));
+		assertEquals(8, countCompiled(emu, "SNAPSHOT"));
+		fork.close();
+
+		// the same snapshot can be restored more than once
+		for (int i = 0; i < 2; i++) {
+			emu.restore(snapshot);
+			assertEquals(snapshot.getHeight(), emu.getCurrentBlock().getHeight());
+			assertEquals(3, countCompiled(emu, "SNAPSHOT"));
+			sendCounters(emu, "SNAPSHOT", 1);
+			assertEquals(4, countJava(emu, "SNAPSHOT"));
+			assertEquals(4, countCompiled(emu, "SNAPSHOT"));
+		}
+	}
+
+	@Test
+	public void testSnapshotSleeping() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("FROZEN_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		Address always = emu.getAddress("FROZEN_ALWAYS");
+		Address counter = emu.getAddress("FROZEN_COUNTER");
+		emu.createConctract(creator, always, AlwaysRunning.class, Contract.ONE_BURST);
+		emu.createConctract(creator, counter, TXCounter.class, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.send(creator, counter, 2 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		assertTrue(always.isSleeping());
+
+		// the sleeping contract is frozen on the copy, the others still run
+		Snapshot snapshot = emu.snapshot();
+		Emulator fork = snapshot.fork();
+		Address forkAlways = fork.getAddress("FROZEN_ALWAYS");
+		Address forkCounter = fork.getAddress("FROZEN_COUNTER");
+		assertTrue(forkAlways.isFrozen());
+		assertFalse(always.isFrozen());
+		fork.send(creator, forkCounter, 2 * Contract.ONE_BURST);
+		fork.send(creator, forkAlways, 2 * Contract.ONE_BURST);
+		fork.forgeBlock();
+		fork.forgeBlock();
+		assertEquals(2, ntx(forkCounter));
+		assertTrue(forkAlways.isSleeping());
+		assertEquals(1, ntx(counter));
+
+		long activations = emu.getActivations();
+		emu.forgeBlock();
+		assertEquals(1, emu.getActivations() - activations);
+
+		// only the sleeping contract holds a thread, released when restoring
+		assertEquals(0, threads("FROZEN_COUNTER"));
+		assertEquals(1, threads("FROZEN_ALWAYS"));
+		fork.close();
+		assertEquals(1, threads("FROZEN_ALWAYS"));
+		emu.restore(snapshot);
+		assertEquals(0, threads("FROZEN_ALWAYS"));
+		assertTrue(always.isSleeping());
+		assertTrue(emu.getAddress("FROZEN_ALWAYS").isFrozen());
+	}
+
+	private static void assertSleeping(Emulator emu, int n) {
+		for (int i = 0; i < n; i++)
+			assertTrue(emu.getAddress("SLEEP" + i).isSleeping());
+	}
+
+	private static long ntx(Address counter) throws Exception {
+		java.lang.reflect.Field ntx = TXCounter.class.getDeclaredField("ntx");
+		ntx.setAccessible(true);
+		return ntx.getLong(counter.getContract());
+	}
+
+	private static int threads(String name) {
+		int ret = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().equals(name) && t.isAlive())
+				ret++;
+		}
+		return ret;
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ArrayList<Future<Emulator>> results = new ArrayList<>();
+		for (int n = 1; n <= 8; n++) {
+			int ntx = n;
+			results.add(executor.submit(() -> {
+				Emulator emu = new Emulator();
+				Address creator = emu.getAddress("PARALLEL_CREATOR");
+				emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+				emu.createConctract(creator, emu.getAddress("PARALLEL_JAVA"), TXCounter.class, Contract.ONE_BURST);
+				emu.createConctract(creator, emu.getAddress("PARALLEL_COMPILED"), BT.compileContract(TXCounter.class),
+						Contract.ONE_BURST);
+				emu.forgeBlock();
+				sendCounters(emu, "PARALLEL", ntx);
+				return emu;
+			}));
+		}
+		for (int n = 1; n <= 8; n++) {
+			Emulator emu = results.get(n - 1).get();
+			assertNotSame(Emulator.getInstance(), emu);
+			assertEquals(n, countJava(emu, "PARALLEL"));
+			assertEquals(n, countCompiled(emu, "PARALLEL"));
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void testSeed() throws Exception {
+		Emulator[] emus = { new Emulator(42), new Emulator(42), new Emulator(43) };
+		for (Emulator emu : emus) {
+			Address creator = emu.getAddress("SEED_CREATOR");
+			emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+			emu.createConctract(creator, emu.getAddress("SEED_COMPILED"), BT.compileContract(TXCounter.class),
+					Contract.ONE_BURST);
+			emu.forgeBlock();
+			sendCounters(emu, "SEED", 3);
+		}
+		for (int i = 0; i < 4; i++) {
+			assertEquals(emus[0].getPrevBlock().hash.value[i], emus[1].getPrevBlock().hash.value[i]);
+			assertNotEquals(emus[0].getPrevBlock().hash.value[i], emus[2].getPrevBlock().hash.value[i]);
+		}
+
+		long hash = emus[2].getPrevBlock().hash.value[0];
+		emus[2].setSeed(42);
+		assertEquals(emus[0].getPrevBlock().hash.value[0], emus[2].getPrevBlock().hash.value[0]);
+		assertNotEquals(hash, emus[2].getPrevBlock().hash.value[0]);
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("BATCH_CREATOR");
+		emu.airDrop(creator, 10000 * Contract.ONE_BURST);
+		emu.createConctract(creator, emu.getAddress("BATCH_JAVA"), TXCounter.class, Contract.ONE_BURST);
+		emu.createConctract(creator, emu.getAddress("BATCH_COMPILED"), BT.compileContract(TXCounter.class),
+				Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		Emulator.Batch batch = emu.batch(2000);
+		for (int i = 0; i < 1000; i++) {
+			batch.send(creator, emu.getAddress("BATCH_JAVA"), 2 * Contract.ONE_BURST);
+			batch.send(creator, emu.getAddress("BATCH_COMPILED"), 2 * Contract.ONE_BURST);
+		}
+		assertEquals(2000, batch.size());
+		batch.submit();
+		assertEquals(0, batch.size());
+		emu.forgeBlock();
+		assertEquals(2000, emu.getLastForgeTxs());
+		assertTrue(emu.getLastForgeThroughput() > 0);
+		emu.forgeBlock();
+
+		assertEquals(1000, countJava(emu, "BATCH"));
+		assertEquals(1000, countCompiled(emu, "BATCH"));
+	}
+
+	@Test
+	public void testWakeUps() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("SLEEP_CREATOR");
+		emu.airDrop(creator, 10000 * Contract.ONE_BURST);
+		for (int i = 0; i < 200; i++)
+			emu.createConctract(creator, emu.getAddress("SLEEP" + i), AlwaysRunning.class, Contract.ONE_BURST);
+		emu.forgeBlock();
+		assertSleeping(emu, 200);
+
+		// every contract is woken up once per block and sleeps again
+		for (int i = 0; i < 10; i++) {
+			long activations = emu.getActivations();
+			emu.forgeBlock();
+			assertEquals(200, emu.getActivations() - activations);
+			assertSleeping(emu, 200);
+		}
+	}
+
+	@Test
+	public void testSleepHelper() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("HELPER_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		Address helper = emu.getAddress("HELPER");
+		emu.createConctract(creator, helper, SleepHelper.class, Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		assertEquals(0, threads("HELPER"));
+
+		emu.send(creator, helper, 2 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		assertTrue(helper.isSleeping());
+		assertEquals(1, threads("HELPER"));
+		SleepHelper contract = (SleepHelper) helper.getContract();
+		assertEquals(0, contract.woken);
+
+		for (int i = 0; i < 3; i++)
+			emu.forgeBlock();
+		assertFalse(helper.isSleeping());
+		assertTrue(contract.woken > 0);
+		// the thread is given back when the activation finishes
+		assertEquals(0, threads("HELPER"));
+	}
+
+	@Test
+	public void testSleepUntilNextTx() throws Exception {
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("WAITER_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		Address waiter = emu.getAddress("WAITER");
+		emu.createConctract(creator, waiter, TxWaiter.class, Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		emu.send(creator, waiter, 2 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		TxWaiter contract = (TxWaiter) waiter.getContract();
+		assertTrue(waiter.isSleeping());
+		assertEquals(1, contract.received);
+
+		// no transaction, keeps sleeping
+		for (int i = 0; i < 3; i++)
+			emu.forgeBlock();
+		assertTrue(waiter.isSleeping());
+		assertEquals(0, contract.woken);
+
+		// woken up by the next one, which is then received
+		emu.send(creator, waiter, 2 * Contract.ONE_BURST);
+		long height = emu.getCurrentBlock().getHeight();
+		emu.forgeBlock();
+		assertEquals(height, contract.woken);
+		assertEquals(2, contract.received);
+		assertTrue(waiter.isSleeping());
+	}
+
+	@Test
+	public void testSleepScanner() throws Exception {
+		assertTrue(SleepScanner.canSleep(AlwaysRunning.class));
+		// sleeping through a helper class
+		assertTrue(SleepScanner.canSleep(SleepHelper.class));
+		assertFalse(SleepScanner.canSleep(TXCounter.class));
+		assertFalse(SleepScanner.canSleep(Hello.class));
+
+		// contracts that cannot sleep run on the forging thread
+		Emulator emu = new Emulator();
+		Address creator = emu.getAddress("SCANNER_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		Address counter = emu.getAddress("SCANNER_COUNTER");
+		emu.createConctract(creator, counter, TXCounter.class, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.send(creator, counter, 2 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		assertEquals(1, ntx(counter));
+		assertNull(counter.coroutine);
+	}
+
+	/**
+	 * Sends n transactions to each of the name_JAVA and name_COMPILED counters,
+	 * from name_CREATOR, forging a block for each round.
+	 */
+	private static void sendCounters(Emulator emu, String name, int n) throws Exception {
+		Address creator = emu.getAddress(name + "_CREATOR");
+		for (int i = 0; i < n; i++) {
+			emu.send(creator, emu.getAddress(name + "_JAVA"), 2 * Contract.ONE_BURST);
+			emu.send(creator, emu.getAddress(name + "_COMPILED"), 2 * Contract.ONE_BURST);
+			emu.forgeBlock();
+		}
+		emu.forgeBlock();
+	}
+
+	private static long countJava(Emulator emu, String name) throws Exception {
+		return ntx(emu.getAddress(name + "_JAVA"));
+	}
+
+	private static long countCompiled(Emulator emu, String name) {
+		return emu.getAddress(name + "_COMPILED").getCompiledContract().getFieldValue("ntx");
+	}
+}
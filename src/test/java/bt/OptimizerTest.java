@@ -0,0 +1,250 @@
+package bt;
+
+import static org.junit.Assert.*;
+
+import java.security.InvalidParameterException;
+
+import org.junit.Test;
+
+import bt.compiler.Compiler;
+import bt.compiler.Profile;
+import bt.sample.TXCounter;
+import bt.sample.UniqueToken;
+
+/**
+ * Checks the optimized code behaves as the non-optimized one, using the emulator.
+ *
+ * @author jjos
+ */
+public class OptimizerTest {
+
+	static Compiler compile(Class<? extends Contract> contract, boolean optimize) throws Exception {
+		Compiler comp = new Compiler(contract);
+		comp.setOptimize(optimize);
+		comp.compile();
+		comp.link();
+		assertEquals(0, comp.getErrors().size());
+		return comp;
+	}
+
+	void checkSame(Class<? extends Contract> contract) throws Exception {
+		Compiler plain = compile(contract, false);
+		Compiler optimized = compile(contract, true);
+		assertTrue(optimized.getCode().length < plain.getCode().length);
+
+		Emulator emu = Emulator.getInstance();
+		String name = contract.getSimpleName().toUpperCase();
+		Address creator = emu.getAddress(name + "_OPT_CREATOR");
+		Address user = emu.getAddress(name + "_OPT_USER");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.airDrop(user, 1000 * Contract.ONE_BURST);
+
+		Address plainAddress = emu.getAddress(name + "_PLAIN");
+		Address optimizedAddress = emu.getAddress(name + "_OPTIMIZED");
+		emu.createConctract(creator, plainAddress, plain, Contract.ONE_BURST);
+		emu.createConctract(creator, optimizedAddress, optimized, Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		for (int i = 0; i < 5; i++) {
+			for (Address a : new Address[] { plainAddress, optimizedAddress }) {
+				emu.send(user, a, 3 * Contract.ONE_BURST);
+				emu.send(creator, a, 2 * Contract.ONE_BURST, Register.newInstance(i, 0, 0, 0));
+			}
+			emu.forgeBlock();
+		}
+
+		CompiledContract c1 = plainAddress.getCompiledContract();
+		CompiledContract c2 = optimizedAddress.getCompiledContract();
+		assertEquals(c1.getMachine().getState(), c2.getMachine().getState());
+		for (bt.compiler.Field f : plain.getFields()) {
+			assertEquals(f.getName(), c1.getFieldValue(f.getName()), c2.getFieldValue(f.getName()));
+		}
+		assertTrue(c2.getMachine().getSteps() < c1.getMachine().getSteps());
+	}
+
+	@Test
+	public void testCounter() throws Exception {
+		checkSame(TXCounter.class);
+	}
+
+	@Test
+	public void testUniqueToken() throws Exception {
+		checkSame(UniqueToken.class);
+	}
+
+	@Test
+	public void testDeadCode() throws Exception {
+		Compiler comp = compile(DeadCode.class, false);
+		assertTrue(comp.getDeadCodeSize() > 0);
+		assertFalse(comp.getMethod("unused").isLinked());
+		assertFalse(comp.getMethod("nothing").isLinked());
+		assertTrue(comp.getMethod("increment").isLinked());
+
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("DEADCODE_CREATOR");
+		Address contract = emu.getAddress("DEADCODE");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.createConctract(creator, contract, comp, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.send(creator, contract, 2 * Contract.ONE_BURST);
+		emu.send(creator, contract, 2 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		assertEquals(20L, contract.getCompiledContract().getFieldValue("counter"));
+	}
+
+	@Test
+	public void testInline() throws Exception {
+		Compiler comp = new Compiler(DeadCode.class);
+		comp.setInline(Compiler.INLINE_MIN_STEPS);
+		comp.compile();
+		comp.link();
+		assertEquals(0, comp.getErrors().size());
+		assertFalse(comp.getMethod("increment").isLinked());
+		assertNotNull(comp.getInlineReport());
+		assertTrue(comp.getInlineStepChange() < 0);
+
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("INLINE_CREATOR");
+		Address contract = emu.getAddress("INLINE");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.createConctract(creator, contract, comp, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.send(creator, contract, 2 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		assertEquals(5L, contract.getCompiledContract().getFieldValue("counter"));
+		// the inlined steps are profiled on the lines of increment and big
+		Profile profile = contract.getCompiledContract().getProfile();
+		assertTrue(profile.getLineSteps().containsKey(13));
+		assertTrue(profile.getLineSteps().containsKey(27));
+	}
+
+	@Test
+	public void testInlineCalls() throws Exception {
+		// big is larger than the default limit, but the other call is on dead code
+		Compiler comp = compile(DeadCode.class, true);
+		assertFalse(comp.getMethod("big").isLinked());
+		assertTrue(comp.getInlineReport().contains("big"));
+	}
+
+	@Test
+	public void testInlineReport() throws Exception {
+		// the report does not depend on the link, big is still called after inlining
+		Compiler comp = new Compiler(InlineChain.class);
+		comp.compile();
+		String report = comp.getInlineReport();
+		assertTrue(report.contains("big"));
+		comp.link();
+		assertTrue(comp.getMethod("big").isLinked());
+		assertEquals(report, comp.getInlineReport());
+	}
+
+	@Test
+	public void testDense() throws Exception {
+		Compiler[] comps = new Compiler[2];
+		for (int v = 0; v < comps.length; v++) {
+			comps[v] = new Compiler(Dense.class);
+			comps[v].setTargetVersion(Compiler.DENSE_VERSION - 1 + v);
+			comps[v].compile();
+			comps[v].link();
+			assertEquals(0, comps[v].getErrors().size());
+		}
+		assertTrue(comps[1].getCode().length < comps[0].getCode().length);
+
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("DENSE_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		Address[] addresses = { emu.getAddress("DENSE_V1"), emu.getAddress("DENSE_V2") };
+		for (int v = 0; v < comps.length; v++)
+			emu.createConctract(creator, addresses[v], comps[v], Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		long[] amounts = { 3, 3, 5, 5, 5 };
+		for (long amount : amounts) {
+			for (Address a : addresses)
+				emu.send(creator, a, amount * Contract.ONE_BURST);
+			emu.forgeBlock();
+		}
+
+		CompiledContract c1 = addresses[0].getCompiledContract();
+		CompiledContract c2 = addresses[1].getCompiledContract();
+		assertEquals(3L, c2.getFieldValue("matches"));
+		assertEquals(5L, c2.getFieldValue("countdown"));
+		assertEquals(-1L, c2.getFieldValue("flags"));
+		for (bt.compiler.Field f : comps[0].getFields()) {
+			assertEquals(f.getName(), c1.getFieldValue(f.getName()), c2.getFieldValue(f.getName()));
+		}
+		assertTrue(c2.getMachine().getSteps() < c1.getMachine().getSteps());
+	}
+
+	@Test
+	public void testTargetVersion() throws Exception {
+		Compiler comp = new Compiler(Dense.class);
+		assertEquals(BT.getATVersion(), comp.getTargetVersion());
+		comp.setTargetVersion(BT.getATVersion() + 1);
+		comp.compile();
+		comp.link();
+		try {
+			BT.registerContract(BT.PASSPHRASE, comp, "Dense", "Dense", null, null, 1000);
+			fail("Code for a newer AT version should not be registered");
+		} catch (InvalidParameterException expected) {
+		}
+	}
+
+	@Test
+	public void testRelax() throws Exception {
+		Compiler comp = compile(Branches.class, true);
+		assertTrue(comp.getRelaxedSize() > 0);
+
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("BRANCHES_CREATOR");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		Address contract = emu.getAddress("BRANCHES");
+		emu.createConctract(creator, contract, comp, Contract.ONE_BURST);
+		emu.forgeBlock();
+
+		CompiledContract cc = contract.getCompiledContract();
+		emu.send(creator, contract, 4 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		long total = cc.getFieldValue("total");
+		assertTrue(total > 0 && total <= 10);
+		assertEquals(0L, cc.getFieldValue("a"));
+
+		emu.send(creator, contract, 10 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		total = cc.getFieldValue("total");
+		assertTrue(total > 10);
+		assertEquals(total * 2 + total * 6 + total * 24 + total * 120, cc.getFieldValue("a"));
+	}
+
+	@Test
+	public void testConstructorData() throws Exception {
+		Compiler plain = compile(Constants.class, false);
+		Compiler comp = compile(Constants.class, true);
+		assertNull(plain.getData());
+		assertNotNull(comp.getData());
+		assertEquals(1000 * Contract.ONE_BURST, comp.getData()[comp.getFieldAddress("price")]);
+		assertEquals(5, comp.getData()[comp.getFieldAddress("count")]);
+		assertEquals(1, comp.getData()[comp.getFieldAddress("open")]);
+
+		Emulator emu = Emulator.getInstance();
+		Address creator = emu.getAddress("CONSTANTS_CREATOR");
+		Address contract = emu.getAddress("CONSTANTS");
+		emu.airDrop(creator, 1000 * Contract.ONE_BURST);
+		emu.createConctract(creator, contract, comp, Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.send(creator, contract, 2 * Contract.ONE_BURST);
+		emu.forgeBlock();
+		emu.forgeBlock();
+
+		CompiledContract compiled = contract.getCompiledContract();
+		assertEquals(1000 * Contract.ONE_BURST, compiled.getFieldValue("price"));
+		assertEquals(6, compiled.getFieldValue("count"));
+		assertEquals(1, compiled.getFieldValue("open"));
+		assertEquals(creator.getId(), compiled.getFieldValue("owner"));
+		assertEquals(1, compiled.getFieldValue("received"));
+	}
+}
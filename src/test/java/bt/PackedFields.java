@@ -0,0 +1,34 @@
+package bt;
+
+import bt.Contract;
+import bt.compiler.Packed;
+import bt.ui.EmulatorWindow;
+
+/**
+ * A contract with packed fields.
+ */
+public class PackedFields extends Contract {
+
+	@Packed
+	boolean open;
+	@Packed
+	int count;
+	long total;
+	@Packed
+	int balance;
+	@Packed
+	boolean closed;
+
+	@Override
+	public void txReceived() {
+		open = !open;
+		count++;
+		balance -= 3;
+		closed = count == 3;
+		total += count;
+	}
+
+	public static void main(String[] args) {
+		new EmulatorWindow(PackedFields.class);
+	}
+}
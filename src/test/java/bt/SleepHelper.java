@@ -0,0 +1,24 @@
+package bt;
+
+import bt.Contract;
+
+/**
+ * Sleeps through a helper on another class, so there is no call to sleep on the
+ * contract bytecode itself.
+ */
+public class SleepHelper extends Contract {
+
+	long woken;
+
+	static class Nap {
+		static void nap(Contract c, long blocks) {
+			c.sleep(blocks);
+		}
+	}
+
+	@Override
+	public void txReceived() {
+		Nap.nap(this, 2);
+		woken = getBlockHeight();
+	}
+}
@@ -0,0 +1,19 @@
+package bt;
+
+import bt.Contract;
+
+/**
+ * Sleeps until the next transaction after handling each one.
+ */
+public class TxWaiter extends Contract {
+
+	long received;
+	long woken;
+
+	@Override
+	public void txReceived() {
+		received++;
+		sleepUntilNextTx();
+		woken = getBlockHeight();
+	}
+}